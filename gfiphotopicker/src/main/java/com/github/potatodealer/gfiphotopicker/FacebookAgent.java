@@ -6,8 +6,11 @@ import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.ImageView;
 
@@ -16,7 +19,9 @@ import com.facebook.CallbackManager;
 import com.facebook.FacebookCallback;
 import com.facebook.FacebookException;
 import com.facebook.FacebookRequestError;
+import com.facebook.FacebookSdk;
 import com.facebook.GraphRequest;
+import com.facebook.GraphRequestBatch;
 import com.facebook.GraphResponse;
 import com.facebook.HttpMethod;
 import com.facebook.login.LoginManager;
@@ -26,6 +31,7 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
@@ -44,11 +50,12 @@ public class FacebookAgent
     @SuppressWarnings("unused")
     static private final String  LOG_TAG                               = "FacebookAgent";
 
-    static private final boolean DEBUGGING_ENABLED                     = true;
+    static private final boolean DEBUGGING_ENABLED                     = false;
 
     static private final String  PERMISSION_USER_PHOTOS                = "user_photos";
 
     static private final String  GRAPH_PATH_MY_ALBUMS                  = "/me/albums";
+    static private final String  GRAPH_PATH_MY_PHOTOS                  = "/me/photos";
     static private final String  GRAPH_PATH_FORMAT_STRING_ALBUM_PHOTOS = "/%s/photos";
     static private final String  GRAPH_PATH_FORMAT_STRING_PHOTO        = "/%s";
 
@@ -56,15 +63,33 @@ public class FacebookAgent
     static private final String  PARAMETER_VALUE_TYPE                  = "uploaded";
 
     static private final String  PARAMETER_NAME_FIELDS                 = "fields";
-    static private final String  PARAMETER_VALUE_ALBUM_FIELDS          = "id,name,cover_photo";
     static private final String  PARAMETER_VALUE_PHOTO_FIELDS          = "id,picture,images";
+    static private final String  PARAMETER_VALUE_MY_PHOTO_FIELDS       = PARAMETER_VALUE_PHOTO_FIELDS + ",album{id}";
+
+    static private final int     FIRST_PHOTOS_PAGE_SIZE                = 25;
+
+    // The albums come with their first page of photos, using nested field expansion
+    static private final String  PARAMETER_VALUE_ALBUM_FIELDS          = "id,name,cover_photo,updated_time,count,photos.limit(" + FIRST_PHOTOS_PAGE_SIZE + "){" + PARAMETER_VALUE_PHOTO_FIELDS + "}";
+
+    static private final String  PARAMETER_NAME_AFTER                  = "after";
+
+    // The Graph API limit of requests in a batch
+    static private final int     MAX_BATCH_SIZE                        = 50;
 
     static private final String  JSON_NAME_DATA                        = "data";
     static private final String  JSON_NAME_ID                          = "id";
     static private final String  JSON_NAME_COVER_PHOTO                 = "cover_photo";
     static private final String  JSON_NAME_NAME                        = "name";
+    static private final String  JSON_NAME_UPDATED_TIME                = "updated_time";
+    static private final String  JSON_NAME_COUNT                       = "count";
     static private final String  JSON_NAME_PICTURE                     = "picture";
     static private final String  JSON_NAME_IMAGES                      = "images";
+    static private final String  JSON_NAME_PHOTOS                      = "photos";
+    static private final String  JSON_NAME_ALBUM                       = "album";
+    static private final String  JSON_NAME_PAGING                      = "paging";
+    static private final String  JSON_NAME_CURSORS                     = "cursors";
+    static private final String  JSON_NAME_AFTER                       = "after";
+    static private final String  JSON_NAME_NEXT                        = "next";
 
     static private final String  JSON_NAME_WIDTH                       = "width";
     static private final String  JSON_NAME_HEIGHT                      = "height";
@@ -82,8 +107,12 @@ public class FacebookAgent
     private Activity mActivity;
     private CallbackManager mCallbackManager;
 
-    private GraphRequest mNextAlbumsPageGraphRequest;
-    private GraphRequest     mNextPhotosPageGraphRequest;
+    private Handler                   mHandler;
+    private GraphRequestCoalescer     mGraphRequestCoalescer;
+    private FacebookRequestScheduler  mRequestScheduler;
+
+    private GraphRequest     mNextAlbumsPageGraphRequest;
+    private GraphRequest     mNextAllPhotosPageGraphRequest;
 
     private ARequest         mPendingRequest;
 
@@ -148,6 +177,19 @@ public class FacebookAgent
     }
 
 
+    /*****************************************************
+     *
+     * Sets the domain the Graph requests are sent to, i.e.
+     * graph.<domain>. This is meant for pointing debug
+     * builds at a local stand-in of the Graph API.
+     *
+     *****************************************************/
+    public static void setGraphDomain( String domain )
+    {
+        FacebookSdk.setFacebookDomain( domain );
+    }
+
+
     /*****************************************************
      *
      * Returns a string representation of an access token.
@@ -173,7 +215,8 @@ public class FacebookAgent
 
     ////////// Constructor(s) //////////
 
-    private FacebookAgent( Context context )
+    // Only parses responses, e.g. in the local unit tests
+    FacebookAgent( Context context )
     {
     }
 
@@ -184,6 +227,10 @@ public class FacebookAgent
         //FacebookSdk.sdkInitialize( activity.getApplicationContext() );
 
         mCallbackManager = CallbackManager.Factory.create();
+
+        mHandler               = new Handler( Looper.getMainLooper() );
+        mGraphRequestCoalescer = new GraphRequestCoalescer();
+        mRequestScheduler      = new FacebookRequestScheduler();
     }
 
 
@@ -300,6 +347,21 @@ public class FacebookAgent
     }
 
 
+    /*****************************************************
+     *
+     * Clears the next page request of an album, so its
+     * photos are retrieved from the start.
+     *
+     *****************************************************/
+    public void resetPhotos( Album album )
+    {
+        if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, "resetPhotos( album = " + album.getId() + " )" );
+
+        album.mFirstPhotosPage            = null;
+        album.mNextPhotosPageGraphRequest = null;
+    }
+
+
     /*****************************************************
      *
      * Returns the albums.
@@ -317,30 +379,62 @@ public class FacebookAgent
 
     /*****************************************************
      *
-     * Clears any next page request, so photos are retrieved
-     * from the start.
+     * Loads the next available page of photos of an album.
+     * Each album keeps its own next page request, so the
+     * photos of several albums can be loaded at the same
+     * time.
      *
      *****************************************************/
-    public void resetPhotos()
+    public void getPhotos( Album album, Callbacks callback )
     {
-        if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, "resetPhotos()" );
+        if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, "getPhotos( photosCallback )" );
+
+        PhotosRequest photosRequest = new PhotosRequest( album, callback );
 
-        mNextPhotosPageGraphRequest = null;
+        executeRequest( photosRequest, true );
     }
 
 
     /*****************************************************
      *
-     * Loads the next available page of photos.
+     * Returns an album that was listed earlier, so that its
+     * photos can be loaded from the start.
      *
      *****************************************************/
-    public void getPhotos( Album album, Callbacks callback )
+    public Album getAlbum( String id, String name, String updatedTime, int count )
     {
-        if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, "getPhotos( photosCallback )" );
+        return ( new Album( id, name, null, updatedTime, count ) );
+    }
 
-        PhotosRequest photosRequest = new PhotosRequest( album, callback );
 
-        executeRequest( photosRequest, true );
+    /*****************************************************
+     *
+     * Clears any next page request, so the photos of all
+     * the albums are retrieved from the start.
+     *
+     *****************************************************/
+    public void resetAllPhotos()
+    {
+        if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, "resetAllPhotos()" );
+
+        mNextAllPhotosPageGraphRequest = null;
+    }
+
+
+    /*****************************************************
+     *
+     * Loads the next available page of the photos of all
+     * the albums, newest first. Each photo knows its album
+     * id.
+     *
+     *****************************************************/
+    public void getAllPhotos( Callbacks callback )
+    {
+        if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, "getAllPhotos( callback )" );
+
+        AllPhotosRequest allPhotosRequest = new AllPhotosRequest( callback );
+
+        executeRequest( allPhotosRequest, true );
     }
 
 
@@ -364,7 +458,7 @@ public class FacebookAgent
      * Returns a photo from the supplied JSON.
      *
      *****************************************************/
-    private Photo photoFromJSON( JSONObject photoJSONObject ) throws JSONException
+    Photo photoFromJSON( JSONObject photoJSONObject ) throws JSONException
     {
         String    id             = photoJSONObject.getString( JSON_NAME_ID );
         String    picture        = photoJSONObject.getString( JSON_NAME_PICTURE );
@@ -378,38 +472,250 @@ public class FacebookAgent
         }
 
 
-        try
+        // Create a new photo, and add the (thumbnail) picture. The image URLs are kept as
+        // strings, they are only stored, so no URL is built for them.
+        Photo photo = new Photo( id, picture, 100 );
+
+
+        // Add the remaining images
+
+        int imageCount = imageJSONArray.length();
+
+        for ( int imageIndex = 0; imageIndex < imageCount; imageIndex++ )
         {
-            // Create a new photo, and add the (thumbnail) picture
-            Photo photo = new Photo( id, picture, 100 );
+            JSONObject imageJSONObject = imageJSONArray.getJSONObject( imageIndex );
 
+            String imageSourceURLString = imageJSONObject.getString( JSON_NAME_SOURCE );
+            int    width                = imageJSONObject.optInt( JSON_NAME_WIDTH, Photo.Image.UNKNOWN_DIMENSION );
+            int    height               = imageJSONObject.optInt( JSON_NAME_HEIGHT, Photo.Image.UNKNOWN_DIMENSION );
 
-            // Add the remaining images
+            photo.addImage( imageSourceURLString, width, height );
+        }
 
-            int imageCount = imageJSONArray.length();
 
-            for ( int imageIndex = 0; imageIndex < imageCount; imageIndex++ )
-            {
-                JSONObject imageJSONObject = imageJSONArray.getJSONObject( imageIndex );
+        // Add the album id, if it was requested
+
+        JSONObject albumJSONObject = photoJSONObject.optJSONObject( JSON_NAME_ALBUM );
+
+        if ( albumJSONObject != null )
+        {
+            photo.mAlbumId = albumJSONObject.optString( JSON_NAME_ID, null );
+        }
+
+        return ( photo );
+    }
 
-                String imageSourceURLString = imageJSONObject.getString( JSON_NAME_SOURCE );
-                int    width                = imageJSONObject.optInt( JSON_NAME_WIDTH, Photo.Image.UNKNOWN_DIMENSION );
-                int    height               = imageJSONObject.optInt( JSON_NAME_HEIGHT, Photo.Image.UNKNOWN_DIMENSION );
 
-                if ( imageSourceURLString != null )
+    /*****************************************************
+     *
+     * Returns the photos of a page of photos JSON.
+     *
+     *****************************************************/
+    ArrayList<Photo> photosFromJSON( JSONArray dataJSONArray )
+    {
+        ArrayList<Photo> photoArrayList = new ArrayList<>( dataJSONArray.length() );
+
+        for ( int photoIndex = 0; photoIndex < dataJSONArray.length(); photoIndex ++ )
+        {
+            try
+            {
+                Photo photo = photoFromJSON( dataJSONArray.getJSONObject( photoIndex ) );
+
+                if ( photo != null )
                 {
-                    photo.addImage( imageSourceURLString, width, height );
+                    photoArrayList.add( photo );
                 }
             }
+            catch ( JSONException je )
+            {
+                Log.e( LOG_TAG, "Unable to extract data of photo " + photoIndex + " from JSON", je );
+            }
+        }
+
+        return ( photoArrayList );
+    }
+
+
+    /*****************************************************
+     *
+     * Returns an album from the supplied JSON, with its
+     * first page of photos if it came with it.
+     *
+     *****************************************************/
+    Album albumFromJSON( JSONObject albumJSONObject ) throws JSONException
+    {
+        String id           = albumJSONObject.getString( JSON_NAME_ID );
+        String name         = albumJSONObject.getString( JSON_NAME_NAME );
+
+
+        // Get the cover photo
+
+        Object coverPhoto = albumJSONObject.get( JSON_NAME_COVER_PHOTO );
+
+        String coverPhotoId = null;
+
+        if ( coverPhoto instanceof String )
+        {
+            coverPhotoId = (String)coverPhoto;
+        }
+        else if ( coverPhoto instanceof JSONObject )
+        {
+            coverPhotoId = ( (JSONObject)coverPhoto ).getString( JSON_NAME_ID );
+        }
+
 
-            return ( photo );
+        // Get the sync state, which may be missing
+
+        String updatedTime = albumJSONObject.optString( JSON_NAME_UPDATED_TIME, null );
+        int    count       = albumJSONObject.optInt( JSON_NAME_COUNT, Album.UNKNOWN_COUNT );
+
+
+        if ( DEBUGGING_ENABLED )
+        {
+            Log.d( LOG_TAG, "-- Album --" );
+            Log.d( LOG_TAG, "Id             : " + id );
+            Log.d( LOG_TAG, "Name           : " + name );
+            Log.d( LOG_TAG, "Cover photo id : " + coverPhotoId );
+            Log.d( LOG_TAG, "Updated time   : " + updatedTime );
+            Log.d( LOG_TAG, "Count          : " + count );
+        }
+
+        Album album = new Album( id, name, coverPhotoId, updatedTime, count );
+
+
+        // Keep the first page of photos, if it came with the album. Empty edges are left
+        // out of the response, so without it the photos are requested as usual.
+
+        JSONObject photosJSONObject = albumJSONObject.optJSONObject( JSON_NAME_PHOTOS );
+
+        JSONArray  photosDataJSONArray = ( photosJSONObject != null ? photosJSONObject.optJSONArray( JSON_NAME_DATA ) : null );
+
+        if ( photosDataJSONArray != null )
+        {
+            album.mFirstPhotosPage       = photosFromJSON( photosDataJSONArray );
+            album.mFirstPhotosPageCursor = nextPageCursor( photosJSONObject );
+        }
+
+        return ( album );
+    }
+
+
+    /*****************************************************
+     *
+     * Returns the albums of a page of albums JSON. The
+     * request for the photos after the first page of each
+     * album is left to the caller.
+     *
+     *****************************************************/
+    ArrayList<Album> albumsFromJSON( JSONArray dataJSONArray )
+    {
+        ArrayList<Album> albumArrayList = new ArrayList<>( dataJSONArray.length() );
+
+        for ( int albumIndex = 0; albumIndex < dataJSONArray.length(); albumIndex ++ )
+        {
+            try
+            {
+                Album album = albumFromJSON( dataJSONArray.getJSONObject( albumIndex ) );
+
+                if ( album != null )
+                {
+                    albumArrayList.add( album );
+                }
+            }
+            catch ( JSONException je )
+            {
+                Log.e( LOG_TAG, "Unable to extract data of album " + albumIndex + " from JSON", je );
+            }
         }
-        catch ( MalformedURLException mue )
+
+        return ( albumArrayList );
+    }
+
+
+    /*****************************************************
+     *
+     * Returns a request for the page after the supplied
+     * one, or null if it is the last page.
+     *
+     * The request is built from the page's after cursor,
+     * rather than the next URL, because requests with an
+     * overridden URL can't be sent in a batch.
+     *
+     *****************************************************/
+    static private GraphRequest nextPageGraphRequest( JSONObject pageJSONObject, String graphPath, Bundle parameters )
+    {
+        return ( pageGraphRequest( nextPageCursor( pageJSONObject ), graphPath, parameters ) );
+    }
+
+
+    /*****************************************************
+     *
+     * Returns a request for the page after the supplied
+     * cursor, or null if there is no cursor.
+     *
+     *****************************************************/
+    static private GraphRequest pageGraphRequest( String after, String graphPath, Bundle parameters )
+    {
+        if ( after == null ) return ( null );
+
+        Bundle nextPageParameters = new Bundle( parameters );
+        nextPageParameters.putString( PARAMETER_NAME_AFTER, after );
+
+        return ( new GraphRequest( AccessToken.getCurrentAccessToken(), graphPath, nextPageParameters, HttpMethod.GET ) );
+    }
+
+
+    /*****************************************************
+     *
+     * Returns the after cursor of the page following the
+     * supplied one, or null if it is the last page.
+     *
+     *****************************************************/
+    static String nextPageCursor( JSONObject pageJSONObject )
+    {
+        JSONObject pagingJSONObject = pageJSONObject.optJSONObject( JSON_NAME_PAGING );
+
+        if ( pagingJSONObject == null || pagingJSONObject.isNull( JSON_NAME_NEXT ) ) return ( null );
+
+        JSONObject cursorsJSONObject = pagingJSONObject.optJSONObject( JSON_NAME_CURSORS );
+
+        return ( cursorsJSONObject != null ? cursorsJSONObject.optString( JSON_NAME_AFTER, null ) : null );
+    }
+
+
+    /*****************************************************
+     *
+     * Splits the queued requests into batches of up to the
+     * supplied size, keeping their order.
+     *
+     *****************************************************/
+    static <T> List<List<T>> splitIntoBatches( List<T> requestList, int maxBatchSize )
+    {
+        int requestCount = requestList.size();
+
+        List<List<T>> batchList = new ArrayList<>( ( requestCount + maxBatchSize - 1 ) / maxBatchSize );
+
+        for ( int start = 0; start < requestCount; start += maxBatchSize )
         {
-            Log.e( LOG_TAG, "Invalid URL in JSON: " + photoJSONObject.toString(), mue );
+            batchList.add( new ArrayList<>( requestList.subList( start, Math.min( requestCount, start + maxBatchSize ) ) ) );
         }
 
-        return ( null );
+        return ( batchList );
+    }
+
+
+    /*****************************************************
+     *
+     * Returns the parameters of an album photos request.
+     *
+     *****************************************************/
+    static private Bundle photosParameters()
+    {
+        Bundle parameters = new Bundle();
+        parameters.putString( PARAMETER_NAME_TYPE, PARAMETER_VALUE_TYPE );
+        parameters.putString( PARAMETER_NAME_FIELDS, PARAMETER_VALUE_PHOTO_FIELDS );
+
+        return ( parameters );
     }
 
 
@@ -495,7 +801,7 @@ public class FacebookAgent
             {
                 mNextAlbumsPageGraphRequest.setCallback( albumsGraphRequestCallback );
 
-                mNextAlbumsPageGraphRequest.executeAsync();
+                mGraphRequestCoalescer.enqueue( mNextAlbumsPageGraphRequest );
 
                 mNextAlbumsPageGraphRequest = null;
 
@@ -514,7 +820,7 @@ public class FacebookAgent
                     HttpMethod.GET,
                     albumsGraphRequestCallback );
 
-            request.executeAsync();
+            mGraphRequestCoalescer.enqueue( request );
 
             if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, "<-- AlbumsRequest.onExecute()" );
         }
@@ -545,19 +851,46 @@ public class FacebookAgent
             if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, "--> PhotosRequest.onExecute()" );
 
 
+            // If the first page came with the album - deliver it now. It is posted, so that
+            // callbacks don't nest when they request the next album.
+
+            if ( mAlbum != null && mAlbum.mFirstPhotosPage != null )
+            {
+                final List<Photo> firstPhotosPage = mAlbum.mFirstPhotosPage;
+                final boolean     morePhotos      = ( mAlbum.mNextPhotosPageGraphRequest != null );
+
+                mAlbum.mFirstPhotosPage = null;
+
+                mHandler.post( new Runnable()
+                    {
+                    @Override
+                    public void run()
+                        {
+                        if ( mCallback != null ) mCallback.facOnPhotosSuccess( firstPhotosPage, morePhotos );
+                        }
+                    } );
+
+                if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, "<-- PhotosRequest.onExecute()" );
+
+                return;
+            }
+
+
             PhotosGraphRequestCallback photosGraphRequestCallback = new PhotosGraphRequestCallback( mAlbum, mCallback );
 
 
-            // If we already have a next page request ready - execute it now. Otherwise
+            // If the album already has a next page request ready - execute it now. Otherwise
             // start a brand new request.
 
-            if ( mNextPhotosPageGraphRequest != null )
+            if ( mAlbum != null && mAlbum.mNextPhotosPageGraphRequest != null )
             {
-                mNextPhotosPageGraphRequest.setCallback( photosGraphRequestCallback );
+                GraphRequest nextPhotosPageGraphRequest = mAlbum.mNextPhotosPageGraphRequest;
 
-                mNextPhotosPageGraphRequest.executeAsync();
+                mAlbum.mNextPhotosPageGraphRequest = null;
 
-                mNextPhotosPageGraphRequest = null;
+                nextPhotosPageGraphRequest.setCallback( photosGraphRequestCallback );
+
+                mGraphRequestCoalescer.enqueue( nextPhotosPageGraphRequest );
 
                 if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, "<-- PhotosRequest.onExecute()" );
 
@@ -571,9 +904,7 @@ public class FacebookAgent
             {
                 String graphPathAlbumPhotos = String.format( GRAPH_PATH_FORMAT_STRING_ALBUM_PHOTOS, mAlbum.getId() );
 
-                Bundle parameters = new Bundle();
-                parameters.putString( PARAMETER_NAME_TYPE, PARAMETER_VALUE_TYPE );
-                parameters.putString( PARAMETER_NAME_FIELDS, PARAMETER_VALUE_PHOTO_FIELDS );
+                Bundle parameters = photosParameters();
 
                 if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, "Requesting photos from: " + graphPathAlbumPhotos );
 
@@ -584,7 +915,7 @@ public class FacebookAgent
                         HttpMethod.GET,
                         photosGraphRequestCallback );
 
-                request.executeAsync();
+                mGraphRequestCoalescer.enqueue( request );
             }
             else
             {
@@ -599,6 +930,60 @@ public class FacebookAgent
     }
 
 
+    /*****************************************************
+     *
+     * A request for the photos of all the albums.
+     *
+     *****************************************************/
+    private class AllPhotosRequest extends ARequest<Callbacks>
+    {
+        AllPhotosRequest( Callbacks callback )
+        {
+            super( callback );
+        }
+
+
+        @Override
+        public void onExecute()
+        {
+            if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, "--> AllPhotosRequest.onExecute()" );
+
+
+            // The photos callback keeps the next page request of all the photos
+            // when it has no album.
+
+            PhotosGraphRequestCallback photosGraphRequestCallback = new PhotosGraphRequestCallback( null, mCallback );
+
+            GraphRequest request = mNextAllPhotosPageGraphRequest;
+
+            mNextAllPhotosPageGraphRequest = null;
+
+            if ( request != null )
+            {
+                request.setCallback( photosGraphRequestCallback );
+            }
+            else
+            {
+                Bundle parameters = new Bundle();
+                parameters.putString( PARAMETER_NAME_TYPE, PARAMETER_VALUE_TYPE );
+                parameters.putString( PARAMETER_NAME_FIELDS, PARAMETER_VALUE_MY_PHOTO_FIELDS );
+
+                request = new GraphRequest(
+                        AccessToken.getCurrentAccessToken(),
+                        GRAPH_PATH_MY_PHOTOS,
+                        parameters,
+                        HttpMethod.GET,
+                        photosGraphRequestCallback );
+            }
+
+            mGraphRequestCoalescer.enqueue( request );
+
+
+            if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, "<-- AllPhotosRequest.onExecute()" );
+        }
+    }
+
+
     /*****************************************************
      *
      * An album photo request.
@@ -639,7 +1024,7 @@ public class FacebookAgent
                     HttpMethod.GET,
                     photoGraphRequestCallback );
 
-            request.executeAsync();
+            mGraphRequestCoalescer.enqueue( request );
 
 
             if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, "<-- PhotoRequest.onExecute()" );
@@ -647,6 +1032,198 @@ public class FacebookAgent
     }
 
 
+    /*****************************************************
+     *
+     * Groups the graph requests made during the same pass
+     * of the main thread into batch requests, so that
+     * e.g. the first photo pages of several albums share
+     * one connection and round trip.
+     *
+     * The batches are sent as the request scheduler allows,
+     * and the requests that fail with a transient or
+     * throttling error are queued again after a backoff.
+     *
+     * Each request keeps its own callback.
+     *
+     *****************************************************/
+    private class GraphRequestCoalescer implements Runnable
+    {
+        private final List<GraphRequest>        mQueuedRequestList  = new ArrayList<>();
+        private final List<List<GraphRequest>>  mPendingBatchList   = new ArrayList<>();
+
+        private boolean                         mFlushPosted;
+        private boolean                         mDispatchPosted;
+        private int                             mInFlightBatchCount;
+
+
+        private final Runnable mDispatchRunnable = new Runnable()
+            {
+            @Override
+            public void run()
+                {
+                mDispatchPosted = false;
+
+                dispatch();
+                }
+            };
+
+
+        void enqueue( GraphRequest request )
+        {
+            // A retried request is already wrapped
+            if ( ! ( request.getCallback() instanceof ScheduledCallback ) )
+            {
+                request.setCallback( new ScheduledCallback( request, request.getCallback() ) );
+            }
+
+            mQueuedRequestList.add( request );
+
+            if ( ! mFlushPosted )
+            {
+                mFlushPosted = true;
+
+                mHandler.post( this );
+            }
+        }
+
+
+        @Override
+        public void run()
+        {
+            mFlushPosted = false;
+
+            int requestCount = mQueuedRequestList.size();
+
+            if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, "Coalescing " + requestCount + " request(s)" );
+
+            mPendingBatchList.addAll( splitIntoBatches( mQueuedRequestList, MAX_BATCH_SIZE ) );
+
+            mQueuedRequestList.clear();
+
+            dispatch();
+        }
+
+
+        /*****************************************************
+         *
+         * Sends as many pending batches as the scheduler
+         * allows, or waits until it allows more.
+         *
+         *****************************************************/
+        private void dispatch()
+        {
+            long delayMillis = mRequestScheduler.getDispatchDelayMillis( SystemClock.uptimeMillis() );
+
+            if ( delayMillis > 0 )
+            {
+                if ( ! mDispatchPosted && mPendingBatchList.size() > 0 )
+                {
+                    mDispatchPosted = true;
+
+                    mHandler.postDelayed( mDispatchRunnable, delayMillis );
+                }
+
+                return;
+            }
+
+            while ( mPendingBatchList.size() > 0 && mInFlightBatchCount < mRequestScheduler.getMaxParallelBatches() )
+            {
+                List<GraphRequest> requestList = mPendingBatchList.remove( 0 );
+
+                if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, "Sending a batch of " + requestList.size() + " request(s)" );
+
+                // A batch of one is sent as a plain request
+                GraphRequestBatch batch = new GraphRequestBatch( requestList );
+
+                batch.addCallback( new GraphRequestBatch.Callback()
+                    {
+                    @Override
+                    public void onBatchCompleted( GraphRequestBatch batch )
+                        {
+                        mInFlightBatchCount --;
+
+                        dispatch();
+                        }
+                    } );
+
+                mInFlightBatchCount ++;
+
+                batch.executeAsync();
+            }
+        }
+    }
+
+
+    /*****************************************************
+     *
+     * Wraps the callback of a request to report the app
+     * usage and the outcome to the request scheduler, and
+     * to retry the request when the scheduler says so.
+     *
+     * The wrapped callback only sees the final response.
+     *
+     *****************************************************/
+    private class ScheduledCallback implements GraphRequest.Callback
+    {
+        private final GraphRequest           mRequest;
+        private final GraphRequest.Callback  mCallback;
+
+        private int                          mAttemptCount;
+
+
+        ScheduledCallback( GraphRequest request, GraphRequest.Callback callback )
+        {
+            mRequest  = request;
+            mCallback = callback;
+        }
+
+
+        @Override
+        public void onCompleted( GraphResponse graphResponse )
+        {
+            long nowMillis = SystemClock.uptimeMillis();
+
+            mAttemptCount ++;
+
+            HttpURLConnection connection = graphResponse.getConnection();
+
+            if ( connection != null )
+            {
+                mRequestScheduler.onAppUsage( connection.getHeaderField( FacebookRequestScheduler.HTTP_HEADER_NAME_APP_USAGE ), nowMillis );
+            }
+
+            FacebookRequestError error = graphResponse.getError();
+
+            if ( error == null )
+            {
+                mRequestScheduler.onSuccess();
+            }
+            else
+            {
+                long retryDelayMillis = mRequestScheduler.onError( error, mAttemptCount, nowMillis );
+
+                if ( retryDelayMillis >= 0 )
+                {
+                    Log.w( LOG_TAG, "Retrying request after error " + error.getErrorCode() + " in " + retryDelayMillis + " ms" );
+
+                    mHandler.postDelayed( new Runnable()
+                        {
+                        @Override
+                        public void run()
+                            {
+                            mGraphRequestCoalescer.enqueue( mRequest );
+                            }
+                        }, retryDelayMillis );
+
+                    return;
+                }
+            }
+
+            if ( mCallback != null ) mCallback.onCompleted( graphResponse );
+        }
+    }
+
+
     /*****************************************************
      *
      * A login result callback.
@@ -741,9 +1318,9 @@ public class FacebookAgent
 
                     case TRANSIENT:
 
-                        getAlbums( mCallback );
+                        // The request scheduler has already retried it as many times as it allows
 
-                        return;
+                        // Fall through
 
                     case OTHER:
 
@@ -762,36 +1339,27 @@ public class FacebookAgent
 
             if ( responseJSONObject != null )
             {
-                Log.d( LOG_TAG, "Response object: " + responseJSONObject.toString() );
+                // The response is only turned back into a string when debugging
+                if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, "Response object: " + responseJSONObject.toString() );
 
                 JSONArray dataJSONArray = responseJSONObject.optJSONArray( JSON_NAME_DATA );
 
                 if ( dataJSONArray != null )
                 {
-                    ArrayList<Album> albumArrayList = new ArrayList<>( dataJSONArray.length() );
-
-                    for ( int albumIndex = 0; albumIndex < dataJSONArray.length(); albumIndex ++ )
-                    {
-                        try
-                        {
-                            JSONObject albumJSONObject = dataJSONArray.getJSONObject( albumIndex );
+                    ArrayList<Album> albumArrayList = albumsFromJSON( dataJSONArray );
 
-                            Album album = albumFromJSON( albumJSONObject );
+                    // The photos after the first page of an album are requested from the album photos edge
 
-                            if ( album != null )
-                            {
-                                albumArrayList.add( album );
-                            }
-                        }
-                        catch ( JSONException je )
-                        {
-                            Log.e( LOG_TAG, "Unable to extract album data from JSON: " + responseJSONObject.toString(), je );
-                        }
+                    for ( Album album : albumArrayList )
+                    {
+                        album.mNextPhotosPageGraphRequest = pageGraphRequest( album.mFirstPhotosPageCursor, String.format( GRAPH_PATH_FORMAT_STRING_ALBUM_PHOTOS, album.getId() ), photosParameters() );
                     }
 
-                    mNextAlbumsPageGraphRequest = graphResponse.getRequestForPagedResults( GraphResponse.PagingDirection.NEXT );
+                    GraphRequest request = graphResponse.getRequest();
+
+                    mNextAlbumsPageGraphRequest = nextPageGraphRequest( responseJSONObject, request.getGraphPath(), request.getParameters() );
 
-                    if ( mCallback != null ) mCallback.facOnAlbumsSuccess( albumArrayList, mNextPhotosPageGraphRequest != null );
+                    if ( mCallback != null ) mCallback.facOnAlbumsSuccess( albumArrayList, mNextAlbumsPageGraphRequest != null );
                 }
                 else
                 {
@@ -804,53 +1372,13 @@ public class FacebookAgent
             }
 
         }
-
-
-        /*****************************************************
-         *
-         * Returns a photo from the supplied JSON.
-         *
-         *****************************************************/
-        private Album albumFromJSON( JSONObject albumJSONObject ) throws JSONException
-        {
-            String id           = albumJSONObject.getString( JSON_NAME_ID );
-            String name         = albumJSONObject.getString( JSON_NAME_NAME );
-
-
-            // Get the cover photo
-
-            Object coverPhoto = albumJSONObject.get( JSON_NAME_COVER_PHOTO );
-
-            String coverPhotoId = null;
-
-            if ( coverPhoto instanceof String )
-            {
-                coverPhotoId = (String)coverPhoto;
-            }
-            else if ( coverPhoto instanceof JSONObject )
-            {
-                coverPhotoId = ( (JSONObject)coverPhoto ).getString( JSON_NAME_ID );
-            }
-
-
-            if ( DEBUGGING_ENABLED )
-            {
-                Log.d( LOG_TAG, "-- Album --" );
-                Log.d( LOG_TAG, "Id             : " + id );
-                Log.d( LOG_TAG, "Name           : " + name );
-                Log.d( LOG_TAG, "Cover photo id : " + coverPhotoId );
-            }
-
-            Album album = new Album( id, name, coverPhotoId );
-
-            return ( album );
-        }
     }
 
 
     /*****************************************************
      *
-     * A graph request callback for photos.
+     * A graph request callback for the photos of an album,
+     * or of all the albums when it has no album.
      *
      *****************************************************/
     private class PhotosGraphRequestCallback implements GraphRequest.Callback
@@ -886,7 +1414,7 @@ public class FacebookAgent
 
                         Log.e( LOG_TAG, "Attempting to resolve LOGIN_RECOVERABLE error" );
 
-                        mPendingRequest = new PhotosRequest( mAlbum, mPhotosCallback );
+                        mPendingRequest = ( mAlbum != null ? new PhotosRequest( mAlbum, mPhotosCallback ) : new AllPhotosRequest( mPhotosCallback ) );
 
                         LoginManager.getInstance().resolveError( mActivity, graphResponse );
 
@@ -894,9 +1422,9 @@ public class FacebookAgent
 
                     case TRANSIENT:
 
-                        getPhotos( mAlbum, mPhotosCallback );
+                        // The request scheduler has already retried it as many times as it allows
 
-                        return;
+                        // Fall through
 
                     case OTHER:
 
@@ -915,7 +1443,8 @@ public class FacebookAgent
 
             if ( responseJSONObject != null )
             {
-                Log.d( LOG_TAG, "Response object: " + responseJSONObject.toString() );
+                // The response is only turned back into a string when debugging
+                if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, "Response object: " + responseJSONObject.toString() );
 
                 // Returned image data is as follows:
                 //
@@ -981,30 +1510,16 @@ public class FacebookAgent
 
                 if ( dataJSONArray != null )
                 {
-                    ArrayList<Photo> photoArrayList = new ArrayList<>( dataJSONArray.length() );
-
-                    for ( int photoIndex = 0; photoIndex < dataJSONArray.length(); photoIndex ++ )
-                    {
-                        try
-                        {
-                            JSONObject photoJSONObject = dataJSONArray.getJSONObject( photoIndex );
+                    ArrayList<Photo> photoArrayList = photosFromJSON( dataJSONArray );
 
-                            Photo photo = photoFromJSON( photoJSONObject );
+                    GraphRequest request = graphResponse.getRequest();
 
-                            if ( photo != null )
-                            {
-                                photoArrayList.add( photo );
-                            }
-                        }
-                        catch ( JSONException je )
-                        {
-                            Log.e( LOG_TAG, "Unable to extract photo data from JSON: " + responseJSONObject.toString(), je );
-                        }
-                    }
+                    GraphRequest nextPhotosPageGraphRequest = nextPageGraphRequest( responseJSONObject, request.getGraphPath(), request.getParameters() );
 
-                    mNextPhotosPageGraphRequest = graphResponse.getRequestForPagedResults( GraphResponse.PagingDirection.NEXT );
+                    if ( mAlbum != null ) mAlbum.mNextPhotosPageGraphRequest = nextPhotosPageGraphRequest;
+                    else                  mNextAllPhotosPageGraphRequest     = nextPhotosPageGraphRequest;
 
-                    if (mPhotosCallback != null ) mPhotosCallback.facOnPhotosSuccess( photoArrayList, mNextPhotosPageGraphRequest != null );
+                    if (mPhotosCallback != null ) mPhotosCallback.facOnPhotosSuccess( photoArrayList, nextPhotosPageGraphRequest != null );
                 }
                 else
                 {
@@ -1065,9 +1580,9 @@ public class FacebookAgent
 
                     case TRANSIENT:
 
-                        getPhoto( mPhotoId, mTargetImageView );
+                        // The request scheduler has already retried it as many times as it allows
 
-                        return;
+                        // Fall through
 
                     case OTHER:
 
@@ -1084,7 +1599,8 @@ public class FacebookAgent
 
             if ( responseJSONObject != null )
             {
-                Log.d( LOG_TAG, "Response object: " + responseJSONObject.toString() );
+                // The response is only turned back into a string when debugging
+                if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, "Response object: " + responseJSONObject.toString() );
 
                 try
                 {
@@ -1097,7 +1613,7 @@ public class FacebookAgent
                 }
                 catch ( JSONException je )
                 {
-                    Log.e( LOG_TAG, "Unable to extract photo data from JSON: " + responseJSONObject.toString(), je );
+                    Log.e( LOG_TAG, "Unable to extract photo data from JSON", je );
                 }
             }
             else
@@ -1120,7 +1636,9 @@ public class FacebookAgent
         ////////// Static Constant(s) //////////
 
         @SuppressWarnings( "unused" )
-        static private final String  LOG_TAG = "FacebookAlbum";
+        static private final String  LOG_TAG       = "FacebookAlbum";
+
+        static public  final int     UNKNOWN_COUNT = -1;
 
 
         ////////// Static Variable(s) //////////
@@ -1128,9 +1646,18 @@ public class FacebookAgent
 
         ////////// Member Variable(s) //////////
 
-        private String  mId;
-        private String  mName;
-        private String  mCoverPhotoId;
+        private String        mId;
+        private String        mName;
+        private String        mCoverPhotoId;
+        private String        mUpdatedTime;
+        private int           mCount;
+
+        // The first page of photos, when it came with the album, and the cursor of the page after it
+        private List<Photo>   mFirstPhotosPage;
+        private String        mFirstPhotosPageCursor;
+
+        // The pagination cursor of the album photos
+        private GraphRequest  mNextPhotosPageGraphRequest;
 
 
         ////////// Static Initialiser(s) //////////
@@ -1141,11 +1668,13 @@ public class FacebookAgent
 
         ////////// Constructor(s) //////////
 
-        Album( String id, String name, String coverPhotoId )
+        Album( String id, String name, String coverPhotoId, String updatedTime, int count )
         {
             mId           = id;
             mName         = name;
             mCoverPhotoId = coverPhotoId;
+            mUpdatedTime  = updatedTime;
+            mCount        = count;
         }
 
 
@@ -1155,6 +1684,8 @@ public class FacebookAgent
             mId = in.readString();
             mName = in.readString();
             mCoverPhotoId = in.readString();
+            mUpdatedTime = in.readString();
+            mCount = in.readInt();
         }
 
         public final Creator<Album> CREATOR = new Creator<Album>() {
@@ -1189,6 +1720,50 @@ public class FacebookAgent
             return ( mName );
         }
 
+        /*****************************************************
+         *
+         * Returns the time the album was last changed, or
+         * null if it is unknown.
+         *
+         *****************************************************/
+        public String getUpdatedTime()
+        {
+            return ( mUpdatedTime );
+        }
+
+        /*****************************************************
+         *
+         * Returns the number of photos in the album, or
+         * UNKNOWN_COUNT.
+         *
+         *****************************************************/
+        public int getCount()
+        {
+            return ( mCount );
+        }
+
+        /*****************************************************
+         *
+         * Returns the first page of photos, or null if it
+         * didn't come with the album or was already used.
+         *
+         *****************************************************/
+        List<Photo> getFirstPhotosPage()
+        {
+            return ( mFirstPhotosPage );
+        }
+
+        /*****************************************************
+         *
+         * Returns the cursor of the photos after the first
+         * page, or null if there are none.
+         *
+         *****************************************************/
+        String getFirstPhotosPageCursor()
+        {
+            return ( mFirstPhotosPageCursor );
+        }
+
         @Override
         public int describeContents() {
             return 0;
@@ -1199,6 +1774,8 @@ public class FacebookAgent
             parcel.writeString(mId);
             parcel.writeString(mName);
             parcel.writeString(mCoverPhotoId);
+            parcel.writeString(mUpdatedTime);
+            parcel.writeInt(mCount);
         }
     }
 
@@ -1215,7 +1792,7 @@ public class FacebookAgent
         @SuppressWarnings("unused")
         static private final String  LOG_TAG           = "FacebookPhoto";
 
-        static private final boolean DEBUGGING_ENABLED = true;
+        static private final boolean DEBUGGING_ENABLED = false;
 
 
         ////////// Static Variable(s) //////////
@@ -1224,6 +1801,7 @@ public class FacebookAgent
         ////////// Member Variable(s) //////////
 
         private String       mId;
+        private String       mAlbumId;
         private List<Image>  mImageList;
         private Image        mThumbnailImage;
         private Image        mLargestImage;
@@ -1243,7 +1821,7 @@ public class FacebookAgent
             mImageList = new ArrayList<>();
         }
 
-        public Photo( String id, String thumbnailURLString, int width ) throws MalformedURLException
+        public Photo( String id, String thumbnailURLString, int width )
         {
             this( id );
 
@@ -1279,15 +1857,25 @@ public class FacebookAgent
             return ( mId );
         }
 
+        /*****************************************************
+         *
+         * Returns the id of the photo's album, if it was
+         * requested.
+         *
+         *****************************************************/
+        public String getAlbumId()
+        {
+            return ( mAlbumId );
+        }
+
         /*****************************************************
          *
          * Adds an image.
          *
          *****************************************************/
-        public Image addImage( String imageURLString, int width, int height ) throws MalformedURLException
+        public Image addImage( String imageURLString, int width, int height )
         {
-            URL imageURL = new URL( imageURLString );
-            Image image    = new Image( imageURL, width, height );
+            Image image = new Image( imageURLString, width, height );
 
             mImageList.add( image );
 
@@ -1314,11 +1902,31 @@ public class FacebookAgent
          * Adds an image.
          *
          *****************************************************/
-        public Image addImage( String imageSourceURLString, int width ) throws MalformedURLException
+        public Image addImage( String imageSourceURLString, int width )
         {
             return ( addImage( imageSourceURLString, width, Image.UNKNOWN_DIMENSION ) );
         }
 
+        /*****************************************************
+         *
+         * Returns all the images of the photo.
+         *
+         *****************************************************/
+        public List<Image> getImages()
+        {
+            return ( mImageList );
+        }
+
+        /*****************************************************
+         *
+         * Returns the full, largest, image.
+         *
+         *****************************************************/
+        public Image getFullImage()
+        {
+            return ( mLargestImage );
+        }
+
         /*****************************************************
          *
          * Returns the Width of the full image.
@@ -1364,78 +1972,43 @@ public class FacebookAgent
 
         /*****************************************************
          *
-         * Returns the URL of the image is best suited to the
-         * supplied required dimensions. This will be the smallest
-         * image that is larger than the dimensions.
+         * Returns the URL string of the full image, without
+         * building a URL.
          *
          *****************************************************/
-        public URL getBestImageURL( int minWidth, int minHeight )
+        public String getFullURLString()
         {
-            if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, "getBestImage( minWidth = " + minWidth + ", minHeight = " + minHeight + " )" );
-
-            Image bestSoFarImage = null;
-
-            for ( Image candidateImage : mImageList )
-            {
-                if ( bestSoFarImage == null )
-                {
-                    bestSoFarImage = candidateImage;
-                }
-                else
-                {
-                    int bestSoFarImageWidth  = bestSoFarImage.getWidth();
-                    int bestSoFarImageHeight = bestSoFarImage.getHeight();
-
-                    int candidateImageWidth  = candidateImage.getWidth();
-                    int candidateImageHeight = candidateImage.getHeight();
-
-                    if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, "  Candidate image: " + candidateImage );
-
-                    boolean widthDimensionIsBetter  = dimensionIsBetter( minWidth,  bestSoFarImageWidth,  candidateImageWidth );
-                    boolean heightDimensionIsBetter = dimensionIsBetter( minHeight, bestSoFarImageHeight, candidateImageHeight );
-
-                    if ( minWidth < 1 && minHeight < 1 )
-                    {
-                        if ( widthDimensionIsBetter && heightDimensionIsBetter ) bestSoFarImage = candidateImage;
-                    }
-                    else
-                    {
-                        if ( minWidth < 1 )
-                        {
-                            if ( heightDimensionIsBetter ) bestSoFarImage = candidateImage;
-                        }
-                        else if ( minHeight < 1 )
-                        {
-                            if ( widthDimensionIsBetter ) bestSoFarImage = candidateImage;
-                        }
-                        else
-                        {
-                            if ( widthDimensionIsBetter && heightDimensionIsBetter ) bestSoFarImage = candidateImage;
-                        }
-                    }
-                }
-            }
-
-
-            if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, "  Picked image: " + bestSoFarImage );
-
-            return ( bestSoFarImage.getSourceURL() );
+            return ( mLargestImage.getSourceURLString() );
         }
 
 
         /*****************************************************
          *
-         * Returns true, if the dimensions are better for a
-         * candidate image.
+         * Returns the image best suited to the supplied
+         * required dimensions: the smallest image that is at
+         * least as large, or the largest image if none is.
+         * A required dimension below 1 is ignored.
+         *
+         * It is meant to be called once, when the photo is
+         * stored, rather than every time an image is shown.
          *
          *****************************************************/
-        private boolean dimensionIsBetter( int minValue, int bestSoFarValue, int candidateValue )
+        public Image getBestImage( int minWidth, int minHeight )
         {
-            if ( minValue < 1 ) return ( candidateValue < bestSoFarValue );
+            Image bestSoFarImage = null;
+
+            for ( Image candidateImage : mImageList )
+            {
+                if ( ( minWidth  > 0 && candidateImage.getWidth()  < minWidth  ) ||
+                     ( minHeight > 0 && candidateImage.getHeight() < minHeight ) ) continue;
+
+                if ( bestSoFarImage == null || candidateImage.getSize() < bestSoFarImage.getSize() ) bestSoFarImage = candidateImage;
+            }
+
 
-            if ( bestSoFarValue < minValue ) return ( candidateValue > minValue );
+            if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, "getBestImage( minWidth = " + minWidth + ", minHeight = " + minHeight + " ) = " + bestSoFarImage );
 
-            return ( candidateValue >= minValue && candidateValue < bestSoFarValue );
+            return ( bestSoFarImage != null ? bestSoFarImage : mLargestImage );
         }
 
 
@@ -1503,42 +2076,79 @@ public class FacebookAgent
             static public final int UNKNOWN_DIMENSION = -1;
 
 
-            private URL  mSourceURL;
-            private int  mWidth;
-            private int  mHeight;
+            private String  mSourceURLString;
+            private URL     mSourceURL;
+            private int     mWidth;
+            private int     mHeight;
 
 
-            public Image( URL sourceURL, int width, int height )
+            public Image( String sourceURLString, int width, int height )
             {
-                mSourceURL = sourceURL;
-                mWidth     = width;
-                mHeight    = height;
+                mSourceURLString = sourceURLString;
+                mWidth           = width;
+                mHeight          = height;
             }
 
-            public Image( URL sourceURL, int width )
+            public Image( String sourceURLString, int width )
+            {
+                this( sourceURLString, width, UNKNOWN_DIMENSION );
+            }
+
+
+            public String getSourceURLString()
             {
-                this( sourceURL, width, UNKNOWN_DIMENSION );
+                return ( mSourceURLString );
             }
 
 
+            /*****************************************************
+             *
+             * Returns the source URL, which is only built the
+             * first time it is asked for.
+             *
+             *****************************************************/
             URL getSourceURL()
             {
+                if ( mSourceURL == null )
+                {
+                    try
+                    {
+                        mSourceURL = new URL( mSourceURLString );
+                    }
+                    catch ( MalformedURLException mue )
+                    {
+                        Log.e( LOG_TAG, "Invalid image URL: " + mSourceURLString, mue );
+                    }
+                }
+
                 return ( mSourceURL );
             }
 
 
-            int getWidth()
+            public int getWidth()
             {
                 return ( mWidth );
             }
 
 
-            int getHeight()
+            public int getHeight()
             {
                 return ( mHeight );
             }
 
 
+            /*****************************************************
+             *
+             * Returns the longest known side, to compare the
+             * sizes of the images of a photo.
+             *
+             *****************************************************/
+            int getSize()
+            {
+                return ( Math.max( mWidth, mHeight ) );
+            }
+
+
             @Override
             public boolean equals( Object otherObject )
             {
@@ -1553,13 +2163,24 @@ public class FacebookAgent
 
                 Image otherImage = (Image)otherObject;
 
-                return ( otherImage.mSourceURL.equals( mSourceURL ) && otherImage.mWidth == mWidth && otherImage.mHeight == mHeight );
+                // Strings are compared, URL.equals would resolve the host
+                return ( otherImage.mSourceURLString.equals( mSourceURLString ) && otherImage.mWidth == mWidth && otherImage.mHeight == mHeight );
+            }
+
+            @Override
+            public int hashCode()
+            {
+                int v = 17;
+                v = v * 31 + mSourceURLString.hashCode();
+                v = v * 31 + mWidth;
+                v = v * 31 + mHeight;
+                return v;
             }
 
             @Override
             public String toString()
             {
-                return ( mSourceURL.toString() + " : " + mWidth + " x " + mHeight );
+                return ( mSourceURLString + " : " + mWidth + " x " + mHeight );
             }
         }
 
@@ -0,0 +1,336 @@
+package com.github.potatodealer.gfiphotopicker;
+
+
+///// Import(s) /////
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.github.potatodealer.gfiphotopicker.data.FacebookDBHelper;
+import com.github.potatodealer.gfiphotopicker.data.FacebookMediaLoader;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
+///// Class Declaration /////
+
+/*****************************************************
+ *
+ * This class loads the photos of the open bucket into
+ * the local database, a page at a time, as the grid is
+ * scrolled towards its end.
+ *
+ * An album bucket is paged from the start, unless all
+ * its photos are already stored. Once its last page is
+ * stored the album is complete, so it isn't paged again
+ * until it changes.
+ *
+ * The All Media bucket follows a separate stream of the
+ * photos of all the albums, newest first, and stores
+ * each photo in the bucket of its album.
+ *
+ * All the methods run on the main thread.
+ *
+ *****************************************************/
+public class FacebookPhotoPager
+{
+    ////////// Static Constant(s) //////////
+
+    @SuppressWarnings( "unused" )
+    static private final String  LOG_TAG           = "FacebookPhotoPager";
+
+    static private final boolean DEBUGGING_ENABLED = false;
+
+
+    ////////// Member Variable(s) //////////
+
+    private final FacebookAgent    mFacebookAgent;
+    private final FacebookDBHelper mDBHelper;
+
+    private final Handler          mMainHandler;
+    private final ExecutorService  mWriteExecutor;
+
+    // Only the callback of the current bucket is listened to
+    private PageCallback           mPageCallback;
+
+
+    ////////// Constructor(s) //////////
+
+    public FacebookPhotoPager( FacebookAgent facebookAgent, FacebookDBHelper dbHelper )
+    {
+        mFacebookAgent = facebookAgent;
+        mDBHelper      = dbHelper;
+
+        mMainHandler   = new Handler( Looper.getMainLooper() );
+        mWriteExecutor = Executors.newSingleThreadExecutor();
+    }
+
+
+    ////////// Method(s) //////////
+
+    /*****************************************************
+     *
+     * Sets the bucket to load photos for. Any page still
+     * loading for the previous bucket is ignored.
+     *
+     *****************************************************/
+    public void setBucket( long bucketId )
+    {
+        if ( mPageCallback != null && mPageCallback.mBucketId == bucketId ) return;
+
+        if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, "setBucket( bucketId = " + bucketId + " )" );
+
+        mPageCallback = new PageCallback( bucketId );
+    }
+
+
+    /*****************************************************
+     *
+     * Loads the next page of the bucket, unless a page is
+     * already loading or there are no more photos.
+     *
+     *****************************************************/
+    public void loadMore()
+    {
+        PageCallback pageCallback = mPageCallback;
+
+        if ( pageCallback == null || pageCallback.mLoading || ! pageCallback.mMorePhotos ) return;
+
+        pageCallback.mLoading = true;
+
+        if ( pageCallback.mStarted )
+        {
+            pageCallback.fetchNextPage();
+        }
+        else
+        {
+            pageCallback.start();
+        }
+    }
+
+
+    /*****************************************************
+     *
+     * Stops loading. The pages not written yet are dropped.
+     *
+     *****************************************************/
+    public void cancel()
+    {
+        mPageCallback = null;
+
+        mWriteExecutor.shutdownNow();
+    }
+
+
+    ////////// Inner Class(es) //////////
+
+    /*****************************************************
+     *
+     * The callback of the photo pages of one bucket.
+     *
+     *****************************************************/
+    private class PageCallback implements FacebookAgent.Callbacks
+    {
+        private final long                 mBucketId;
+        private final boolean              mAllMedia;
+
+        // Stamped on every photo this pager sees
+        private long                       mGeneration;
+
+        private FacebookAgent.Album        mAlbum;
+        private Map<String, FacebookDBHelper.AlbumState> mAlbumStateMap;
+
+        private boolean                    mStarted;
+        private boolean                    mLoading;
+        private boolean                    mMorePhotos;
+
+
+        PageCallback( long bucketId )
+        {
+            mBucketId   = bucketId;
+            mAllMedia   = ( bucketId == FacebookMediaLoader.ALL_MEDIA_BUCKET_ID );
+            mMorePhotos = true;
+        }
+
+
+        /*****************************************************
+         *
+         * Reads the stored album state(s), then requests the
+         * first page.
+         *
+         *****************************************************/
+        void start()
+        {
+            mStarted = true;
+
+            mWriteExecutor.execute( new Runnable()
+                {
+                @Override
+                public void run()
+                    {
+                    final Map<String, FacebookDBHelper.AlbumState> albumStateMap = ( mAllMedia ? mDBHelper.getAlbumStates() : null );
+                    final FacebookDBHelper.AlbumState              albumState    = ( mAllMedia ? null : mDBHelper.getAlbumState( mBucketId ) );
+                    final long                                     generation    = mDBHelper.getNextSyncGeneration();
+
+                    mMainHandler.post( new Runnable()
+                        {
+                        @Override
+                        public void run()
+                            {
+                            if ( PageCallback.this != mPageCallback ) return;
+
+                            mGeneration = generation;
+
+                            if ( mAllMedia )
+                            {
+                                mAlbumStateMap = albumStateMap;
+
+                                mFacebookAgent.resetAllPhotos();
+                                mFacebookAgent.getAllPhotos( PageCallback.this );
+
+                                return;
+                            }
+
+                            // Nothing to load if the album was fully stored
+                            if ( albumState == null || albumState.complete || albumState.deleted )
+                            {
+                                mLoading    = false;
+                                mMorePhotos = false;
+
+                                return;
+                            }
+
+                            mAlbum = mFacebookAgent.getAlbum( albumState.albumId, albumState.name, albumState.updatedTime, albumState.photoCount );
+
+                            mFacebookAgent.getPhotos( mAlbum, PageCallback.this );
+                            }
+                        } );
+                    }
+                } );
+        }
+
+
+        /*****************************************************
+         *
+         * Requests the next page, following the cursor of the
+         * previous one.
+         *
+         *****************************************************/
+        void fetchNextPage()
+        {
+            if ( mAllMedia )
+            {
+                mFacebookAgent.getAllPhotos( this );
+            }
+            else
+            {
+                mFacebookAgent.getPhotos( mAlbum, this );
+            }
+        }
+
+
+        @Override
+        public void facOnAlbumsSuccess( List<FacebookAgent.Album> albumList, boolean moreAlbums )
+        {
+            // Not used for photos
+        }
+
+        @Override
+        public void facOnPhotosSuccess( final List<FacebookAgent.Photo> photoList, final boolean morePhotos )
+        {
+            if ( this != mPageCallback ) return;
+
+            if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, "Bucket " + mBucketId + ": " + ( photoList != null ? photoList.size() : 0 ) + " photo(s), more = " + morePhotos );
+
+            mWriteExecutor.execute( new Runnable()
+                {
+                @Override
+                public void run()
+                    {
+                    if ( photoList != null && photoList.size() > 0 )
+                    {
+                        if ( mAllMedia ) addToAlbumBuckets( photoList );
+                        else             mDBHelper.addFacebookPhotos( photoList, mBucketId, mGeneration );
+                    }
+
+                    // Only an album paged from the start can be completed
+                    if ( ! morePhotos && ! mAllMedia ) mDBHelper.completeAlbum( mAlbum, mBucketId, mGeneration, true );
+
+                    mDBHelper.notifyChange();
+
+                    mMainHandler.post( new Runnable()
+                        {
+                        @Override
+                        public void run()
+                            {
+                            mLoading    = false;
+                            mMorePhotos = morePhotos;
+                            }
+                        } );
+                    }
+                } );
+        }
+
+        @Override
+        public void facOnError( Exception exception )
+        {
+            Log.e( LOG_TAG, "Unable to load the photos of bucket " + mBucketId, exception );
+
+            // Stop paging, the photos already stored are still shown
+            mLoading    = false;
+            mMorePhotos = false;
+        }
+
+        @Override
+        public void facOnCancel()
+        {
+            mLoading    = false;
+            mMorePhotos = false;
+        }
+
+
+        /*****************************************************
+         *
+         * Stores a page of the All Media stream in the buckets
+         * of their albums. Photos of albums that haven't been
+         * listed yet are left to the sync.
+         *
+         *****************************************************/
+        private void addToAlbumBuckets( List<FacebookAgent.Photo> photoList )
+        {
+            Map<String, List<FacebookAgent.Photo>> albumPhotoListMap = new HashMap<>();
+
+            for ( FacebookAgent.Photo photo : photoList )
+            {
+                FacebookDBHelper.AlbumState albumState = mAlbumStateMap.get( photo.getAlbumId() );
+
+                if ( albumState == null || albumState.deleted ) continue;
+
+                List<FacebookAgent.Photo> albumPhotoList = albumPhotoListMap.get( albumState.albumId );
+
+                if ( albumPhotoList == null )
+                {
+                    albumPhotoList = new ArrayList<>();
+
+                    albumPhotoListMap.put( albumState.albumId, albumPhotoList );
+                }
+
+                albumPhotoList.add( photo );
+            }
+
+            for ( Map.Entry<String, List<FacebookAgent.Photo>> entry : albumPhotoListMap.entrySet() )
+            {
+                FacebookDBHelper.AlbumState albumState = mAlbumStateMap.get( entry.getKey() );
+
+                mDBHelper.addFacebookPhotos( entry.getValue(), albumState.bucketId, mGeneration );
+            }
+        }
+    }
+
+}
@@ -0,0 +1,267 @@
+package com.github.potatodealer.gfiphotopicker;
+
+
+///// Import(s) /////
+
+import android.util.Log;
+
+import com.facebook.FacebookRequestError;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Random;
+
+
+///// Class Declaration /////
+
+/*****************************************************
+ *
+ * This class decides when Graph requests may be sent,
+ * and whether a failed one is retried, so that throttling
+ * doesn't turn into a retry storm.
+ *
+ * The app usage reported in the X-App-Usage header of
+ * every response sets how many batches may be in flight:
+ * close to the limits they are sent one at a time, and
+ * at the limits sending pauses.
+ *
+ * Transient and throttling errors are retried after an
+ * exponential backoff with full jitter, up to a number of
+ * attempts per request. Retries also draw on a budget
+ * shared by all the requests, which only successful
+ * responses refill, so a failing Graph API gets fewer and
+ * fewer retries rather than more.
+ *
+ * It holds no Android state besides logging, so its
+ * decisions can be checked against a local stand-in of
+ * the Graph API (see FacebookAgent.setGraphDomain) or
+ * in a local unit test (see FacebookRequestSchedulerTest).
+ *
+ * All the methods are called on the main thread.
+ *
+ *****************************************************/
+public class FacebookRequestScheduler
+{
+    ////////// Static Constant(s) //////////
+
+    @SuppressWarnings( "unused" )
+    static private final String  LOG_TAG                      = "FacebookRequestScheduler";
+
+    static private final boolean DEBUGGING_ENABLED            = false;
+
+    static public  final String  HTTP_HEADER_NAME_APP_USAGE   = "X-App-Usage";
+
+    static private final String  JSON_NAME_CALL_COUNT         = "call_count";
+    static private final String  JSON_NAME_TOTAL_TIME         = "total_time";
+    static private final String  JSON_NAME_TOTAL_CPUTIME      = "total_cputime";
+
+    // The Graph API throttling error codes: application, user, page and API method limits
+    static private final int[]   THROTTLING_ERROR_CODES       = { 4, 17, 32, 613 };
+
+    static public  final int     DEFAULT_MAX_PARALLEL_BATCHES = 4;
+
+    // Above this usage, in percent of the limits, batches are sent one at a time
+    static private final int     SLOW_DOWN_USAGE_PERCENT      = 75;
+    // Above this usage sending pauses
+    static private final int     PAUSE_USAGE_PERCENT          = 95;
+    static private final long    PAUSE_MILLIS                 = 60 * 1000;
+
+    static private final long    BASE_BACKOFF_MILLIS          = 1000;
+    static private final long    MAX_BACKOFF_MILLIS           = 60 * 1000;
+    static private final int     MAX_ATTEMPTS                 = 5;
+
+    // A retry costs a whole token, a successful response gives back a tenth of one
+    static private final int     RETRY_TOKEN_COST             = 10;
+    static private final int     MAX_RETRY_TOKENS             = 10 * RETRY_TOKEN_COST;
+
+
+    ////////// Member Variable(s) //////////
+
+    private final Random  mRandom;
+    private final int     mMaxParallelBatches;
+
+    private int           mUsagePercent;
+    private int           mRetryTokens;
+
+    // Nothing is sent before this time
+    private long          mResumeTimeMillis;
+
+
+    ////////// Constructor(s) //////////
+
+    public FacebookRequestScheduler( Random random, int maxParallelBatches )
+    {
+        mRandom             = random;
+        mMaxParallelBatches = maxParallelBatches;
+        mRetryTokens        = MAX_RETRY_TOKENS;
+    }
+
+    public FacebookRequestScheduler()
+    {
+        this( new Random(), DEFAULT_MAX_PARALLEL_BATCHES );
+    }
+
+
+    ////////// Method(s) //////////
+
+    /*****************************************************
+     *
+     * Records the app usage reported with a response. The
+     * header is a JSON object of percentages, e.g.
+     * {"call_count":28,"total_time":25,"total_cputime":25}.
+     *
+     *****************************************************/
+    public void onAppUsage( String appUsageHeader, long nowMillis )
+    {
+        if ( appUsageHeader == null ) return;
+
+        try
+        {
+            JSONObject usageJSONObject = new JSONObject( appUsageHeader );
+
+            mUsagePercent = Math.max( usageJSONObject.optInt( JSON_NAME_CALL_COUNT ),
+                            Math.max( usageJSONObject.optInt( JSON_NAME_TOTAL_TIME ),
+                                      usageJSONObject.optInt( JSON_NAME_TOTAL_CPUTIME ) ) );
+        }
+        catch ( JSONException je )
+        {
+            Log.e( LOG_TAG, "Unable to parse app usage: " + appUsageHeader, je );
+
+            return;
+        }
+
+        if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, "App usage = " + mUsagePercent + "%" );
+
+        if ( mUsagePercent >= PAUSE_USAGE_PERCENT )
+        {
+            Log.w( LOG_TAG, "App usage is at " + mUsagePercent + "%, pausing Graph requests" );
+
+            pauseUntil( nowMillis + PAUSE_MILLIS );
+        }
+    }
+
+
+    /*****************************************************
+     *
+     * Records a successful response, which refills the
+     * retry budget a little.
+     *
+     *****************************************************/
+    public void onSuccess()
+    {
+        mRetryTokens = Math.min( MAX_RETRY_TOKENS, mRetryTokens + 1 );
+    }
+
+
+    /*****************************************************
+     *
+     * Returns the delay before a failed request is sent
+     * again, or -1 if it shouldn't be retried.
+     *
+     * @param attempt The number of times the request has
+     *                been sent so far.
+     *
+     *****************************************************/
+    public long onError( FacebookRequestError error, int attempt, long nowMillis )
+    {
+        return ( onError( isThrottlingErrorCode( error.getErrorCode() ),
+                          error.getCategory() == FacebookRequestError.Category.TRANSIENT,
+                          attempt,
+                          nowMillis ) );
+    }
+
+
+    /*****************************************************
+     *
+     * Returns the delay before a failed request is sent
+     * again, or -1 if it shouldn't be retried, from what
+     * the error says.
+     *
+     *****************************************************/
+    long onError( boolean throttled, boolean transientError, int attempt, long nowMillis )
+    {
+        if ( ! throttled && ! transientError ) return ( -1 );
+
+        if ( attempt >= MAX_ATTEMPTS || mRetryTokens < RETRY_TOKEN_COST )
+        {
+            Log.w( LOG_TAG, "Not retrying after " + attempt + " attempt(s), " + mRetryTokens + " retry token(s) left" );
+
+            return ( -1 );
+        }
+
+        mRetryTokens -= RETRY_TOKEN_COST;
+
+        long delayMillis = backoffMillis( attempt );
+
+        // Being throttled holds back every request, not just the one that failed
+        if ( throttled ) pauseUntil( nowMillis + delayMillis );
+
+        if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, "Retrying attempt " + attempt + " in " + delayMillis + " ms" );
+
+        return ( delayMillis );
+    }
+
+
+    /*****************************************************
+     *
+     * Returns how many batches may be in flight at the
+     * current usage.
+     *
+     *****************************************************/
+    public int getMaxParallelBatches()
+    {
+        return ( mUsagePercent >= SLOW_DOWN_USAGE_PERCENT ? 1 : mMaxParallelBatches );
+    }
+
+
+    /*****************************************************
+     *
+     * Returns how long to wait before sending anything, 0 if
+     * requests may be sent now.
+     *
+     *****************************************************/
+    public long getDispatchDelayMillis( long nowMillis )
+    {
+        return ( Math.max( 0, mResumeTimeMillis - nowMillis ) );
+    }
+
+
+    /*****************************************************
+     *
+     * Returns a random delay of up to the exponential
+     * backoff for the attempt ("full jitter"), so that the
+     * requests that failed together don't retry together.
+     *
+     *****************************************************/
+    long backoffMillis( int attempt )
+    {
+        long capMillis = Math.min( MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min( attempt, 16 ) );
+
+        return ( 1 + (long)( mRandom.nextDouble() * capMillis ) );
+    }
+
+
+    /*****************************************************
+     *
+     * Returns true if the error code says a rate limit was
+     * hit.
+     *
+     *****************************************************/
+    static boolean isThrottlingErrorCode( int errorCode )
+    {
+        for ( int throttlingErrorCode : THROTTLING_ERROR_CODES )
+        {
+            if ( errorCode == throttlingErrorCode ) return ( true );
+        }
+
+        return ( false );
+    }
+
+
+    private void pauseUntil( long resumeTimeMillis )
+    {
+        mResumeTimeMillis = Math.max( mResumeTimeMillis, resumeTimeMillis );
+    }
+
+}
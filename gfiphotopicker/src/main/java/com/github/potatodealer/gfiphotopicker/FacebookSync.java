@@ -0,0 +1,611 @@
+package com.github.potatodealer.gfiphotopicker;
+
+
+///// Import(s) /////
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.github.potatodealer.gfiphotopicker.data.FacebookDBHelper;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+
+///// Class Declaration /////
+
+/*****************************************************
+ *
+ * This class syncs the Facebook albums and photos into
+ * the local database.
+ *
+ * The albums are listed page by page, and the photos of
+ * up to a configurable number of albums are fetched at
+ * the same time, each album following its own pagination
+ * cursor. Every page is written to the database as soon
+ * as it arrives, on a single writer thread.
+ *
+ * In progressive mode the loaders are notified after every
+ * page, so the buckets and grids fill in while the sync
+ * runs. Otherwise they are notified once at the end.
+ *
+ * In incremental mode the albums whose updated time
+ * hasn't changed since they were last stored are skipped.
+ * A changed album is paged only until the first photo
+ * that is already stored; if its photo count then doesn't
+ * add up, it is paged again in full. A full pass
+ * tombstones the photos it didn't see, and the albums
+ * that aren't listed any more are tombstoned at the end.
+ *
+ * In lazy mode only the first page of each album is
+ * stored, which is enough for its bucket and cover. The
+ * rest is left to a FacebookPhotoPager, when the album
+ * is opened.
+ *
+ * All the methods and listener callbacks run on the
+ * main thread.
+ *
+ *****************************************************/
+public class FacebookSync
+{
+    ////////// Static Constant(s) //////////
+
+    @SuppressWarnings( "unused" )
+    static private final String  LOG_TAG                        = "FacebookSync";
+
+    static private final boolean DEBUGGING_ENABLED              = false;
+
+    static public  final int     DEFAULT_MAX_CONCURRENT_ALBUMS  = 4;
+
+
+    ////////// Member Variable(s) //////////
+
+    private final FacebookAgent    mFacebookAgent;
+    private final FacebookDBHelper mDBHelper;
+    private final Listener         mListener;
+    private final int              mMaxConcurrentAlbums;
+
+    private final Handler          mMainHandler;
+    private final ExecutorService  mWriteExecutor;
+
+    private final Queue<PhotosCallback>  mPendingAlbumQueue;
+    private final Set<String>            mListedAlbumIdSet;
+
+    private boolean                mProgressive;
+    private boolean                mIncremental;
+    private boolean                mLazy;
+
+    // Stamped on every photo this sync sees
+    private long                   mGeneration;
+    private Map<String, FacebookDBHelper.AlbumState> mAlbumStateMap;
+    private long                   mNextBucketId;
+
+    private int                    mRunningAlbumCount;
+    private boolean                mAllAlbumsListed;
+    private boolean                mStarted;
+    private boolean                mFinished;
+    private boolean                mCancelled;
+
+
+    ////////// Constructor(s) //////////
+
+    /*****************************************************
+     *
+     * @param maxConcurrentAlbums The maximum number of albums
+     *                            whose photos are fetched at
+     *                            the same time.
+     *
+     *****************************************************/
+    public FacebookSync( FacebookAgent facebookAgent, FacebookDBHelper dbHelper, Listener listener, int maxConcurrentAlbums )
+    {
+        if ( maxConcurrentAlbums < 1 ) throw new IllegalArgumentException( "At least one album must be fetched at a time" );
+
+        mFacebookAgent       = facebookAgent;
+        mDBHelper            = dbHelper;
+        mListener            = listener;
+        mMaxConcurrentAlbums = maxConcurrentAlbums;
+
+        mMainHandler         = new Handler( Looper.getMainLooper() );
+        mWriteExecutor       = Executors.newSingleThreadExecutor();
+
+        mPendingAlbumQueue   = new ArrayDeque<>();
+        mListedAlbumIdSet    = new HashSet<>();
+    }
+
+    public FacebookSync( FacebookAgent facebookAgent, FacebookDBHelper dbHelper, Listener listener )
+    {
+        this( facebookAgent, dbHelper, listener, DEFAULT_MAX_CONCURRENT_ALBUMS );
+    }
+
+
+    ////////// Method(s) //////////
+
+    /*****************************************************
+     *
+     * Sets whether the loaders are notified after every
+     * page, rather than once at the end.
+     *
+     *****************************************************/
+    public void setProgressive( boolean progressive )
+    {
+        mProgressive = progressive;
+    }
+
+
+    /*****************************************************
+     *
+     * Sets whether the albums that are already stored are
+     * only synced for their changes.
+     *
+     *****************************************************/
+    public void setIncremental( boolean incremental )
+    {
+        mIncremental = incremental;
+    }
+
+
+    /*****************************************************
+     *
+     * Sets whether only the first page of each album is
+     * stored, leaving the album incomplete.
+     *
+     *****************************************************/
+    public void setLazy( boolean lazy )
+    {
+        mLazy = lazy;
+    }
+
+
+    /*****************************************************
+     *
+     * Starts the sync from the first page of albums, once
+     * the stored album states are read.
+     *
+     *****************************************************/
+    public void start()
+    {
+        if ( mStarted ) throw new IllegalStateException( "A sync can only be started once" );
+
+        mStarted = true;
+
+        executeWrite( new Runnable()
+            {
+            @Override
+            public void run()
+                {
+                final Map<String, FacebookDBHelper.AlbumState> albumStateMap = mDBHelper.getAlbumStates();
+                final long                                     generation    = mDBHelper.getNextSyncGeneration();
+
+                mMainHandler.post( new Runnable()
+                    {
+                    @Override
+                    public void run()
+                        {
+                        if ( mCancelled ) return;
+
+                        mAlbumStateMap = albumStateMap;
+                        mGeneration    = generation;
+
+                        // Bucket ids are never reused, not even for deleted albums
+                        mNextBucketId = 1;
+
+                        for ( FacebookDBHelper.AlbumState albumState : albumStateMap.values() )
+                        {
+                            mNextBucketId = Math.max( mNextBucketId, albumState.bucketId + 1 );
+                        }
+
+                        mFacebookAgent.resetAlbums();
+                        mFacebookAgent.getAlbums( new AlbumsCallback() );
+                        }
+                    } );
+                }
+            } );
+    }
+
+
+    /*****************************************************
+     *
+     * Stops the sync. No further request is made, the pages
+     * not written yet are dropped, and the listener isn't
+     * called any more.
+     *
+     *****************************************************/
+    public void cancel()
+    {
+        mFinished  = true;
+        mCancelled = true;
+
+        mPendingAlbumQueue.clear();
+
+        mWriteExecutor.shutdownNow();
+    }
+
+
+    /*****************************************************
+     *
+     * Returns true if the sync has neither finished nor been
+     * cancelled.
+     *
+     *****************************************************/
+    public boolean isRunning()
+    {
+        return ( mStarted && ! mFinished );
+    }
+
+
+    /*****************************************************
+     *
+     * Starts fetching the photos of pending albums, up to
+     * the concurrency limit.
+     *
+     *****************************************************/
+    private void fetchPendingAlbums()
+    {
+        while ( ! mFinished && mRunningAlbumCount < mMaxConcurrentAlbums && ! mPendingAlbumQueue.isEmpty() )
+        {
+            PhotosCallback photosCallback = mPendingAlbumQueue.remove();
+
+            mRunningAlbumCount ++;
+
+            if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, "Fetching album " + photosCallback.mAlbum.getId() + ", " + mRunningAlbumCount + " running" );
+
+            mFacebookAgent.getPhotos( photosCallback.mAlbum, photosCallback );
+        }
+
+        checkFinished();
+    }
+
+
+    /*****************************************************
+     *
+     * Notifies the listener once every album has been listed
+     * and fetched, and every page written.
+     *
+     *****************************************************/
+    private void checkFinished()
+    {
+        if ( mFinished || ! mAllAlbumsListed || mRunningAlbumCount > 0 || ! mPendingAlbumQueue.isEmpty() ) return;
+
+        mFinished = true;
+
+        final List<String> listedAlbumIdList = new ArrayList<>( mListedAlbumIdSet );
+
+        // Queued after the last write, so the listener sees every row
+        executeWrite( new Runnable()
+            {
+            @Override
+            public void run()
+                {
+                mDBHelper.tombstoneAlbums( listedAlbumIdList );
+
+                mDBHelper.notifyChange();
+
+                mMainHandler.post( new Runnable()
+                    {
+                    @Override
+                    public void run()
+                        {
+                        if ( ! mCancelled ) mListener.onSyncFinished();
+                        }
+                    } );
+                }
+            } );
+
+        mWriteExecutor.shutdown();
+    }
+
+
+    /*****************************************************
+     *
+     * Queues a write, unless the sync has been cancelled -
+     * possibly by a listener, from the callback that led
+     * here - and its executor shut down.
+     *
+     *****************************************************/
+    private void executeWrite( Runnable runnable )
+    {
+        if ( mCancelled ) return;
+
+        try
+        {
+            mWriteExecutor.execute( runnable );
+        }
+        catch ( RejectedExecutionException ree )
+        {
+            Log.e( LOG_TAG, "Write rejected after the sync stopped", ree );
+        }
+    }
+
+
+    /*****************************************************
+     *
+     * Stops the sync on an error or cancellation.
+     *
+     *****************************************************/
+    private void fail( Exception exception )
+    {
+        if ( mFinished ) return;
+
+        cancel();
+
+        if ( exception != null )
+        {
+            mListener.onSyncError( exception );
+        }
+        else
+        {
+            mListener.onSyncCancelled();
+        }
+    }
+
+
+    ////////// Inner Class(es) //////////
+
+    /*****************************************************
+     *
+     * A sync listener.
+     *
+     *****************************************************/
+    public interface Listener
+    {
+        public void onAlbumProgress( FacebookAgent.Album album, long bucketId, int photoCount, boolean complete );
+        public void onSyncFinished();
+        public void onSyncError( Exception exception );
+        public void onSyncCancelled();
+    }
+
+
+    /*****************************************************
+     *
+     * The callback of the album pages.
+     *
+     *****************************************************/
+    private class AlbumsCallback implements FacebookAgent.Callbacks
+    {
+        @Override
+        public void facOnAlbumsSuccess( List<FacebookAgent.Album> albumList, boolean moreAlbums )
+        {
+            if ( mFinished ) return;
+
+            for ( FacebookAgent.Album album : albumList )
+            {
+                mListedAlbumIdSet.add( album.getId() );
+
+                FacebookDBHelper.AlbumState albumState = mAlbumStateMap.get( album.getId() );
+
+                long bucketId = ( albumState != null ? albumState.bucketId : mNextBucketId ++ );
+
+                if ( mIncremental && albumState != null && albumState.isUpToDate( album ) )
+                {
+                    if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, "Album " + album.getId() + " is up to date" );
+
+                    mListener.onAlbumProgress( album, bucketId, Math.max( 0, album.getCount() ), true );
+
+                    continue;
+                }
+
+                // A changed album is only paged up to the photos already stored, as long as
+                // its photo count can tell whether that caught every change
+                boolean fullPass = ( ! mIncremental || albumState == null || ! albumState.complete || albumState.deleted || album.getCount() == FacebookAgent.Album.UNKNOWN_COUNT );
+
+                mPendingAlbumQueue.add( new PhotosCallback( album, bucketId, fullPass ) );
+            }
+
+            if ( moreAlbums )
+            {
+                mFacebookAgent.getAlbums( this );
+            }
+            else
+            {
+                mAllAlbumsListed = true;
+            }
+
+            fetchPendingAlbums();
+        }
+
+        @Override
+        public void facOnPhotosSuccess( List<FacebookAgent.Photo> photoList, boolean morePhotos )
+        {
+            // Not used for albums
+        }
+
+        @Override
+        public void facOnError( Exception exception )
+        {
+            fail( exception );
+        }
+
+        @Override
+        public void facOnCancel()
+        {
+            fail( null );
+        }
+    }
+
+
+    /*****************************************************
+     *
+     * The callback of the photo pages of one album.
+     *
+     *****************************************************/
+    private class PhotosCallback implements FacebookAgent.Callbacks
+    {
+        private final FacebookAgent.Album  mAlbum;
+        private final long                 mBucketId;
+
+        private boolean                    mFullPass;
+        private boolean                    mBegun;
+
+        // The photos stored so far, only used on the main thread
+        private int                        mPhotoCount;
+
+
+        PhotosCallback( FacebookAgent.Album album, long bucketId, boolean fullPass )
+        {
+            mAlbum    = album;
+            mBucketId = bucketId;
+            mFullPass = fullPass;
+        }
+
+
+        @Override
+        public void facOnAlbumsSuccess( List<FacebookAgent.Album> albumList, boolean moreAlbums )
+        {
+            // Not used for photos
+        }
+
+        @Override
+        public void facOnPhotosSuccess( final List<FacebookAgent.Photo> photoList, final boolean morePhotos )
+        {
+            if ( mFinished ) return;
+
+            final boolean begin    = ! mBegun;
+            final boolean fullPass = mFullPass;
+            final int     pageSize = ( photoList != null ? photoList.size() : 0 );
+
+            // A lazy album may stop after this page, so it is only reported once stored
+            final boolean waitForWrite = ( ! fullPass || mLazy );
+
+            mBegun = true;
+
+            // Report the progress once the page is stored, so the listener can query it
+            executeWrite( new Runnable()
+                {
+                @Override
+                public void run()
+                    {
+                    if ( begin ) mDBHelper.beginAlbum( mAlbum, mBucketId );
+
+                    final int addedCount = ( pageSize > 0 ? mDBHelper.addFacebookPhotos( photoList, mBucketId, mGeneration ) : 0 );
+
+                    if ( mProgressive && pageSize > 0 ) mDBHelper.notifyChange();
+
+                    mMainHandler.post( new Runnable()
+                        {
+                        @Override
+                        public void run()
+                            {
+                            if ( mCancelled ) return;
+
+                            mPhotoCount += pageSize;
+
+                            mListener.onAlbumProgress( mAlbum, mBucketId, mPhotoCount, false );
+
+                            // A delta pass stops at the first photo that was already stored
+                            if ( waitForWrite ) fetchNextPage( morePhotos && ( fullPass || addedCount == pageSize ) );
+                            }
+                        } );
+                    }
+                } );
+
+            // A full pass doesn't wait for the page to be stored
+            if ( ! waitForWrite ) fetchNextPage( morePhotos );
+        }
+
+        @Override
+        public void facOnError( Exception exception )
+        {
+            fail( exception );
+        }
+
+        @Override
+        public void facOnCancel()
+        {
+            fail( null );
+        }
+
+
+        /*****************************************************
+         *
+         * Fetches the next page, or completes the album. In
+         * lazy mode the album is left incomplete after its
+         * first page.
+         *
+         *****************************************************/
+        private void fetchNextPage( boolean morePhotos )
+        {
+            // The listener may have cancelled the sync from its progress callback
+            if ( mCancelled ) return;
+
+            if ( ! morePhotos )
+            {
+                completeAlbum();
+            }
+            else if ( ! mLazy )
+            {
+                // Follow this album's cursor, the other albums carry on in parallel
+                mFacebookAgent.getPhotos( mAlbum, this );
+            }
+            else
+            {
+                mListener.onAlbumProgress( mAlbum, mBucketId, Math.max( mPhotoCount, mAlbum.getCount() ), true );
+
+                mRunningAlbumCount --;
+
+                fetchPendingAlbums();
+            }
+        }
+
+
+        /*****************************************************
+         *
+         * Completes the album once its pages are stored. If a
+         * delta pass leaves a different number of photos than
+         * the album has, the album is paged again in full.
+         *
+         *****************************************************/
+        private void completeAlbum()
+        {
+            final boolean fullPass = mFullPass;
+
+            executeWrite( new Runnable()
+                {
+                @Override
+                public void run()
+                    {
+                    final long liveCount = mDBHelper.completeAlbum( mAlbum, mBucketId, mGeneration, fullPass );
+
+                    mMainHandler.post( new Runnable()
+                        {
+                        @Override
+                        public void run()
+                            {
+                            if ( mCancelled ) return;
+
+                            if ( ! fullPass && liveCount != mAlbum.getCount() )
+                            {
+                                if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, "Album " + mAlbum.getId() + " has " + liveCount + " of " + mAlbum.getCount() + " photos, paging it in full" );
+
+                                // Stored as incomplete again, until the full pass completes
+                                mFullPass   = true;
+                                mBegun      = false;
+                                mPhotoCount = 0;
+
+                                mFacebookAgent.resetPhotos( mAlbum );
+                                mFacebookAgent.getPhotos( mAlbum, PhotosCallback.this );
+
+                                return;
+                            }
+
+                            mListener.onAlbumProgress( mAlbum, mBucketId, (int)liveCount, true );
+
+                            mRunningAlbumCount --;
+
+                            fetchPendingAlbums();
+                            }
+                        } );
+                    }
+                } );
+        }
+    }
+
+}
@@ -3,32 +3,41 @@ package com.github.potatodealer.gfiphotopicker;
 
 ///// Import(s) /////
 
-import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.app.Activity;
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.os.Process;
 import android.util.Log;
 import android.widget.ImageView;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-import org.json.JSONTokener;
+import com.github.potatodealer.gfiphotopicker.rest.InstagramApiClient;
+import com.github.potatodealer.gfiphotopicker.rest.model.Data;
+import com.github.potatodealer.gfiphotopicker.rest.model.Image;
+import com.github.potatodealer.gfiphotopicker.rest.model.Images;
+import com.github.potatodealer.gfiphotopicker.rest.model.Pagination;
+import com.github.potatodealer.gfiphotopicker.rest.model.Response;
 
-import cz.msebera.android.httpclient.HttpResponse;
-import cz.msebera.android.httpclient.client.HttpClient;
+import cz.msebera.android.httpclient.client.methods.CloseableHttpResponse;
 import cz.msebera.android.httpclient.client.methods.HttpGet;
-import cz.msebera.android.httpclient.impl.client.DefaultHttpClient;
 
 
 ///// Class Declaration /////
@@ -52,23 +61,16 @@ public class InstagramAgent
 
     static private final String  MEDIA_URL_ENDPOINT                    = "https://api.instagram.com/v1/users/self/media/recent";
 
-
-    static private final String  JSON_NAME_DATA                        = "data";
-    static private final String  JSON_NAME_ID                          = "id";
-    static private final String  JSON_NAME_IMAGES                      = "images";
-    static private final String  JSON_NAME_THUMBNAIL                   = "thumbnail";
-    static private final String  JSON_NAME_LOW_RESOLUTION              = "low_resolution";
-    static private final String  JSON_NAME_STANDARD_RESOLUTION         = "standard_resolution";
-    static private final String  JSON_NAME_PAGINATION                  = "pagination";
-    static private final String  JSON_NAME_NEXT_URL                    = "next_url";
-
-    static private final String  JSON_NAME_URL                         = "url";
-    static private final String  JSON_NAME_WIDTH                       = "width";
-    static private final String  JSON_NAME_HEIGHT                      = "height";
+    // The requests get their own threads, rather than queueing behind the host app's AsyncTasks
+    static private final int     MAX_REQUEST_THREADS                   = 2;
+    static private final int     MAX_QUEUED_REQUESTS                   = 8;
+    static private final long    REQUEST_THREAD_KEEP_ALIVE_SECONDS     = 30;
 
 
     ////////// Static Variable(s) //////////
 
+    static private final ThreadPoolExecutor  sRequestExecutor;
+
 
     ////////// Member Variable(s) //////////
 
@@ -77,11 +79,47 @@ public class InstagramAgent
     private String           mRedirectUri;
     private Callbacks mCallback;
 
-    private String           mNextPhotosPageRequestURL;
+    // Read by the request threads, only written on the main thread
+    private volatile String  mNextPhotosPageRequestURL;
+
+    private Handler          mMainHandler;
+    private List<RequestHandle>  mRequestHandleList;
 
 
     ////////// Static Initialiser(s) //////////
 
+    static
+    {
+        final AtomicInteger threadCount = new AtomicInteger();
+
+        sRequestExecutor = new ThreadPoolExecutor(
+                MAX_REQUEST_THREADS,
+                MAX_REQUEST_THREADS,
+                REQUEST_THREAD_KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>( MAX_QUEUED_REQUESTS ),
+                new ThreadFactory()
+                    {
+                    @Override
+                    public Thread newThread( final Runnable runnable )
+                        {
+                        return ( new Thread( new Runnable()
+                            {
+                            @Override
+                            public void run()
+                                {
+                                Process.setThreadPriority( Process.THREAD_PRIORITY_BACKGROUND );
+
+                                runnable.run();
+                                }
+                            }, LOG_TAG + " #" + threadCount.incrementAndGet() ) );
+                        }
+                    } );
+
+        // The threads go away when there is nothing to load
+        sRequestExecutor.allowCoreThreadTimeOut( true );
+    }
+
 
     ////////// Static Method(s) //////////
 
@@ -172,6 +210,9 @@ public class InstagramAgent
         mClientId    = clientId;
         mRedirectUri = redirectUri;
         mCallback    = callback;
+
+        mMainHandler       = new Handler( Looper.getMainLooper() );
+        mRequestHandleList = new ArrayList<>();
     }
 
 
@@ -193,14 +234,49 @@ public class InstagramAgent
 
     /*****************************************************
      *
-     * Loads the next available page of photos.
+     * Loads the next available page of photos. The returned
+     * handle cancels the request.
      *
      *****************************************************/
-    public void getPhotos()
+    public RequestHandle getPhotos()
     {
         if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, "getPhotos( photosCallback )" );
 
-        new MediaRequestTask( mCallback ).execute();
+        final MediaRequest mediaRequest = new MediaRequest( mCallback );
+
+        mRequestHandleList.add( mediaRequest );
+
+        try
+        {
+            mediaRequest.mFuture = sRequestExecutor.submit( mediaRequest );
+        }
+        catch ( final RejectedExecutionException ree )
+        {
+            Log.e( LOG_TAG, "Too many requests queued", ree );
+
+            mediaRequest.mException = ree;
+
+            mMainHandler.post( mediaRequest.mDeliverRunnable );
+        }
+
+        return ( mediaRequest );
+    }
+
+
+    /*****************************************************
+     *
+     * Cancels all the requests in progress. None of them
+     * calls back afterwards.
+     *
+     *****************************************************/
+    public void cancelRequests()
+    {
+        if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, "cancelRequests()" );
+
+        for ( RequestHandle requestHandle : new ArrayList<>( mRequestHandleList ) )
+        {
+            requestHandle.cancel();
+        }
     }
 
 
@@ -222,27 +298,82 @@ public class InstagramAgent
 
     /*****************************************************
      *
-     * A background task that requests recent media.
+     * A handle on a request in progress.
+     *
+     * Cancelling it aborts the HTTP request, if it has been
+     * sent, and stops it calling back. It must be cancelled
+     * from the main thread.
      *
      *****************************************************/
-    private class MediaRequestTask extends AsyncTask<Void, Void, Void>
+    public abstract class RequestHandle
+    {
+        private volatile boolean  mCancelled;
+
+        // Set by the request, as it goes along
+        volatile HttpGet          mHttpRequest;
+        Future<?>                 mFuture;
+
+
+        public void cancel()
+        {
+            if ( mCancelled ) return;
+
+            mCancelled = true;
+
+            HttpGet httpRequest = mHttpRequest;
+
+            if ( httpRequest != null ) httpRequest.abort();
+
+            if ( mFuture != null ) mFuture.cancel( true );
+
+            mRequestHandleList.remove( this );
+        }
+
+
+        public boolean isCancelled()
+        {
+            return ( mCancelled );
+        }
+    }
+
+
+    /*****************************************************
+     *
+     * A background request for recent media. The result is
+     * delivered on the main thread, unless the request was
+     * cancelled.
+     *
+     *****************************************************/
+    private class MediaRequest extends RequestHandle implements Runnable
     {
         private Callbacks mCallback;
 
         private int                   mHTTPStatusCode;
         private Exception             mException;
         private List<InstagramPhoto>  mPhotoList;
+        private String                mNextPageRequestURL;
 
+        private final Runnable        mDeliverRunnable = new Runnable()
+            {
+            @Override
+            public void run()
+                {
+                deliver();
+                }
+            };
 
-        MediaRequestTask( Callbacks callback )
+
+        MediaRequest( Callbacks callback )
         {
             mCallback = callback;
         }
 
 
         @Override
-        protected Void doInBackground( Void... voids )
+        public void run()
         {
+            if ( isCancelled() ) return;
+
             String urlString = ( mNextPhotosPageRequestURL != null ? mNextPhotosPageRequestURL : MEDIA_URL_ENDPOINT );
 
             if ( ! urlString.contains( "access_token" ) )
@@ -255,58 +386,66 @@ public class InstagramAgent
                 urlString += "&count=33";
             }
 
-            HttpClient httpclient = new DefaultHttpClient();
-            HttpGet request    = new HttpGet( urlString );
+            HttpGet request = new HttpGet( urlString );
+
+            mHttpRequest = request;
 
             try
             {
+                // A cancel that came before the request was visible wouldn't have aborted it
+                if ( isCancelled() ) return;
+
                 if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, "Executing query: " + urlString );
 
-                HttpResponse response = httpclient.execute( request );
-                BufferedReader reader = new BufferedReader( new InputStreamReader( response.getEntity().getContent(), "UTF-8" ) );
-                StringBuilder builder = new StringBuilder();
-                for ( String line = null; ( line = reader.readLine() ) != null; )
+                // The shared transport keeps the connection open for the next page
+                CloseableHttpResponse response = InstagramTransport.getInstance().execute( request );
+
+                try
                 {
-                    builder.append( line ).append( "\n" );
-                }
+                    mHTTPStatusCode = response.getStatusLine().getStatusCode();
 
-                JSONTokener t = new JSONTokener( builder.toString() );
-                JSONObject json = new JSONObject( t );
-                mHTTPStatusCode = response.getStatusLine().getStatusCode();
+                    if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, "Status code = " + mHTTPStatusCode );
 
-                if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, "Status code = " + mHTTPStatusCode );
+                    if ( mHTTPStatusCode == 200 )
+                    {
+                        // The page is parsed as it is read, into only the fields we use
+                        Reader reader = new InputStreamReader( response.getEntity().getContent(), "UTF-8" );
 
-                if ( mHTTPStatusCode == 400 || mHTTPStatusCode == 401 )
-                {
-                }
-                else if ( mHTTPStatusCode != 200 )
-                {
-                    // TODO
-                }
-                else
-                {
-                    mPhotoList                = parsePhotosFromResponseJSON( json );
-                    mNextPhotosPageRequestURL = parseNextPageRequestFromResponseJSON( json );
+                        Response mediaResponse = InstagramApiClient.getGson().fromJson( reader, Response.class );
 
-                    if ( DEBUGGING_ENABLED )
-                    {
-                        Log.d( LOG_TAG, "Number of photos returned    : " + mPhotoList.size() );
-                        Log.d( LOG_TAG, "Next photos page request URL : " + mNextPhotosPageRequestURL );
+                        mPhotoList          = parsePhotosFromResponse( mediaResponse );
+                        mNextPageRequestURL = parseNextPageRequestFromResponse( mediaResponse );
+
+                        if ( DEBUGGING_ENABLED )
+                        {
+                            Log.d( LOG_TAG, "Number of photos returned    : " + mPhotoList.size() );
+                            Log.d( LOG_TAG, "Next photos page request URL : " + mNextPageRequestURL );
+                        }
                     }
                 }
-
+                finally
+                {
+                    response.close();
+                }
             }
             catch ( Exception exception )
             {
+                // An aborted request fails, but nobody is waiting for it
+                if ( isCancelled() ) return;
+
                 mException = exception;
             }
 
-            return ( null );
+            mMainHandler.post( mDeliverRunnable );
         }
 
-        @Override
-        protected void onPostExecute( Void voidResult )
+
+        private void deliver()
         {
+            if ( isCancelled() ) return;
+
+            mRequestHandleList.remove( this );
+
             if ( mException != null )
             {
                 mCallback.iaOnError( mException );
@@ -326,6 +465,9 @@ public class InstagramAgent
             }
             else
             {
+                // The cursor only moves on for a page that was delivered
+                mNextPhotosPageRequestURL = mNextPageRequestURL;
+
                 mCallback.iaOnPhotosSuccess( mPhotoList, mNextPhotosPageRequestURL != null );
             }
         }
@@ -333,59 +475,39 @@ public class InstagramAgent
 
         /*****************************************************
          *
-         * Parses an Instagram media response, and returns a list
-         * of photos.
+         * Returns the photos of an Instagram media response.
          *
          *****************************************************/
-        private List<InstagramPhoto> parsePhotosFromResponseJSON( JSONObject json ) throws JSONException
+        private List<InstagramPhoto> parsePhotosFromResponse( Response mediaResponse )
         {
-            if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, "parsePhotosFromResponseJSON( json = " + json.toString() + " )" );
-
             final ArrayList<InstagramPhoto> photos = new ArrayList<>();
 
-            JSONArray data = json.getJSONArray( JSON_NAME_DATA );
+            List<Data> dataList = ( mediaResponse != null ? mediaResponse.getData() : null );
+
+            if ( dataList == null ) return ( photos );
 
-            if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, "Found " + data.length() + " image(s)" );
+            if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, "Found " + dataList.size() + " image(s)" );
 
-            for ( int i = 0; i < data.length(); ++i )
+            for ( Data data : dataList )
             {
                 try
                 {
-                    JSONObject photoJSON = data.getJSONObject( i );
-
-                    String id = photoJSON.getString( JSON_NAME_ID );
-
-                    JSONObject images = photoJSON.getJSONObject( JSON_NAME_IMAGES );
-
-                    JSONObject thumbnail     = images.getJSONObject( JSON_NAME_THUMBNAIL );
-                    JSONObject lowResolution = images.getJSONObject( JSON_NAME_LOW_RESOLUTION );
-                    JSONObject standard      = images.getJSONObject( JSON_NAME_STANDARD_RESOLUTION );
-
-                    String thumbnailURL     = adjustedURL( thumbnail.getString( JSON_NAME_URL ) );
-                    int    thumbnailWidth   = thumbnail.getInt( JSON_NAME_WIDTH );
-                    int    thumbnailHeight  = thumbnail.getInt( JSON_NAME_WIDTH );
-
-                    String lowResolutionURL = adjustedURL( lowResolution.getString( JSON_NAME_URL ) );
-                    int    lowResWidth      = lowResolution.getInt( JSON_NAME_WIDTH );
-                    int    lowResHeight     = lowResolution.getInt( JSON_NAME_HEIGHT );
-
-                    String standardURL      = adjustedURL( standard.getString( JSON_NAME_URL ) );
-                    int    standardWidth    = standard.getInt( JSON_NAME_WIDTH );
-                    int    standardHeight   = standard.getInt( JSON_NAME_HEIGHT );
+                    Images images = data.getImages();
 
                     if ( DEBUGGING_ENABLED )
                     {
-                        Log.d( LOG_TAG, "Thumbnail      : " + thumbnailURL );
-                        Log.d( LOG_TAG, "Low resolution : " + lowResolutionURL );
-                        Log.d( LOG_TAG, "Standard       : " + standardURL );
+                        Log.d( LOG_TAG, "Thumbnail      : " + images.getThumbnail().getUrl() );
+                        Log.d( LOG_TAG, "Low resolution : " + images.getLow_resolution().getUrl() );
+                        Log.d( LOG_TAG, "Standard       : " + images.getStandard_resolution().getUrl() );
                     }
 
                     // We use the low resolution image for the picking; the thumbnail image is too
                     // low resolution for larger devices.
-                    InstagramPhoto photo = new InstagramPhoto( id );
-                    photo.addImage( thumbnailURL, thumbnailWidth, thumbnailHeight );
-                    photo.addImage( lowResolutionURL, lowResWidth, lowResHeight );
-                    photo.addImage( standardURL, standardWidth, standardHeight );
+                    InstagramPhoto photo = new InstagramPhoto( data.getId() );
+                    if ( data.getCreatedTime() != null ) photo.setCreatedTime( Long.parseLong( data.getCreatedTime() ) );
+                    addImage( photo, images.getThumbnail() );
+                    addImage( photo, images.getLow_resolution() );
+                    addImage( photo, images.getStandard_resolution() );
 
                     photos.add( photo );
                 }
@@ -399,6 +521,12 @@ public class InstagramAgent
         }
 
 
+        private void addImage( InstagramPhoto photo, Image image ) throws MalformedURLException
+        {
+            photo.addImage( adjustedURL( image.getUrl() ), Integer.parseInt( image.getWidth() ), Integer.parseInt( image.getHeight() ) );
+        }
+
+
         private String adjustedURL( String originalURL )
         {
             if ( originalURL.startsWith( "http://" ) ) return ( originalURL.replace( "http://", "https://" ) );
@@ -407,11 +535,10 @@ public class InstagramAgent
         }
 
 
-        private String parseNextPageRequestFromResponseJSON( JSONObject json ) throws JSONException
+        private String parseNextPageRequestFromResponse( Response mediaResponse )
         {
-            JSONObject pagination = json.getJSONObject( JSON_NAME_PAGINATION );
-            String nextPageURL = pagination.optString( JSON_NAME_NEXT_URL, null );
-            return nextPageURL;
+            Pagination pagination = ( mediaResponse != null ? mediaResponse.getPagination() : null );
+            return ( pagination != null ? pagination.getNext_url() : null );
         }
 
     }
@@ -438,6 +565,7 @@ public class InstagramAgent
         ////////// Member Variable(s) //////////
 
         private String       mId;
+        private long         mCreatedTime;
         private List<Image>  mImageList;
         private Image        mThumbnailImage;
         private Image        mLargestImage;
@@ -523,6 +651,39 @@ public class InstagramAgent
             return ( addImage( imageSourceURLString, width, Image.UNKNOWN_DIMENSION ) );
         }
 
+        /*****************************************************
+         *
+         * Returns the Instagram id of the media.
+         *
+         *****************************************************/
+        public String getId()
+        {
+            return ( mId );
+        }
+
+
+        /*****************************************************
+         *
+         * Sets the creation time, in seconds since the epoch.
+         *
+         *****************************************************/
+        public void setCreatedTime( long createdTime )
+        {
+            mCreatedTime = createdTime;
+        }
+
+
+        /*****************************************************
+         *
+         * Returns the creation time, in seconds since the epoch.
+         *
+         *****************************************************/
+        public long getCreatedTime()
+        {
+            return ( mCreatedTime );
+        }
+
+
         /*****************************************************
          *
          * Returns the Width of the full image.
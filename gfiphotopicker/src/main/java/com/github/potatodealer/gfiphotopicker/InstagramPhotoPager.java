@@ -0,0 +1,300 @@
+package com.github.potatodealer.gfiphotopicker;
+
+
+///// Import(s) /////
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.github.potatodealer.gfiphotopicker.data.InstagramDBHelper;
+import com.github.potatodealer.gfiphotopicker.data.InstagramProvider;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
+///// Class Declaration /////
+
+/*****************************************************
+ *
+ * This class loads the Instagram feed into the local
+ * database a page at a time, keeping the download of
+ * the next page going while the previous one is being
+ * stored.
+ *
+ * Each page is shown as soon as it is stored. Loading
+ * pauses once the pages loaded reach a number of photos
+ * ahead of the last one visible, and carries on as the
+ * grid is scrolled towards its end.
+ *
+ * Once the whole feed has been stored, loading only
+ * refreshes it: the pages are fetched one after the
+ * other until one holds a photo already stored, which is
+ * usually the first.
+ *
+ * All the methods run on the main thread.
+ *
+ *****************************************************/
+public class InstagramPhotoPager
+{
+    ////////// Static Constant(s) //////////
+
+    @SuppressWarnings( "unused" )
+    static private final String  LOG_TAG                  = "InstagramPhotoPager";
+
+    static private final boolean DEBUGGING_ENABLED        = false;
+
+    // About three pages of 33 photos
+    static public  final int     DEFAULT_PAGE_AHEAD_ITEMS = 100;
+
+
+    ////////// Member Variable(s) //////////
+
+    private final InstagramAgent     mInstagramAgent;
+    private final InstagramDBHelper  mDBHelper;
+    private final Context            mContext;
+    private final Callbacks          mCallbacks;
+
+    private final Handler            mMainHandler;
+    private final ExecutorService    mWriteExecutor;
+
+    private int                      mPageAheadItems;
+
+    private InstagramAgent.RequestHandle  mRequestHandle;
+
+    private int                      mFetchedCount;
+    private int                      mStoredPageCount;
+    private int                      mLastVisiblePosition;
+
+    private boolean                  mRefreshing;
+    private boolean                  mLoading;
+    private boolean                  mMorePhotos;
+    private boolean                  mCancelled;
+
+
+    ////////// Constructor(s) //////////
+
+    public InstagramPhotoPager( InstagramAgent instagramAgent, InstagramDBHelper dbHelper, Context context, Callbacks callbacks )
+    {
+        mInstagramAgent = instagramAgent;
+        mDBHelper       = dbHelper;
+        mContext        = context.getApplicationContext();
+        mCallbacks      = callbacks;
+
+        mMainHandler    = new Handler( Looper.getMainLooper() );
+        mWriteExecutor  = Executors.newSingleThreadExecutor();
+
+        mPageAheadItems = DEFAULT_PAGE_AHEAD_ITEMS;
+    }
+
+
+    ////////// Method(s) //////////
+
+    /*****************************************************
+     *
+     * Sets how many photos may be loaded ahead of the last
+     * visible one before loading pauses.
+     *
+     *****************************************************/
+    public void setPageAheadItems( int pageAheadItems )
+    {
+        mPageAheadItems = pageAheadItems;
+    }
+
+
+    /*****************************************************
+     *
+     * Starts loading the feed from its first page.
+     *
+     *****************************************************/
+    public void start()
+    {
+        if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, "start()" );
+
+        mMorePhotos = true;
+        mLoading    = true;
+
+        mInstagramAgent.resetPhotos();
+
+        mWriteExecutor.execute( new Runnable()
+            {
+            @Override
+            public void run()
+                {
+                final boolean feedComplete = mDBHelper.isFeedComplete();
+
+                mMainHandler.post( new Runnable()
+                    {
+                    @Override
+                    public void run()
+                        {
+                        if ( mCancelled ) return;
+
+                        mRefreshing = feedComplete;
+                        mLoading    = false;
+
+                        fetchNextPageIfNeeded();
+                        }
+                    } );
+                }
+            } );
+    }
+
+
+    /*****************************************************
+     *
+     * Called as the grid scrolls, with the position of the
+     * last visible photo. Resumes loading if it paused.
+     *
+     *****************************************************/
+    public void onScrolled( int lastVisiblePosition )
+    {
+        if ( lastVisiblePosition <= mLastVisiblePosition ) return;
+
+        mLastVisiblePosition = lastVisiblePosition;
+
+        fetchNextPageIfNeeded();
+    }
+
+
+    /*****************************************************
+     *
+     * Called with a page of photos. The next page is
+     * requested straight away, if it is needed, and this
+     * one is stored while it downloads. A refresh only
+     * requests it once this one is stored.
+     *
+     *****************************************************/
+    public void onPhotosSuccess( final List<InstagramAgent.InstagramPhoto> photoList, final boolean morePhotos )
+    {
+        if ( mCancelled ) return;
+
+        if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, ( photoList != null ? photoList.size() : 0 ) + " photo(s), more = " + morePhotos );
+
+        mLoading       = false;
+        mMorePhotos    = morePhotos;
+        mRequestHandle = null;
+
+        if ( photoList != null ) mFetchedCount += photoList.size();
+
+        // A refresh waits to find out whether this page reached the stored photos
+        if ( ! mRefreshing ) fetchNextPageIfNeeded();
+
+        mWriteExecutor.execute( new Runnable()
+            {
+            @Override
+            public void run()
+                {
+                final int knownCount = ( photoList != null && photoList.size() > 0 ? mDBHelper.addInstagramPhotos( photoList, ! morePhotos ) : 0 );
+
+                InstagramProvider.notifyChange( mContext );
+
+                mMainHandler.post( new Runnable()
+                    {
+                    @Override
+                    public void run()
+                        {
+                        if ( mCancelled ) return;
+
+                        mCallbacks.ipOnPageStored( ++ mStoredPageCount == 1 );
+
+                        if ( ! mRefreshing ) return;
+
+                        if ( knownCount > 0 )
+                        {
+                            if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, "Refreshed up to a stored photo" );
+
+                            mMorePhotos = false;
+                        }
+                        else
+                        {
+                            fetchNextPageIfNeeded();
+                        }
+                        }
+                    } );
+                }
+            } );
+    }
+
+
+    /*****************************************************
+     *
+     * Called when a page couldn't be loaded. Loading stops,
+     * the photos already stored are still shown.
+     *
+     *****************************************************/
+    public void onError()
+    {
+        mLoading       = false;
+        mMorePhotos    = false;
+        mRequestHandle = null;
+    }
+
+
+    /*****************************************************
+     *
+     * Returns true if there are photos still to load.
+     *
+     *****************************************************/
+    public boolean hasMorePhotos()
+    {
+        return ( mMorePhotos && ! mCancelled );
+    }
+
+
+    /*****************************************************
+     *
+     * Stops loading. The page being downloaded is aborted,
+     * and the pages not stored yet are dropped.
+     *
+     *****************************************************/
+    public void cancel()
+    {
+        mCancelled = true;
+
+        if ( mRequestHandle != null ) mRequestHandle.cancel();
+
+        mWriteExecutor.shutdownNow();
+    }
+
+
+    /*****************************************************
+     *
+     * Requests the next page, unless one is already
+     * loading, there are no more, or enough photos are
+     * loaded ahead of the visible ones.
+     *
+     *****************************************************/
+    private void fetchNextPageIfNeeded()
+    {
+        if ( mCancelled || mLoading || ! mMorePhotos ) return;
+
+        if ( mFetchedCount - mLastVisiblePosition > mPageAheadItems )
+        {
+            if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, "Paused at " + mFetchedCount + " photo(s)" );
+
+            return;
+        }
+
+        mLoading = true;
+
+        mRequestHandle = mInstagramAgent.getPhotos();
+    }
+
+
+    ////////// Inner Class(es) //////////
+
+    /*****************************************************
+     *
+     * A callback interface.
+     *
+     *****************************************************/
+    public interface Callbacks
+    {
+        public void ipOnPageStored( boolean firstPage );
+    }
+
+}
@@ -0,0 +1,229 @@
+package com.github.potatodealer.gfiphotopicker;
+
+
+///// Import(s) /////
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import cz.msebera.android.httpclient.HttpConnection;
+import cz.msebera.android.httpclient.HttpConnectionMetrics;
+import cz.msebera.android.httpclient.client.config.RequestConfig;
+import cz.msebera.android.httpclient.client.methods.CloseableHttpResponse;
+import cz.msebera.android.httpclient.client.methods.HttpGet;
+import cz.msebera.android.httpclient.client.protocol.HttpClientContext;
+import cz.msebera.android.httpclient.impl.client.CloseableHttpClient;
+import cz.msebera.android.httpclient.impl.client.HttpClientBuilder;
+import cz.msebera.android.httpclient.impl.conn.PoolingHttpClientConnectionManager;
+
+
+///// Class Declaration /////
+
+/*****************************************************
+ *
+ * This class is the HTTP transport of the Instagram
+ * source. One pooled client is shared by all the pages
+ * and picker sessions, so that the connection to the API
+ * is kept alive between pages instead of being set up
+ * again, with a TLS handshake, for each one.
+ *
+ * Responses are requested gzipped, and are decompressed
+ * as they are read.
+ *
+ * The transport counts the requests that went out on a
+ * reused connection, and the time to the response
+ * headers, so the saving can be read from its getters.
+ *
+ *****************************************************/
+public class InstagramTransport
+{
+    ////////// Static Constant(s) //////////
+
+    @SuppressWarnings( "unused" )
+    static private final String  LOG_TAG                            = "InstagramTransport";
+
+    static private final boolean DEBUGGING_ENABLED                  = false;
+
+    static private final int     MAX_CONNECTIONS                    = 4;
+    static private final int     MAX_CONNECTIONS_PER_ROUTE          = 2;
+
+    // Connections idle for longer than this are closed rather than reused
+    static private final long    MAX_IDLE_MILLIS                    = 30 * 1000;
+
+    static public  final int     DEFAULT_CONNECT_TIMEOUT_MILLIS     = 15 * 1000;
+    static public  final int     DEFAULT_SOCKET_TIMEOUT_MILLIS      = 30 * 1000;
+
+
+    ////////// Static Variable(s) //////////
+
+    static private InstagramTransport  sInstance;
+
+
+    ////////// Member Variable(s) //////////
+
+    private final PoolingHttpClientConnectionManager  mConnectionManager;
+    private final CloseableHttpClient                 mHttpClient;
+
+    private volatile RequestConfig                    mRequestConfig;
+
+    private int                                       mRequestCount;
+    private int                                       mReusedConnectionCount;
+    private long                                      mTotalLatencyMillis;
+
+
+    ////////// Static Method(s) //////////
+
+    /*****************************************************
+     *
+     * Returns the shared transport.
+     *
+     *****************************************************/
+    static public synchronized InstagramTransport getInstance()
+    {
+        if ( sInstance == null ) sInstance = new InstagramTransport();
+
+        return ( sInstance );
+    }
+
+
+    ////////// Constructor(s) //////////
+
+    private InstagramTransport()
+    {
+        mConnectionManager = new PoolingHttpClientConnectionManager();
+        mConnectionManager.setMaxTotal( MAX_CONNECTIONS );
+        mConnectionManager.setDefaultMaxPerRoute( MAX_CONNECTIONS_PER_ROUTE );
+
+        // The builder keeps connections alive for as long as the server allows, and
+        // asks for gzipped content
+        mHttpClient = HttpClientBuilder.create()
+                .setConnectionManager( mConnectionManager )
+                .build();
+
+        setTimeouts( DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_SOCKET_TIMEOUT_MILLIS );
+    }
+
+
+    ////////// Method(s) //////////
+
+    /*****************************************************
+     *
+     * Sets the timeouts for connecting, and for waiting for
+     * data once connected. They apply to the requests
+     * executed from then on.
+     *
+     *****************************************************/
+    public void setTimeouts( int connectTimeoutMillis, int socketTimeoutMillis )
+    {
+        mRequestConfig = RequestConfig.custom()
+                .setConnectionRequestTimeout( connectTimeoutMillis )
+                .setConnectTimeout( connectTimeoutMillis )
+                .setSocketTimeout( socketTimeoutMillis )
+                .build();
+    }
+
+
+    /*****************************************************
+     *
+     * Executes a request. The response must be closed once
+     * its content has been read, which returns the
+     * connection to the pool.
+     *
+     *****************************************************/
+    public CloseableHttpResponse execute( HttpGet request ) throws IOException
+    {
+        mConnectionManager.closeExpiredConnections();
+        mConnectionManager.closeIdleConnections( MAX_IDLE_MILLIS, TimeUnit.MILLISECONDS );
+
+        request.setConfig( mRequestConfig );
+
+        HttpClientContext context = HttpClientContext.create();
+
+        long startMillis = SystemClock.elapsedRealtime();
+
+        CloseableHttpResponse response = mHttpClient.execute( request, context );
+
+        recordRequest( SystemClock.elapsedRealtime() - startMillis, wasConnectionReused( context ) );
+
+        return ( response );
+    }
+
+
+    /*****************************************************
+     *
+     * Returns true if the connection of a request had
+     * already carried an earlier one.
+     *
+     *****************************************************/
+    private boolean wasConnectionReused( HttpClientContext context )
+    {
+        try
+        {
+            HttpConnection connection = context.getConnection();
+
+            if ( connection == null ) return ( false );
+
+            HttpConnectionMetrics metrics = connection.getMetrics();
+
+            return ( metrics != null && metrics.getRequestCount() > 1 );
+        }
+        catch ( RuntimeException re )
+        {
+            // The connection was already released
+            return ( false );
+        }
+    }
+
+
+    private synchronized void recordRequest( long latencyMillis, boolean connectionReused )
+    {
+        mRequestCount ++;
+        mTotalLatencyMillis += latencyMillis;
+
+        if ( connectionReused ) mReusedConnectionCount ++;
+
+        if ( DEBUGGING_ENABLED )
+        {
+            Log.d( LOG_TAG, "Response headers in " + latencyMillis + " ms, connection reused = " + connectionReused
+                    + " (" + mReusedConnectionCount + " of " + mRequestCount + " reused, average " + ( mTotalLatencyMillis / mRequestCount ) + " ms)" );
+        }
+    }
+
+
+    /*****************************************************
+     *
+     * Returns the number of requests executed.
+     *
+     *****************************************************/
+    public synchronized int getRequestCount()
+    {
+        return ( mRequestCount );
+    }
+
+
+    /*****************************************************
+     *
+     * Returns the number of requests that reused a pooled
+     * connection.
+     *
+     *****************************************************/
+    public synchronized int getReusedConnectionCount()
+    {
+        return ( mReusedConnectionCount );
+    }
+
+
+    /*****************************************************
+     *
+     * Returns the average time to the response headers.
+     *
+     *****************************************************/
+    public synchronized long getAverageLatencyMillis()
+    {
+        return ( mRequestCount > 0 ? mTotalLatencyMillis / mRequestCount : 0 );
+    }
+
+}
@@ -3,7 +3,6 @@ package com.github.potatodealer.gfiphotopicker.activity;
 import android.annotation.TargetApi;
 import android.app.Activity;
 import android.content.Intent;
-import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
 import android.support.annotation.IntRange;
@@ -27,13 +26,15 @@ import android.widget.CheckedTextView;
 
 import com.github.potatodealer.gfiphotopicker.R;
 import com.github.potatodealer.gfiphotopicker.adapter.GalleryPreviewAdapter;
+import com.github.potatodealer.gfiphotopicker.data.GalleryDimensionIndex;
 import com.github.potatodealer.gfiphotopicker.data.GalleryMediaLoader;
+import com.github.potatodealer.gfiphotopicker.data.GallerySnapshot;
+import com.github.potatodealer.gfiphotopicker.data.SelectionStore;
 import com.github.potatodealer.gfiphotopicker.util.transition.MediaSharedElementCallback;
 import com.github.potatodealer.gfiphotopicker.util.transition.TransitionCallback;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
 import java.util.List;
 
 import static android.support.v7.widget.RecyclerView.NO_POSITION;
@@ -52,12 +53,12 @@ public class GalleryPreviewActivity extends AppCompatActivity implements Gallery
 
     public static void startActivity(@NonNull Activity activity, int requestCode, @NonNull View imageView, @NonNull View checkView,
                                      @IntRange(from = 0) long bucketId, @IntRange(from = 0) int position,
-                                     List<Uri> selection, int maxSelection, int minWidth, int minHeight, String alertText) {
+                                     SelectionStore selection, int maxSelection, int minWidth, int minHeight, String alertText) {
 
         Intent intent = new Intent(activity, GalleryPreviewActivity.class);
         intent.putExtra(EXTRA_BUCKET_ID, bucketId);
         intent.putExtra(EXTRA_POSITION, position);
-        intent.putExtra(EXTRA_SELECTION, new LinkedList<>(selection));
+        intent.putExtra(EXTRA_SELECTION, selection);
         intent.putExtra(EXTRA_MAX_SELECTION, maxSelection);
         intent.putExtra(EXTRA_MIN_WIDTH, minWidth);
         intent.putExtra(EXTRA_MIN_HEIGHT, minHeight);
@@ -103,13 +104,13 @@ public class GalleryPreviewActivity extends AppCompatActivity implements Gallery
         return NO_POSITION;
     }
 
-    public static List<Uri> getSelection(Intent data) {
-        //noinspection unchecked
-        return (List<Uri>) data.getExtras().get(EXTRA_SELECTION);
+    public static SelectionStore getSelection(Intent data) {
+        return data.getParcelableExtra(EXTRA_SELECTION);
     }
 
     private GalleryMediaLoader mMediaLoader;
     private GalleryPreviewAdapter mAdapter;
+    private GalleryDimensionIndex mDimensionIndex;
     private ViewPager mViewPager;
     private CheckedTextView mCheckbox;
     private int mMinWidth;
@@ -134,8 +135,7 @@ public class GalleryPreviewActivity extends AppCompatActivity implements Gallery
         MediaSharedElementCallback sharedElementCallback = new MediaSharedElementCallback();
         setEnterSharedElementCallback(sharedElementCallback);
 
-        //noinspection unchecked
-        List<Uri> selection = (List<Uri>) getIntent().getExtras().get(EXTRA_SELECTION);
+        SelectionStore selection = getIntent().getParcelableExtra(EXTRA_SELECTION);
         assert selection != null;
         int maxSelection = getIntent().getExtras().getInt(EXTRA_MAX_SELECTION);
 
@@ -154,6 +154,9 @@ public class GalleryPreviewActivity extends AppCompatActivity implements Gallery
         mAdapter.setCallbacks(this);
         mAdapter.setMaxSelection(maxSelection);
         mAdapter.setMinImageResolution(mMinWidth, mMinHeight);
+        mDimensionIndex = GalleryDimensionIndex.getInstance(this);
+        mDimensionIndex.addListener(mAdapter);
+        mAdapter.setDimensionIndex(mDimensionIndex);
 
         mViewPager = findViewById(R.id.view_pager);
         mViewPager.setAdapter(mAdapter);
@@ -200,15 +203,25 @@ public class GalleryPreviewActivity extends AppCompatActivity implements Gallery
     }
 
     @Override
-    public void onBucketLoadFinished(@Nullable Cursor data) {
+    public void onBucketLoadFinished(@Nullable GallerySnapshot data) {
         swapData(data);
     }
 
     @Override
-    public void onMediaLoadFinished(@Nullable Cursor data) {
+    public void onMediaLoadFinished(@Nullable GallerySnapshot data) {
         swapData(data);
     }
 
+    @Override
+    public void onMediaRangeInserted(@NonNull GallerySnapshot data, int positionStart, int itemCount) {
+        // The preview loads all the media at once
+    }
+
+    @Override
+    public void onMediaRangeChanged(@NonNull GallerySnapshot data, int positionStart, int itemCount) {
+        // The preview loads all the media at once
+    }
+
     @Override
     public void onCheckedUpdated(boolean checked) {
         mCheckbox.setChecked(checked);
@@ -247,9 +260,10 @@ public class GalleryPreviewActivity extends AppCompatActivity implements Gallery
     protected void onDestroy() {
         super.onDestroy();
         mMediaLoader.onDetach();
+        mDimensionIndex.removeListener(mAdapter);
     }
 
-    private void swapData(@Nullable Cursor data) {
+    private void swapData(@Nullable GallerySnapshot data) {
         int position = getIntent().getExtras().getInt(EXTRA_POSITION);
 
         mAdapter.swapData(data);
@@ -266,7 +280,7 @@ public class GalleryPreviewActivity extends AppCompatActivity implements Gallery
 
         Intent data = new Intent();
         data.putExtra(EXTRA_POSITION, position);
-        data.putExtra(EXTRA_SELECTION, new LinkedList<>(mAdapter.getSelection()));
+        data.putExtra(EXTRA_SELECTION, mAdapter.getSelection());
         setResult(GALLERY_RESULT, data);
 
         setCheckboxTransitionName(position);
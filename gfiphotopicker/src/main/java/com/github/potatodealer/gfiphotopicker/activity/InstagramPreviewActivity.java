@@ -27,12 +27,12 @@ import android.widget.CheckedTextView;
 import com.github.potatodealer.gfiphotopicker.R;
 import com.github.potatodealer.gfiphotopicker.adapter.InstagramPreviewAdapter;
 import com.github.potatodealer.gfiphotopicker.data.InstagramMediaLoader;
+import com.github.potatodealer.gfiphotopicker.data.SelectionStore;
 import com.github.potatodealer.gfiphotopicker.util.transition.MediaSharedElementCallback;
 import com.github.potatodealer.gfiphotopicker.util.transition.TransitionCallback;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
 import java.util.List;
 
 import static android.support.v7.widget.RecyclerView.NO_POSITION;
@@ -50,11 +50,11 @@ public class InstagramPreviewActivity extends AppCompatActivity implements Insta
 
     public static void startActivity(@NonNull Activity activity, int requestCode, @NonNull View imageView, @NonNull View checkView,
                                      @IntRange(from = 0) int position,
-                                     List<Uri> selection, int maxSelection, int minWidth, int minHeight, String alertText) {
+                                     SelectionStore selection, int maxSelection, int minWidth, int minHeight, String alertText) {
 
         Intent intent = new Intent(activity, InstagramPreviewActivity.class);
         intent.putExtra(EXTRA_POSITION, position);
-        intent.putExtra(EXTRA_SELECTION, new LinkedList<>(selection));
+        intent.putExtra(EXTRA_SELECTION, selection);
         intent.putExtra(EXTRA_MAX_SELECTION, maxSelection);
         intent.putExtra(EXTRA_MIN_WIDTH, minWidth);
         intent.putExtra(EXTRA_MIN_HEIGHT, minHeight);
@@ -99,9 +99,8 @@ public class InstagramPreviewActivity extends AppCompatActivity implements Insta
         return NO_POSITION;
     }
 
-    public static List<Uri> getSelection(Intent data) {
-        //noinspection unchecked
-        return (List<Uri>) data.getExtras().get(EXTRA_SELECTION);
+    public static SelectionStore getSelection(Intent data) {
+        return data.getParcelableExtra(EXTRA_SELECTION);
     }
 
     private InstagramMediaLoader mMediaLoader;
@@ -130,8 +129,7 @@ public class InstagramPreviewActivity extends AppCompatActivity implements Insta
         MediaSharedElementCallback sharedElementCallback = new MediaSharedElementCallback();
         setEnterSharedElementCallback(sharedElementCallback);
 
-        //noinspection unchecked
-        List<Uri> selection = (List<Uri>) getIntent().getExtras().get(EXTRA_SELECTION);
+        SelectionStore selection = getIntent().getParcelableExtra(EXTRA_SELECTION);
         assert selection != null;
         int maxSelection = getIntent().getExtras().getInt(EXTRA_MAX_SELECTION);
 
@@ -253,7 +251,7 @@ public class InstagramPreviewActivity extends AppCompatActivity implements Insta
 
         Intent data = new Intent();
         data.putExtra(EXTRA_POSITION, position);
-        data.putExtra(EXTRA_SELECTION, new LinkedList<>(mAdapter.getSelection()));
+        data.putExtra(EXTRA_SELECTION, mAdapter.getSelection());
         setResult(INSTAGRAM_RESULT, data);
 
         setCheckboxTransitionName(position);
@@ -29,6 +29,7 @@ import com.github.potatodealer.gfiphotopicker.R;
 import com.github.potatodealer.gfiphotopicker.StoragePermissionActivity;
 import com.github.potatodealer.gfiphotopicker.data.FacebookProvider;
 import com.github.potatodealer.gfiphotopicker.data.InstagramProvider;
+import com.github.potatodealer.gfiphotopicker.data.SelectionStore;
 import com.github.potatodealer.gfiphotopicker.fragment.FacebookFragment;
 import com.github.potatodealer.gfiphotopicker.fragment.GalleryFragment;
 import com.github.potatodealer.gfiphotopicker.fragment.InstagramFragment;
@@ -245,7 +246,7 @@ public class PhotoPickerActivity extends StoragePermissionActivity implements Ga
             mGalleryFragment.setMinImageResolution(mMinWidth, mMinHeight);
             if (getIntent().hasExtra(EXTRA_SELECTION)) {
                 //noinspection unchecked
-                mGalleryFragment.setSelection((List<Uri>) getIntent().getSerializableExtra(EXTRA_SELECTION));
+                mGalleryFragment.setSelection(new SelectionStore((List<Uri>) getIntent().getSerializableExtra(EXTRA_SELECTION)));
             }
             askForPermission();
         } else if (fragment == mFacebookFragment) {
@@ -253,7 +254,7 @@ public class PhotoPickerActivity extends StoragePermissionActivity implements Ga
             mFacebookFragment.setMinImageResolution(mMinWidth, mMinHeight);
             if (getIntent().hasExtra(EXTRA_FACEBOOK_SELECTION)) {
                 //noinspection unchecked
-                mFacebookFragment.setFacebookSelection((List<Uri>) getIntent().getSerializableExtra(EXTRA_FACEBOOK_SELECTION));
+                mFacebookFragment.setFacebookSelection(new SelectionStore((List<Uri>) getIntent().getSerializableExtra(EXTRA_FACEBOOK_SELECTION)));
             }
         } else if (fragment == mInstagramFragment){
             mInstagramFragment.setMaxSelection(getIntent().getIntExtra(EXTRA_MAX_SELECTION, DEFAULT_MAX_SELECTION));
@@ -266,7 +267,7 @@ public class PhotoPickerActivity extends StoragePermissionActivity implements Ga
             }
             if (getIntent().hasExtra(EXTRA_INSTAGRAM_SELECTION)) {
                 //noinspection unchecked
-                mInstagramFragment.setInstagramSelection((List<Uri>) getIntent().getSerializableExtra(EXTRA_INSTAGRAM_SELECTION));
+                mInstagramFragment.setInstagramSelection(new SelectionStore((List<Uri>) getIntent().getSerializableExtra(EXTRA_INSTAGRAM_SELECTION)));
             }
         }
     }
@@ -362,9 +363,10 @@ public class PhotoPickerActivity extends StoragePermissionActivity implements Ga
     @Override
     public void onClick(View v) {
         Intent data = new Intent();
-        data.putExtra(EXTRA_SELECTION, (ArrayList<Uri>) mGalleryFragment.getSelection());
-        data.putExtra(EXTRA_FACEBOOK_SELECTION, (ArrayList<Uri>) mFacebookFragment.getFacebookSelection());
-        data.putExtra(EXTRA_INSTAGRAM_SELECTION, (ArrayList<Uri>) mInstagramFragment.getInstagramSelection());
+        // The only place the selections are turned into lists
+        data.putParcelableArrayListExtra(EXTRA_SELECTION, mGalleryFragment.getSelection().toList());
+        data.putParcelableArrayListExtra(EXTRA_FACEBOOK_SELECTION, mFacebookFragment.getFacebookSelection().toList());
+        data.putParcelableArrayListExtra(EXTRA_INSTAGRAM_SELECTION, mInstagramFragment.getInstagramSelection().toList());
         setResult(RESULT_OK, data);
         finish();
     }
@@ -1,6 +1,7 @@
 package com.github.potatodealer.gfiphotopicker.adapter;
 
 
+import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
 import android.support.annotation.IntDef;
@@ -17,14 +18,18 @@ import android.widget.CheckedTextView;
 import android.widget.ImageView;
 import android.widget.TextView;
 
-import com.bumptech.glide.Glide;
+import com.bumptech.glide.request.target.Target;
 import com.github.potatodealer.gfiphotopicker.R;
+import com.github.potatodealer.gfiphotopicker.data.BulkSelection;
 import com.github.potatodealer.gfiphotopicker.data.FacebookDBHelper;
+import com.github.potatodealer.gfiphotopicker.data.SelectionStore;
 import com.github.potatodealer.gfiphotopicker.util.AnimationHelper;
+import com.github.potatodealer.gfiphotopicker.util.DragSelectTouchListener;
+import com.github.potatodealer.gfiphotopicker.util.ThumbnailCache;
+import com.github.potatodealer.gfiphotopicker.util.ThumbnailPrefetcher;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
-import java.util.LinkedList;
 import java.util.List;
 
 /**
@@ -32,7 +37,8 @@ import java.util.List;
  * <p>
  * We can have two types of {@link View} items: {@link #VIEW_TYPE_BUCKET} or {@link #VIEW_TYPE_MEDIA}
  */
-public class FacebookAdapter extends RecyclerView.Adapter<FacebookAdapter.ViewHolder> {
+public class FacebookAdapter extends RecyclerView.Adapter<FacebookAdapter.ViewHolder> implements ThumbnailPrefetcher.Source,
+        DragSelectTouchListener.Callback {
 
     public static final int VIEW_TYPE_BUCKET = 0;
     public static final int VIEW_TYPE_MEDIA = 1;
@@ -61,7 +67,7 @@ public class FacebookAdapter extends RecyclerView.Adapter<FacebookAdapter.ViewHo
         void onLowResImageSelected();
     }
 
-    private final List<Uri> mSelection;
+    private final SelectionStore mSelection;
     private int mSelectionCount;
 
     @Nullable
@@ -75,8 +81,13 @@ public class FacebookAdapter extends RecyclerView.Adapter<FacebookAdapter.ViewHo
     @Nullable
     private Cursor mData;
 
+    // The range being dragged, shown but not applied yet
+    @Nullable
+    private BulkSelection mDragSelection;
+    private boolean mDragSelecting;
+
     public FacebookAdapter() {
-        mSelection = new LinkedList<>();
+        mSelection = new SelectionStore();
         setHasStableIds(true);
     }
 
@@ -149,12 +160,7 @@ public class FacebookAdapter extends RecyclerView.Adapter<FacebookAdapter.ViewHo
         String imageTransitionName = holder.itemView.getContext().getString(R.string.activity_gallery_image_transition, data.toString());
         String checkboxTransitionName = holder.itemView.getContext().getString(R.string.activity_gallery_checkbox_transition, data.toString());
         ViewCompat.setTransitionName(holder.mImageView, imageTransitionName);
-        Glide.with(holder.mImageView.getContext())
-                .load(data)
-                .skipMemoryCache(true)
-                .centerCrop()
-                .placeholder(R.color.gallery_item_background)
-                .into(holder.mImageView);
+        ThumbnailCache.getInstance(holder.mImageView.getContext()).loadThumbnail(holder.mImageView, data, getThumbnailData(position, data));
 
         boolean selected = isSelected(position);
         if (selected) {
@@ -180,7 +186,7 @@ public class FacebookAdapter extends RecyclerView.Adapter<FacebookAdapter.ViewHo
             }
         } else {
             FacebookAdapter.BucketViewHolder viewHolder = (FacebookAdapter.BucketViewHolder) holder;
-            viewHolder.mTextView.setText(getLabel(position));
+            viewHolder.mTextView.setText(getBucketLabel(viewHolder.mTextView.getContext(), position));
         }
     }
 
@@ -209,15 +215,14 @@ public class FacebookAdapter extends RecyclerView.Adapter<FacebookAdapter.ViewHo
         }
     }
 
-    public List<Uri> getFacebookSelection() {
-        return new LinkedList<>(mSelection);
+    public SelectionStore getFacebookSelection() {
+        return new SelectionStore(mSelection);
     }
 
-    public void setFacebookSelection(@NonNull List<Uri> selection) {
+    public void setFacebookSelection(@NonNull SelectionStore selection) {
         if (!mSelection.equals(selection)) {
             mSelectionCount -= mSelection.size();
-            mSelection.clear();
-            mSelection.addAll(selection);
+            mSelection.set(selection);
             mSelectionCount += mSelection.size();
             notifySelectionChanged();
         }
@@ -229,25 +234,91 @@ public class FacebookAdapter extends RecyclerView.Adapter<FacebookAdapter.ViewHo
     }
 
     public void selectAll() {
-        if (mData == null) {
-            return;
+        selectRange(0, getItemCount() - 1);
+    }
+
+    /**
+     * Select the rows of [from, to] that aren't selected yet, as a single selection change.
+     */
+    public void selectRange(int from, int to) {
+        BulkSelection bulk = collectRange(true, from, to);
+        if (bulk != null) {
+            applyBulkSelection(bulk);
         }
-        List<Uri> selectionToAdd = new LinkedList<>();
-        int count = mData.getCount();
-        for (int position = 0; position < count; position++) {
-            if (!isSelected(position)) {
-                Uri data = getData(position);
-                selectionToAdd.add(data);
-            }
+    }
+
+    /**
+     * Deselect the selected rows of [from, to], as a single selection change.
+     */
+    public void deselectRange(int from, int to) {
+        BulkSelection bulk = collectRange(false, from, to);
+        if (bulk != null) {
+            applyBulkSelection(bulk);
         }
-        if (mSelection.size() + selectionToAdd.size() > mMaxSelection) {
-            if (mCallbacks != null) {
-                mCallbacks.onWillExceedMaxSelection();
+    }
+
+    @Override
+    public boolean onDragSelectionStarted(int position) {
+        if (mData == null || mData.isClosed() || VIEW_TYPE_MEDIA != mViewType) {
+            return false;
+        }
+        // Dragging from a selected item deselects the range
+        mDragSelecting = !isSelected(position);
+        return true;
+    }
+
+    @Override
+    public void onDragSelectionChanged(int from, int to) {
+        mDragSelection = collectRange(mDragSelecting, from, to);
+        notifyVisibleItemsChanged(SELECTION_PAYLOAD);
+    }
+
+    @Override
+    public void onDragSelectionFinished(boolean cancelled) {
+        BulkSelection bulk = mDragSelection;
+        mDragSelection = null;
+        if (cancelled || bulk == null || !applyBulkSelection(bulk)) {
+            // Show the rows of the range as they are again
+            notifyVisibleItemsChanged(SELECTION_PAYLOAD);
+        }
+    }
+
+    @Nullable
+    private BulkSelection collectRange(boolean select, int from, int to) {
+        if (mData == null || mData.isClosed() || VIEW_TYPE_MEDIA != mViewType) {
+            return null;
+        }
+        BulkSelection.Rows rows = new BulkSelection.CursorRows(mData, FacebookDBHelper.DATA, FacebookDBHelper.WIDTH, FacebookDBHelper.HEIGHT,
+                mMinWidth, mMinHeight);
+        from = Math.max(0, from);
+        to = Math.min(getItemCount() - 1, to);
+        return select ? BulkSelection.select(mSelection, rows, from, to) : BulkSelection.deselect(mSelection, rows, from, to);
+    }
+
+    /**
+     * Apply the change of a range, unless it selects more items than the max selection allows.
+     *
+     * @return If the selection changed
+     */
+    private boolean applyBulkSelection(@NonNull BulkSelection bulk) {
+        if (bulk.size() == 0) {
+            return false;
+        }
+        if (bulk.isSelecting()) {
+            if (mSelectionCount + bulk.size() > mMaxSelection) {
+                if (mCallbacks != null) {
+                    mCallbacks.onWillExceedMaxSelection();
+                }
+                return false;
+            }
+            if (bulk.getLowResCount() > 0 && mCallbacks != null) {
+                mCallbacks.onLowResImageSelected();
             }
-        } else {
-            mSelection.addAll(selectionToAdd);
-            notifySelectionChanged();
         }
+        bulk.apply();
+        mSelectionCount += bulk.isSelecting() ? bulk.size() : -bulk.size();
+        notifySelectionChanged();
+        return true;
     }
 
     public void clearFacebookSelection() {
@@ -262,16 +333,27 @@ public class FacebookAdapter extends RecyclerView.Adapter<FacebookAdapter.ViewHo
         if (mCallbacks != null) {
             mCallbacks.onSelectionUpdated(mSelectionCount);
         }
+        notifyVisibleItemsChanged(SELECTION_PAYLOAD);
+    }
+
+    private void notifyVisibleItemsChanged(Object payload) {
         int from = 0, count = getItemCount();
         // If we have LinearLayoutManager we should just rebind the visible items
         if (mLayoutManager != null) {
             from = mLayoutManager.findFirstVisibleItemPosition();
             count = mLayoutManager.findLastVisibleItemPosition() - from + 1;
         }
-        notifyItemRangeChanged(from, count, SELECTION_PAYLOAD);
+        if (from == RecyclerView.NO_POSITION || count <= 0) {
+            return;
+        }
+        notifyItemRangeChanged(from, count, payload);
     }
 
     private boolean isSelected(int position) {
+        // The rows of the range being dragged show the state they will have
+        if (mDragSelection != null && mDragSelection.contains(position)) {
+            return mDragSelection.isSelecting();
+        }
         Uri data = getData(position);
         return mSelection.contains(data);
     }
@@ -286,12 +368,47 @@ public class FacebookAdapter extends RecyclerView.Adapter<FacebookAdapter.ViewHo
         }
     }
 
+    /**
+     * The bucket label with its photo count, which grows while the albums are synced.
+     */
+    private String getBucketLabel(Context context, int position) {
+        String label = getLabel(position);
+        int countColumn = mData.getColumnIndex(FacebookDBHelper.BUCKET_COUNT);
+        if (countColumn == -1) {
+            return label;
+        }
+        return context.getString(R.string.activity_gallery_bucket_count, label, mData.getInt(countColumn));
+    }
+
+    @Nullable
+    @Override
+    public Target<?> prefetchThumbnail(@NonNull Context context, int position,
+                                       @NonNull ThumbnailCache.PrefetchListener listener) {
+        if (mData == null || mData.isClosed()) {
+            return null;
+        }
+        Uri data = getData(position);
+        return ThumbnailCache.getInstance(context).prefetchThumbnail(context, data, getThumbnailData(position, data), listener);
+    }
+
     private Uri getData(int position) {
         assert mData != null; // It is supposed not be null here
         mData.moveToPosition(position);
         return Uri.parse(mData.getString(mData.getColumnIndex(FacebookDBHelper.DATA)));
     }
 
+    /**
+     * The variant negotiated for the grid when the photo was stored, or the photo itself for the buckets and
+     * the photos stored before.
+     */
+    private Uri getThumbnailData(int position, Uri data) {
+        assert mData != null; // It is supposed not be null here
+        mData.moveToPosition(position);
+        int thumbnailColumn = mData.getColumnIndex(FacebookDBHelper.THUMBNAIL_DATA);
+        String thumbnailData = thumbnailColumn != -1 ? mData.getString(thumbnailColumn) : null;
+        return thumbnailData != null ? Uri.parse(thumbnailData) : data;
+    }
+
     private long getBucketId(int position) {
         assert mData != null; // It is supposed not be null here
         mData.moveToPosition(position);
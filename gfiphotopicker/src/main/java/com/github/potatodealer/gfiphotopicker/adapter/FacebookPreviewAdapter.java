@@ -2,6 +2,7 @@ package com.github.potatodealer.gfiphotopicker.adapter;
 
 
 import android.database.Cursor;
+import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Build;
 import android.support.annotation.IntRange;
@@ -24,11 +25,11 @@ import com.bumptech.glide.request.RequestListener;
 import com.bumptech.glide.request.target.Target;
 import com.github.potatodealer.gfiphotopicker.R;
 import com.github.potatodealer.gfiphotopicker.data.FacebookDBHelper;
+import com.github.potatodealer.gfiphotopicker.data.SelectionStore;
+import com.github.potatodealer.gfiphotopicker.util.ThumbnailCache;
 import com.github.potatodealer.gfiphotopicker.util.transition.MediaSharedElementCallback;
 
 import java.io.File;
-import java.util.LinkedList;
-import java.util.List;
 
 import static android.view.View.NO_ID;
 
@@ -47,7 +48,7 @@ public class FacebookPreviewAdapter extends PagerAdapter {
     private final LayoutInflater mInflater;
     private final CheckedTextView mCheckbox;
     private final MediaSharedElementCallback mSharedElementCallback;
-    private final List<Uri> mSelection;
+    private final SelectionStore mSelection;
     @Nullable
     private FacebookPreviewAdapter.Callbacks mCallbacks;
     private int mMaxSelection;
@@ -59,7 +60,7 @@ public class FacebookPreviewAdapter extends PagerAdapter {
     private boolean mDontAnimate;
     private int mCurrentPosition = RecyclerView.NO_POSITION;
 
-    public FacebookPreviewAdapter(@NonNull FragmentActivity activity, @NonNull CheckedTextView checkbox, @NonNull MediaSharedElementCallback sharedElementCallback, @NonNull List<Uri> selection) {
+    public FacebookPreviewAdapter(@NonNull FragmentActivity activity, @NonNull CheckedTextView checkbox, @NonNull MediaSharedElementCallback sharedElementCallback, @NonNull SelectionStore selection) {
         mActivity = activity;
         mInflater = LayoutInflater.from(activity);
         mCheckbox = checkbox;
@@ -148,6 +149,11 @@ public class FacebookPreviewAdapter extends PagerAdapter {
                 .skipMemoryCache(true)
                 .fitCenter()
                 .listener(new FacebookPreviewAdapter.ImageLoadingCallback(position));
+        Drawable placeholder = ThumbnailCache.getInstance(mActivity).getPlaceholder(mActivity, data);
+        if (placeholder != null) {
+            // Show the grid thumbnail while the full image loads
+            request.placeholder(placeholder);
+        }
         if (mDontAnimate) {
             request.dontAnimate();
         }
@@ -202,8 +208,8 @@ public class FacebookPreviewAdapter extends PagerAdapter {
         }
     }
 
-    public List<Uri> getSelection() {
-        return new LinkedList<>(mSelection);
+    public SelectionStore getSelection() {
+        return new SelectionStore(mSelection);
     }
 
     private boolean handleChangeSelection(int position) {
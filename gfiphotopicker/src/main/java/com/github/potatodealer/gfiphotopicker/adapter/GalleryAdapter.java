@@ -1,14 +1,15 @@
 package com.github.potatodealer.gfiphotopicker.adapter;
 
-import android.database.Cursor;
-import android.graphics.BitmapFactory;
+import android.content.Context;
 import android.net.Uri;
 import android.provider.MediaStore;
 import android.support.annotation.IntDef;
 import android.support.annotation.IntRange;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.support.v4.util.LongSparseArray;
 import android.support.v4.view.ViewCompat;
+import android.support.v7.util.DiffUtil;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
 import android.util.Log;
@@ -20,26 +21,34 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import com.bumptech.glide.Glide;
+import com.bumptech.glide.request.target.Target;
 import com.github.potatodealer.gfiphotopicker.R;
+import com.github.potatodealer.gfiphotopicker.data.BulkSelection;
+import com.github.potatodealer.gfiphotopicker.data.GalleryDimensionIndex;
+import com.github.potatodealer.gfiphotopicker.data.GallerySnapshot;
+import com.github.potatodealer.gfiphotopicker.data.SelectionStore;
 import com.github.potatodealer.gfiphotopicker.util.AnimationHelper;
+import com.github.potatodealer.gfiphotopicker.util.DragSelectTouchListener;
+import com.github.potatodealer.gfiphotopicker.util.ThumbnailCache;
+import com.github.potatodealer.gfiphotopicker.util.ThumbnailPrefetcher;
 
-import java.io.File;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
-import java.util.LinkedList;
 import java.util.List;
 
 /**
- * {@link RecyclerView.Adapter} subclass used to bind {@link Cursor} items from {@link MediaStore} into {@link RecyclerView}
+ * {@link RecyclerView.Adapter} subclass used to bind {@link GallerySnapshot} items from {@link MediaStore} into {@link RecyclerView}
  * <p>
  * We can have two types of {@link View} items: {@link #VIEW_TYPE_BUCKET} or {@link #VIEW_TYPE_MEDIA}
  */
-public class GalleryAdapter extends RecyclerView.Adapter<GalleryAdapter.ViewHolder> {
+public class GalleryAdapter extends RecyclerView.Adapter<GalleryAdapter.ViewHolder>
+        implements GalleryDimensionIndex.Listener, ThumbnailPrefetcher.Source, DragSelectTouchListener.Callback {
 
     public static final int VIEW_TYPE_BUCKET = 0;
     public static final int VIEW_TYPE_MEDIA = 1;
 
     private static final String SELECTION_PAYLOAD = "selection";
+    private static final String RESOLUTION_PAYLOAD = "resolution";
     private static final float SELECTED_SCALE = .8f;
     private static final float UNSELECTED_SCALE = 1f;
 
@@ -63,8 +72,10 @@ public class GalleryAdapter extends RecyclerView.Adapter<GalleryAdapter.ViewHold
         void onLowResImageSelected();
     }
 
-    private final List<Uri> mSelection;
+    private final SelectionStore mSelection;
     private int mSelectionCount;
+    // Selected images whose dimensions were not known yet when they were selected, by media id
+    private final LongSparseArray<UnindexedImage> mUnindexedSelection = new LongSparseArray<>();
 
     @Nullable
     private Callbacks mCallbacks;
@@ -72,13 +83,20 @@ public class GalleryAdapter extends RecyclerView.Adapter<GalleryAdapter.ViewHold
     private int mMinWidth;
     private int mMinHeight;
     @Nullable
+    private GalleryDimensionIndex mDimensionIndex;
+    @Nullable
     private LinearLayoutManager mLayoutManager;
     private int mViewType = VIEW_TYPE_BUCKET;
     @Nullable
-    private Cursor mData;
+    private GallerySnapshot mData;
+
+    // The range being dragged, shown but not applied yet
+    @Nullable
+    private BulkSelection mDragSelection;
+    private boolean mDragSelecting;
 
     public GalleryAdapter() {
-        mSelection = new LinkedList<>();
+        mSelection = new SelectionStore();
         setHasStableIds(true);
     }
 
@@ -90,18 +108,52 @@ public class GalleryAdapter extends RecyclerView.Adapter<GalleryAdapter.ViewHold
         mMaxSelection = maxSelection;
     }
 
+    public void setDimensionIndex(@Nullable GalleryDimensionIndex dimensionIndex) {
+        mDimensionIndex = dimensionIndex;
+    }
+
     public void setLayoutManager(@NonNull LinearLayoutManager layoutManager) {
         mLayoutManager = layoutManager;
     }
 
-    public void swapData(@ViewType int viewType, @Nullable Cursor data) {
-        if (viewType != mViewType) {
-            mViewType = viewType;
+    /**
+     * Bind new data. When it's a reload of the same view type diffed from the current data,
+     * only the rows that changed are notified.
+     *
+     * @return If the new data was applied as granular updates
+     */
+    public boolean swapData(@ViewType int viewType, @Nullable GallerySnapshot data) {
+        if (data == mData && viewType == mViewType) {
+            return false;
         }
-        if (data != mData) {
-            mData = data;
-            notifyDataSetChanged();
+        DiffUtil.DiffResult diff = null;
+        if (viewType == mViewType && data != null) {
+            diff = data.getDiffFrom(mData);
         }
+        mViewType = viewType;
+        mData = data;
+        if (diff != null) {
+            diff.dispatchUpdatesTo(this);
+            return true;
+        }
+        notifyDataSetChanged();
+        return false;
+    }
+
+    /**
+     * A page was appended to the current media data.
+     */
+    public void appendData(@NonNull GallerySnapshot data, int positionStart, int itemCount) {
+        mData = data;
+        notifyItemRangeInserted(positionStart, itemCount);
+    }
+
+    /**
+     * Some rows of the current media data were loaded again after being released.
+     */
+    public void reloadData(@NonNull GallerySnapshot data, int positionStart, int itemCount) {
+        mData = data;
+        notifyItemRangeChanged(positionStart, itemCount);
     }
 
     public void updateAllSelectionCount(int selectionCount) {
@@ -110,12 +162,11 @@ public class GalleryAdapter extends RecyclerView.Adapter<GalleryAdapter.ViewHold
 
     @Override
     public long getItemId(int position) {
-        if (mData != null && !mData.isClosed()) {
-            mData.moveToPosition(position);
+        if (mData != null) {
             if (VIEW_TYPE_MEDIA == mViewType) {
-                return mData.getLong(mData.getColumnIndex(MediaStore.Images.ImageColumns._ID));
+                return mData.getId(position);
             } else {
-                return mData.getLong(mData.getColumnIndex(MediaStore.Images.ImageColumns.BUCKET_ID));
+                return mData.getBucketId(position);
             }
         }
         return super.getItemId(position);
@@ -123,7 +174,7 @@ public class GalleryAdapter extends RecyclerView.Adapter<GalleryAdapter.ViewHold
 
     @Override
     public int getItemCount() {
-        if (mData != null && !mData.isClosed()) {
+        if (mData != null) {
             return mData.getCount();
         }
         return 0;
@@ -148,15 +199,15 @@ public class GalleryAdapter extends RecyclerView.Adapter<GalleryAdapter.ViewHold
     @Override
     public void onBindViewHolder(@NonNull GalleryAdapter.ViewHolder holder, int position) {
         Uri data = getData(position);
+        if (data == null) {
+            // The row was released to save memory, it's rebound once its page is loaded again
+            bindReleasedItem(holder);
+            return;
+        }
         String imageTransitionName = holder.itemView.getContext().getString(R.string.activity_gallery_image_transition, data.toString());
         String checkboxTransitionName = holder.itemView.getContext().getString(R.string.activity_gallery_checkbox_transition, data.toString());
         ViewCompat.setTransitionName(holder.mImageView, imageTransitionName);
-        Glide.with(holder.mImageView.getContext())
-                .load(data)
-                .skipMemoryCache(true)
-                .centerCrop()
-                .placeholder(R.color.gallery_item_background)
-                .into(holder.mImageView);
+        ThumbnailCache.getInstance(holder.mImageView.getContext()).loadGalleryThumbnail(holder.mImageView, data, mData.getId(position));
 
         boolean selected = isSelected(position);
         if (selected) {
@@ -169,23 +220,29 @@ public class GalleryAdapter extends RecyclerView.Adapter<GalleryAdapter.ViewHold
 
         if (VIEW_TYPE_MEDIA == getItemViewType(position)) {
             MediaViewHolder viewHolder = (MediaViewHolder) holder;
-            viewHolder.mTextView.setVisibility(View.INVISIBLE);
-            if (checkMinImageResolution(data)) {
-                ViewCompat.setTransitionName(viewHolder.mCheckView, checkboxTransitionName);
-                viewHolder.mCheckView.setChecked(selected);
-                holder.mImageView.setContentDescription(getLabel(position));
-            } else {
-                viewHolder.mTextView.setVisibility(View.VISIBLE);
-                ViewCompat.setTransitionName(viewHolder.mCheckView, checkboxTransitionName);
-                viewHolder.mCheckView.setChecked(selected);
-                holder.mImageView.setContentDescription(getLabel(position));
-            }
+            viewHolder.mTextView.setVisibility(checkMinImageResolution(position) ? View.INVISIBLE : View.VISIBLE);
+            ViewCompat.setTransitionName(viewHolder.mCheckView, checkboxTransitionName);
+            viewHolder.mCheckView.setChecked(selected);
+            holder.mImageView.setContentDescription(getLabel(position));
         } else {
             BucketViewHolder viewHolder = (BucketViewHolder) holder;
             viewHolder.mTextView.setText(getLabel(position));
         }
     }
 
+    private void bindReleasedItem(@NonNull GalleryAdapter.ViewHolder holder) {
+        Glide.clear(holder.mImageView);
+        holder.mImageView.setImageResource(R.color.gallery_item_background);
+        holder.mImageView.setScaleX(UNSELECTED_SCALE);
+        holder.mImageView.setScaleY(UNSELECTED_SCALE);
+        holder.mImageView.setContentDescription(null);
+        if (holder instanceof MediaViewHolder) {
+            MediaViewHolder viewHolder = (MediaViewHolder) holder;
+            viewHolder.mTextView.setVisibility(View.INVISIBLE);
+            viewHolder.mCheckView.setChecked(false);
+        }
+    }
+
     /**
      * Binding view holder with payloads is used to handle partial changes in item.
      */
@@ -206,20 +263,25 @@ public class GalleryAdapter extends RecyclerView.Adapter<GalleryAdapter.ViewHold
                             AnimationHelper.scaleView(holder.mImageView, UNSELECTED_SCALE);
                         }
                     }
+                } else if (RESOLUTION_PAYLOAD.equals(payload)) {
+                    if (VIEW_TYPE_MEDIA == getItemViewType(position) && getData(position) != null) {
+                        MediaViewHolder viewHolder = (MediaViewHolder) holder;
+                        viewHolder.mTextView.setVisibility(checkMinImageResolution(position) ? View.INVISIBLE : View.VISIBLE);
+                    }
                 }
             }
         }
     }
 
-    public List<Uri> getSelection() {
-        return new LinkedList<>(mSelection);
+    public SelectionStore getSelection() {
+        return new SelectionStore(mSelection);
     }
 
-    public void setSelection(@NonNull List<Uri> selection) {
+    public void setSelection(@NonNull SelectionStore selection) {
         if (!mSelection.equals(selection)) {
             mSelectionCount -= mSelection.size();
-            mSelection.clear();
-            mSelection.addAll(selection);
+            mSelection.set(selection);
+            mUnindexedSelection.clear();
             mSelectionCount += mSelection.size();
             notifySelectionChanged();
         }
@@ -230,83 +292,279 @@ public class GalleryAdapter extends RecyclerView.Adapter<GalleryAdapter.ViewHold
         mMinHeight = minHeight;
     }
 
+    /**
+     * Select the media rows read so far. When the media is read by pages, use {@link #selectAll(GallerySnapshot)}
+     * with the rows of {@link com.github.potatodealer.gfiphotopicker.data.GalleryMediaLoader#queryAllMedia} instead.
+     */
     public void selectAll() {
-        if (mData == null) {
+        selectRange(0, getItemCount() - 1);
+    }
+
+    /**
+     * Select all the rows of the media, including the ones the paged data hasn't read yet or has released.
+     *
+     * @param allMedia All the rows of the query of the media shown
+     */
+    public void selectAll(@NonNull GallerySnapshot allMedia) {
+        if (mData == null || VIEW_TYPE_MEDIA != mViewType) {
             return;
         }
-        List<Uri> selectionToAdd = new LinkedList<>();
-        int count = mData.getCount();
-        for (int position = 0; position < count; position++) {
-            if (!isSelected(position)) {
-                Uri data = getData(position);
-                selectionToAdd.add(data);
+        applyBulkSelection(BulkSelection.select(mSelection, new SnapshotRows(allMedia), 0, allMedia.getCount() - 1), allMedia);
+    }
+
+    /**
+     * Select the rows of [from, to] that aren't selected yet, as a single selection change.
+     */
+    public void selectRange(int from, int to) {
+        BulkSelection bulk = collectRange(true, from, to);
+        if (bulk != null) {
+            applyBulkSelection(bulk, mData);
+        }
+    }
+
+    /**
+     * Deselect the selected rows of [from, to], as a single selection change.
+     */
+    public void deselectRange(int from, int to) {
+        BulkSelection bulk = collectRange(false, from, to);
+        if (bulk != null) {
+            applyBulkSelection(bulk, mData);
+        }
+    }
+
+    @Override
+    public boolean onDragSelectionStarted(int position) {
+        if (mData == null || VIEW_TYPE_MEDIA != mViewType) {
+            return false;
+        }
+        // Dragging from a selected item deselects the range
+        mDragSelecting = !isSelected(position);
+        return true;
+    }
+
+    @Override
+    public void onDragSelectionChanged(int from, int to) {
+        mDragSelection = collectRange(mDragSelecting, from, to);
+        notifyVisibleItemsChanged(SELECTION_PAYLOAD);
+    }
+
+    @Override
+    public void onDragSelectionFinished(boolean cancelled) {
+        BulkSelection bulk = mDragSelection;
+        mDragSelection = null;
+        if (cancelled || bulk == null || !applyBulkSelection(bulk, mData)) {
+            // Show the rows of the range as they are again
+            notifyVisibleItemsChanged(SELECTION_PAYLOAD);
+        }
+    }
+
+    @Nullable
+    private BulkSelection collectRange(boolean select, int from, int to) {
+        if (mData == null || VIEW_TYPE_MEDIA != mViewType) {
+            return null;
+        }
+        BulkSelection.Rows rows = new SnapshotRows(mData);
+        from = Math.max(0, from);
+        to = Math.min(getItemCount() - 1, to);
+        return select ? BulkSelection.select(mSelection, rows, from, to) : BulkSelection.deselect(mSelection, rows, from, to);
+    }
+
+    /**
+     * Apply the change of a range, unless it selects more items than the max selection allows.
+     *
+     * @param rows The rows the range was collected from
+     * @return If the selection changed
+     */
+    private boolean applyBulkSelection(@NonNull BulkSelection bulk, @Nullable GallerySnapshot rows) {
+        if (bulk.size() == 0) {
+            return false;
+        }
+        if (bulk.isSelecting()) {
+            if (mSelectionCount + bulk.size() > mMaxSelection) {
+                if (mCallbacks != null) {
+                    mCallbacks.onWillExceedMaxSelection();
+                }
+                return false;
+            }
+            if (bulk.getLowResCount() > 0 && mCallbacks != null) {
+                mCallbacks.onLowResImageSelected();
             }
         }
-        if (mSelection.size() + selectionToAdd.size() > mMaxSelection) {
-            if (mCallbacks != null) {
-                mCallbacks.onWillExceedMaxSelection();
+        bulk.apply();
+        if (bulk.isSelecting() && rows != null) {
+            for (int position = bulk.nextPosition(0); position >= 0; position = bulk.nextPosition(position + 1)) {
+                trackUnindexed(rows, position);
             }
-        } else {
-            mSelection.addAll(selectionToAdd);
-            notifySelectionChanged();
         }
+        mSelectionCount += bulk.isSelecting() ? bulk.size() : -bulk.size();
+        notifySelectionChanged();
+        return true;
     }
 
     public void clearSelection() {
         if (!mSelection.isEmpty()) {
             mSelection.clear();
+            mUnindexedSelection.clear();
             notifySelectionChanged();
         }
     }
 
+    /**
+     * Rebind the low resolution labels of the visible items once more image dimensions are known, and warn about
+     * the selected images that turned out to be low resolution.
+     */
+    @Override
+    public void onDimensionsIndexed() {
+        if (VIEW_TYPE_MEDIA == mViewType) {
+            notifyVisibleItemsChanged(RESOLUTION_PAYLOAD);
+        }
+        if (mDimensionIndex == null) {
+            return;
+        }
+        boolean lowResSelected = false;
+        for (int i = mUnindexedSelection.size() - 1; i >= 0; i--) {
+            long id = mUnindexedSelection.keyAt(i);
+            UnindexedImage image = mUnindexedSelection.valueAt(i);
+            if (!mDimensionIndex.isIndexed(id, image.mDateModified)) {
+                continue;
+            }
+            mUnindexedSelection.removeAt(i);
+            if (mSelection.contains(image.mUri)
+                    && !mDimensionIndex.meetsMinResolution(id, image.mDateModified, mMinWidth, mMinHeight)) {
+                lowResSelected = true;
+            }
+        }
+        if (lowResSelected && mCallbacks != null) {
+            mCallbacks.onLowResImageSelected();
+        }
+    }
+
+    /**
+     * Remember a selected image whose dimensions are neither in the MediaStore nor indexed yet, so it's checked
+     * once the {@link GalleryDimensionIndex} knows them.
+     */
+    private void trackUnindexed(@NonNull GallerySnapshot rows, int position) {
+        if (mDimensionIndex == null || (rows.getWidth(position) > 0 && rows.getHeight(position) > 0)) {
+            return;
+        }
+        long id = rows.getId(position);
+        long dateModified = rows.getDateModified(position);
+        Uri data = rows.getUri(position);
+        if (data != null && !mDimensionIndex.isIndexed(id, dateModified)) {
+            mUnindexedSelection.put(id, new UnindexedImage(data, dateModified));
+        }
+    }
+
     private void notifySelectionChanged() {
         if (mCallbacks != null) {
             mCallbacks.onSelectionUpdated(mSelectionCount);
         }
+        notifyVisibleItemsChanged(SELECTION_PAYLOAD);
+    }
+
+    private void notifyVisibleItemsChanged(Object payload) {
         int from = 0, count = getItemCount();
         // If we have LinearLayoutManager we should just rebind the visible items
         if (mLayoutManager != null) {
             from = mLayoutManager.findFirstVisibleItemPosition();
             count = mLayoutManager.findLastVisibleItemPosition() - from + 1;
         }
-        notifyItemRangeChanged(from, count, SELECTION_PAYLOAD);
+        if (from == RecyclerView.NO_POSITION || count <= 0) {
+            return;
+        }
+        notifyItemRangeChanged(from, count, payload);
+    }
+
+    @Nullable
+    @Override
+    public Target<?> prefetchThumbnail(@NonNull Context context, int position,
+                                       @NonNull ThumbnailCache.PrefetchListener listener) {
+        Uri data = mData != null ? mData.getUri(position) : null;
+        if (data == null) {
+            // Released rows are prefetched once their page is loaded again
+            return null;
+        }
+        return ThumbnailCache.getInstance(context).prefetchGalleryThumbnail(context, data, mData.getId(position), listener);
     }
 
     private boolean isSelected(int position) {
+        // The rows of the range being dragged show the state they will have
+        if (mDragSelection != null && mDragSelection.contains(position)) {
+            return mDragSelection.isSelecting();
+        }
         Uri data = getData(position);
-        return mSelection.contains(data);
+        return data != null && mSelection.contains(data);
     }
 
     private String getLabel(int position) {
         assert mData != null; // It is supposed not be null here
-        mData.moveToPosition(position);
-        if (mViewType == VIEW_TYPE_MEDIA) {
-            return mData.getString(mData.getColumnIndex(MediaStore.Images.ImageColumns.DISPLAY_NAME));
-        } else {
-            return mData.getString(mData.getColumnIndex(MediaStore.Images.ImageColumns.BUCKET_DISPLAY_NAME));
-        }
+        return mData.getLabel(position);
     }
 
+    @Nullable
     private Uri getData(int position) {
         assert mData != null; // It is supposed not be null here
-        mData.moveToPosition(position);
-        return Uri.fromFile(new File(mData.getString(mData.getColumnIndex(MediaStore.Images.Media.DATA))));
+        return mData.getUri(position);
     }
 
     private long getBucketId(int position) {
         assert mData != null; // It is supposed not be null here
-        mData.moveToPosition(position);
-        return mData.getLong(mData.getColumnIndex(MediaStore.Images.ImageColumns.BUCKET_ID));
+        return mData.getBucketId(position);
+    }
+
+    /**
+     * Use the dimensions known by the MediaStore, or look them up in the {@link GalleryDimensionIndex} instead of
+     * decoding the image on the main thread.
+     * Images that weren't indexed yet are considered big enough until the index tells otherwise.
+     */
+    private boolean checkMinImageResolution(int position) {
+        return mData == null || checkMinImageResolution(mData, position);
+    }
+
+    private boolean checkMinImageResolution(@NonNull GallerySnapshot data, int position) {
+        int width = data.getWidth(position);
+        int height = data.getHeight(position);
+        if (width > 0 && height > 0) {
+            return width >= mMinWidth && height >= mMinHeight;
+        }
+        if (mDimensionIndex == null) {
+            return true;
+        }
+        return mDimensionIndex.meetsMinResolution(data.getId(position), data.getDateModified(position), mMinWidth, mMinHeight);
     }
 
-    private boolean checkMinImageResolution(Uri imageUri) {
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        BitmapFactory.decodeFile(new File(imageUri.getPath()).getAbsolutePath(), options);
-        int imageWidth = options.outWidth;
-        int imageHeight = options.outHeight;
+    /**
+     * The media rows of a snapshot, released rows can't be selected.
+     */
+    private class SnapshotRows implements BulkSelection.Rows {
+
+        private final GallerySnapshot mRows;
+
+        private SnapshotRows(@NonNull GallerySnapshot rows) {
+            mRows = rows;
+        }
+
+        @Nullable
+        @Override
+        public Uri getSelectableUri(int position) {
+            return mRows.getUri(position);
+        }
 
-        return imageWidth >= mMinWidth && imageHeight >= mMinHeight;
+        @Override
+        public boolean meetsMinResolution(int position) {
+            return checkMinImageResolution(mRows, position);
+        }
+    }
+
+    private static class UnindexedImage {
+
+        private final Uri mUri;
+        private final long mDateModified;
+
+        private UnindexedImage(@NonNull Uri uri, long dateModified) {
+            mUri = uri;
+            mDateModified = dateModified;
+        }
     }
 
     abstract class ViewHolder extends RecyclerView.ViewHolder {
@@ -366,7 +624,7 @@ public class GalleryAdapter extends RecyclerView.Adapter<GalleryAdapter.ViewHold
             // getAdapterPosition() returns RecyclerView.NO_POSITION if item has been removed from the adapter,
             // RecyclerView.Adapter.notifyDataSetChanged() has been called after the last layout pass
             // or the ViewHolder has already been recycled.
-            if (position == RecyclerView.NO_POSITION) {
+            if (position == RecyclerView.NO_POSITION || getData(position) == null) {
                 return;
             }
 
@@ -397,10 +655,12 @@ public class GalleryAdapter extends RecyclerView.Adapter<GalleryAdapter.ViewHold
             if (mSelectionCount == mMaxSelection) {
                 return false;
             }
-            if (!checkMinImageResolution(data)) mCallbacks.onLowResImageSelected();
+            if (!checkMinImageResolution(position) && mCallbacks != null) mCallbacks.onLowResImageSelected();
             mSelection.add(data);
             mSelectionCount++;
+            trackUnindexed(mData, position);
         } else {
+            mUnindexedSelection.remove(mData.getId(position));
             mSelection.remove(data);
             mSelectionCount--;
         }
@@ -1,11 +1,9 @@
 package com.github.potatodealer.gfiphotopicker.adapter;
 
 
-import android.database.Cursor;
-import android.graphics.BitmapFactory;
+import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Build;
-import android.provider.MediaStore;
 import android.support.annotation.IntRange;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -13,6 +11,7 @@ import android.support.v4.app.FragmentActivity;
 import android.support.v4.view.PagerAdapter;
 import android.support.v4.view.ViewCompat;
 import android.support.v7.widget.RecyclerView;
+import android.util.SparseBooleanArray;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -25,15 +24,15 @@ import com.bumptech.glide.load.resource.drawable.GlideDrawable;
 import com.bumptech.glide.request.RequestListener;
 import com.bumptech.glide.request.target.Target;
 import com.github.potatodealer.gfiphotopicker.R;
+import com.github.potatodealer.gfiphotopicker.data.GalleryDimensionIndex;
+import com.github.potatodealer.gfiphotopicker.data.GallerySnapshot;
+import com.github.potatodealer.gfiphotopicker.data.SelectionStore;
+import com.github.potatodealer.gfiphotopicker.util.ThumbnailCache;
 import com.github.potatodealer.gfiphotopicker.util.transition.MediaSharedElementCallback;
 
-import java.io.File;
-import java.util.LinkedList;
-import java.util.List;
-
 import static android.view.View.NO_ID;
 
-public class GalleryPreviewAdapter extends PagerAdapter {
+public class GalleryPreviewAdapter extends PagerAdapter implements GalleryDimensionIndex.Listener {
 
     public interface Callbacks {
 
@@ -48,7 +47,7 @@ public class GalleryPreviewAdapter extends PagerAdapter {
     private final LayoutInflater mInflater;
     private final CheckedTextView mCheckbox;
     private final MediaSharedElementCallback mSharedElementCallback;
-    private final List<Uri> mSelection;
+    private final SelectionStore mSelection;
     @Nullable
     private Callbacks mCallbacks;
     private int mMaxSelection;
@@ -56,11 +55,15 @@ public class GalleryPreviewAdapter extends PagerAdapter {
     private int mMinWidth;
     private int mMinHeight;
     @Nullable
-    private Cursor mData;
+    private GalleryDimensionIndex mDimensionIndex;
+    @Nullable
+    private GallerySnapshot mData;
+    // Selected positions whose dimensions were not known yet when they were selected
+    private final SparseBooleanArray mUnindexedSelection = new SparseBooleanArray();
     private boolean mDontAnimate;
     private int mCurrentPosition = RecyclerView.NO_POSITION;
 
-    public GalleryPreviewAdapter(@NonNull FragmentActivity activity, @NonNull CheckedTextView checkbox, @NonNull MediaSharedElementCallback sharedElementCallback, @NonNull List<Uri> selection) {
+    public GalleryPreviewAdapter(@NonNull FragmentActivity activity, @NonNull CheckedTextView checkbox, @NonNull MediaSharedElementCallback sharedElementCallback, @NonNull SelectionStore selection) {
         mActivity = activity;
         mInflater = LayoutInflater.from(activity);
         mCheckbox = checkbox;
@@ -86,9 +89,14 @@ public class GalleryPreviewAdapter extends PagerAdapter {
         mMinHeight = minHeight;
     }
 
-    public void swapData(Cursor data) {
+    public void setDimensionIndex(@Nullable GalleryDimensionIndex dimensionIndex) {
+        mDimensionIndex = dimensionIndex;
+    }
+
+    public void swapData(GallerySnapshot data) {
         if (data != mData) {
             mData = data;
+            mUnindexedSelection.clear();
             notifyDataSetChanged();
         }
     }
@@ -99,7 +107,7 @@ public class GalleryPreviewAdapter extends PagerAdapter {
 
     @Override
     public int getCount() {
-        if (mData != null && !mData.isClosed()) {
+        if (mData != null) {
             return mData.getCount();
         }
         return 0;
@@ -117,28 +125,63 @@ public class GalleryPreviewAdapter extends PagerAdapter {
 
     @Nullable
     public Uri getData(int position) {
-        if (mData != null && !mData.isClosed()) {
-            mData.moveToPosition(position);
-            return Uri.fromFile(new File(mData.getString(mData.getColumnIndex(MediaStore.Images.Media.DATA))));
+        if (mData != null && position >= 0 && position < mData.getCount()) {
+            return mData.getUri(position);
         }
         return null;
     }
 
     private long getItemId(int position) {
-        if (mData != null && !mData.isClosed()) {
-            mData.moveToPosition(position);
-            return mData.getLong(mData.getColumnIndex(MediaStore.Images.ImageColumns._ID));
+        if (mData != null) {
+            return mData.getId(position);
         }
         return NO_ID;
     }
-    private boolean checkMinImageResolution(Uri imageUri) {
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        BitmapFactory.decodeFile(new File(imageUri.getPath()).getAbsolutePath(), options);
-        int imageWidth = options.outWidth;
-        int imageHeight = options.outHeight;
-
-        return imageWidth >= mMinWidth && imageHeight >= mMinHeight;
+
+    private boolean checkMinImageResolution(int position) {
+        if (mData == null) {
+            return true;
+        }
+        int width = mData.getWidth(position);
+        int height = mData.getHeight(position);
+        if (width > 0 && height > 0) {
+            return width >= mMinWidth && height >= mMinHeight;
+        }
+        if (mDimensionIndex == null) {
+            return true;
+        }
+        return mDimensionIndex.meetsMinResolution(getItemId(position), mData.getDateModified(position), mMinWidth, mMinHeight);
+    }
+
+    private boolean isIndexed(int position) {
+        if (mData == null || mDimensionIndex == null) {
+            return true;
+        }
+        if (mData.getWidth(position) > 0 && mData.getHeight(position) > 0) {
+            return true;
+        }
+        return mDimensionIndex.isIndexed(getItemId(position), mData.getDateModified(position));
+    }
+
+    /**
+     * Warn about the selected images that turned out to be low resolution once their dimensions are known.
+     */
+    @Override
+    public void onDimensionsIndexed() {
+        boolean lowResSelected = false;
+        for (int i = mUnindexedSelection.size() - 1; i >= 0; i--) {
+            int position = mUnindexedSelection.keyAt(i);
+            if (!isIndexed(position)) {
+                continue;
+            }
+            mUnindexedSelection.removeAt(i);
+            if (isSelected(position) && !checkMinImageResolution(position)) {
+                lowResSelected = true;
+            }
+        }
+        if (lowResSelected && mCallbacks != null) {
+            mCallbacks.onLowResImageSelected();
+        }
     }
 
 
@@ -150,6 +193,11 @@ public class GalleryPreviewAdapter extends PagerAdapter {
                 .skipMemoryCache(true)
                 .fitCenter()
                 .listener(new ImageLoadingCallback(position));
+        Drawable placeholder = ThumbnailCache.getInstance(mActivity).getPlaceholder(mActivity, data);
+        if (placeholder != null) {
+            // Show the grid thumbnail while the full image loads
+            request.placeholder(placeholder);
+        }
         if (mDontAnimate) {
             request.dontAnimate();
         }
@@ -204,8 +252,8 @@ public class GalleryPreviewAdapter extends PagerAdapter {
         }
     }
 
-    public List<Uri> getSelection() {
-        return new LinkedList<>(mSelection);
+    public SelectionStore getSelection() {
+        return new SelectionStore(mSelection);
     }
 
     private boolean handleChangeSelection(int position) {
@@ -214,9 +262,11 @@ public class GalleryPreviewAdapter extends PagerAdapter {
             if (mSelection.size() == mMaxSelection) {
                 return false;
             }
-            if (!checkMinImageResolution(data)) mCallbacks.onLowResImageSelected();
+            if (!checkMinImageResolution(position) && mCallbacks != null) mCallbacks.onLowResImageSelected();
+            if (!isIndexed(position)) mUnindexedSelection.put(position, true);
             mSelection.add(data);
         } else {
+            mUnindexedSelection.delete(position);
             mSelection.remove(data);
         }
         return true;
@@ -1,6 +1,7 @@
 package com.github.potatodealer.gfiphotopicker.adapter;
 
 
+import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
 import android.support.annotation.IntDef;
@@ -17,14 +18,18 @@ import android.widget.CheckedTextView;
 import android.widget.ImageView;
 import android.widget.TextView;
 
-import com.bumptech.glide.Glide;
+import com.bumptech.glide.request.target.Target;
 import com.github.potatodealer.gfiphotopicker.R;
+import com.github.potatodealer.gfiphotopicker.data.BulkSelection;
 import com.github.potatodealer.gfiphotopicker.data.InstagramDBHelper;
+import com.github.potatodealer.gfiphotopicker.data.SelectionStore;
 import com.github.potatodealer.gfiphotopicker.util.AnimationHelper;
+import com.github.potatodealer.gfiphotopicker.util.DragSelectTouchListener;
+import com.github.potatodealer.gfiphotopicker.util.ThumbnailCache;
+import com.github.potatodealer.gfiphotopicker.util.ThumbnailPrefetcher;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
-import java.util.LinkedList;
 import java.util.List;
 
 /**
@@ -32,7 +37,8 @@ import java.util.List;
  * <p>
  * We can have two types of {@link View} items: {@link #VIEW_TYPE_BUCKET} or {@link #VIEW_TYPE_MEDIA}
  */
-public class InstagramAdapter extends RecyclerView.Adapter<InstagramAdapter.ViewHolder> {
+public class InstagramAdapter extends RecyclerView.Adapter<InstagramAdapter.ViewHolder> implements ThumbnailPrefetcher.Source,
+        DragSelectTouchListener.Callback {
 
     public static final int VIEW_TYPE_BUCKET = 0;
     public static final int VIEW_TYPE_MEDIA = 1;
@@ -59,7 +65,7 @@ public class InstagramAdapter extends RecyclerView.Adapter<InstagramAdapter.View
         void onLowResImageSelected();
     }
 
-    private final List<Uri> mSelection;
+    private final SelectionStore mSelection;
     private int mSelectionCount;
 
     @Nullable
@@ -73,8 +79,13 @@ public class InstagramAdapter extends RecyclerView.Adapter<InstagramAdapter.View
     @Nullable
     private Cursor mData;
 
+    // The range being dragged, shown but not applied yet
+    @Nullable
+    private BulkSelection mDragSelection;
+    private boolean mDragSelecting;
+
     public InstagramAdapter() {
-        mSelection = new LinkedList<>();
+        mSelection = new SelectionStore();
         setHasStableIds(true);
     }
 
@@ -140,12 +151,7 @@ public class InstagramAdapter extends RecyclerView.Adapter<InstagramAdapter.View
         String imageTransitionName = holder.itemView.getContext().getString(R.string.activity_gallery_image_transition, data.toString());
         String checkboxTransitionName = holder.itemView.getContext().getString(R.string.activity_gallery_checkbox_transition, data.toString());
         ViewCompat.setTransitionName(holder.mImageView, imageTransitionName);
-        Glide.with(holder.mImageView.getContext())
-                .load(data)
-                .skipMemoryCache(true)
-                .centerCrop()
-                .placeholder(R.color.gallery_item_background)
-                .into(holder.mImageView);
+        ThumbnailCache.getInstance(holder.mImageView.getContext()).loadThumbnail(holder.mImageView, data);
 
         boolean selected = isSelected(position);
         if (selected) {
@@ -195,15 +201,14 @@ public class InstagramAdapter extends RecyclerView.Adapter<InstagramAdapter.View
         }
     }
 
-    public List<Uri> getInstagramSelection() {
-        return new LinkedList<>(mSelection);
+    public SelectionStore getInstagramSelection() {
+        return new SelectionStore(mSelection);
     }
 
-    public void setInstagramSelection(@NonNull List<Uri> selection) {
+    public void setInstagramSelection(@NonNull SelectionStore selection) {
         if (!mSelection.equals(selection)) {
             mSelectionCount -= mSelection.size();
-            mSelection.clear();
-            mSelection.addAll(selection);
+            mSelection.set(selection);
             mSelectionCount += mSelection.size();
             notifySelectionChanged();
         }
@@ -215,25 +220,91 @@ public class InstagramAdapter extends RecyclerView.Adapter<InstagramAdapter.View
     }
 
     public void selectAll() {
-        if (mData == null) {
-            return;
+        selectRange(0, getItemCount() - 1);
+    }
+
+    /**
+     * Select the rows of [from, to] that aren't selected yet, as a single selection change.
+     */
+    public void selectRange(int from, int to) {
+        BulkSelection bulk = collectRange(true, from, to);
+        if (bulk != null) {
+            applyBulkSelection(bulk);
         }
-        List<Uri> selectionToAdd = new LinkedList<>();
-        int count = mData.getCount();
-        for (int position = 0; position < count; position++) {
-            if (!isSelected(position)) {
-                Uri data = getData(position);
-                selectionToAdd.add(data);
-            }
+    }
+
+    /**
+     * Deselect the selected rows of [from, to], as a single selection change.
+     */
+    public void deselectRange(int from, int to) {
+        BulkSelection bulk = collectRange(false, from, to);
+        if (bulk != null) {
+            applyBulkSelection(bulk);
         }
-        if (mSelection.size() + selectionToAdd.size() > mMaxSelection) {
-            if (mCallbacks != null) {
-                mCallbacks.onWillExceedMaxSelection();
+    }
+
+    @Override
+    public boolean onDragSelectionStarted(int position) {
+        if (mData == null || mData.isClosed() || VIEW_TYPE_MEDIA != mViewType) {
+            return false;
+        }
+        // Dragging from a selected item deselects the range
+        mDragSelecting = !isSelected(position);
+        return true;
+    }
+
+    @Override
+    public void onDragSelectionChanged(int from, int to) {
+        mDragSelection = collectRange(mDragSelecting, from, to);
+        notifyVisibleItemsChanged(SELECTION_PAYLOAD);
+    }
+
+    @Override
+    public void onDragSelectionFinished(boolean cancelled) {
+        BulkSelection bulk = mDragSelection;
+        mDragSelection = null;
+        if (cancelled || bulk == null || !applyBulkSelection(bulk)) {
+            // Show the rows of the range as they are again
+            notifyVisibleItemsChanged(SELECTION_PAYLOAD);
+        }
+    }
+
+    @Nullable
+    private BulkSelection collectRange(boolean select, int from, int to) {
+        if (mData == null || mData.isClosed() || VIEW_TYPE_MEDIA != mViewType) {
+            return null;
+        }
+        BulkSelection.Rows rows = new BulkSelection.CursorRows(mData, InstagramDBHelper.DATA, InstagramDBHelper.WIDTH, InstagramDBHelper.HEIGHT,
+                mMinWidth, mMinHeight);
+        from = Math.max(0, from);
+        to = Math.min(getItemCount() - 1, to);
+        return select ? BulkSelection.select(mSelection, rows, from, to) : BulkSelection.deselect(mSelection, rows, from, to);
+    }
+
+    /**
+     * Apply the change of a range, unless it selects more items than the max selection allows.
+     *
+     * @return If the selection changed
+     */
+    private boolean applyBulkSelection(@NonNull BulkSelection bulk) {
+        if (bulk.size() == 0) {
+            return false;
+        }
+        if (bulk.isSelecting()) {
+            if (mSelectionCount + bulk.size() > mMaxSelection) {
+                if (mCallbacks != null) {
+                    mCallbacks.onWillExceedMaxSelection();
+                }
+                return false;
+            }
+            if (bulk.getLowResCount() > 0 && mCallbacks != null) {
+                mCallbacks.onLowResImageSelected();
             }
-        } else {
-            mSelection.addAll(selectionToAdd);
-            notifySelectionChanged();
         }
+        bulk.apply();
+        mSelectionCount += bulk.isSelecting() ? bulk.size() : -bulk.size();
+        notifySelectionChanged();
+        return true;
     }
 
     public void clearInstagramSelection() {
@@ -248,16 +319,27 @@ public class InstagramAdapter extends RecyclerView.Adapter<InstagramAdapter.View
         if (mCallbacks != null) {
             mCallbacks.onSelectionUpdated(mSelectionCount);
         }
+        notifyVisibleItemsChanged(SELECTION_PAYLOAD);
+    }
+
+    private void notifyVisibleItemsChanged(Object payload) {
         int from = 0, count = getItemCount();
         // If we have LinearLayoutManager we should just rebind the visible items
         if (mLayoutManager != null) {
             from = mLayoutManager.findFirstVisibleItemPosition();
             count = mLayoutManager.findLastVisibleItemPosition() - from + 1;
         }
-        notifyItemRangeChanged(from, count, SELECTION_PAYLOAD);
+        if (from == RecyclerView.NO_POSITION || count <= 0) {
+            return;
+        }
+        notifyItemRangeChanged(from, count, payload);
     }
 
     private boolean isSelected(int position) {
+        // The rows of the range being dragged show the state they will have
+        if (mDragSelection != null && mDragSelection.contains(position)) {
+            return mDragSelection.isSelecting();
+        }
         Uri data = getData(position);
         return mSelection.contains(data);
     }
@@ -272,6 +354,16 @@ public class InstagramAdapter extends RecyclerView.Adapter<InstagramAdapter.View
         }
     }
 
+    @Nullable
+    @Override
+    public Target<?> prefetchThumbnail(@NonNull Context context, int position,
+                                       @NonNull ThumbnailCache.PrefetchListener listener) {
+        if (mData == null || mData.isClosed()) {
+            return null;
+        }
+        return ThumbnailCache.getInstance(context).prefetchThumbnail(context, getData(position), listener);
+    }
+
     private Uri getData(int position) {
         assert mData != null; // It is supposed not be null here
         mData.moveToPosition(position);
@@ -0,0 +1,173 @@
+package com.github.potatodealer.gfiphotopicker.data;
+
+
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A change of the selection state of a range of grid rows, like select all or a drag selection.
+ * <p>
+ * The rows that change are collected in one pass in a {@link BitSet} of positions, looking each row up once
+ * in the {@link SelectionStore}. The max selection and the low resolution checks can then run on the whole
+ * range before anything is changed, and the adapter notifies the change once after {@link #apply()}.
+ * Until then, like while the range of a drag selection is still moving, {@link #contains(int)} tells which rows
+ * the adapter shows in the {@link #isSelecting()} state.
+ */
+public final class BulkSelection {
+
+    /**
+     * The rows of a grid adapter, read with their column indexes resolved once.
+     */
+    public interface Rows {
+
+        /**
+         * @return The uri of the row, or null if the row can't be selected
+         */
+        @Nullable
+        Uri getSelectableUri(int position);
+
+        /**
+         * Called right after {@link #getSelectableUri(int)} for the same position.
+         */
+        boolean meetsMinResolution(int position);
+    }
+
+    /**
+     * The rows of a cursor of photos, with the column indexes resolved once.
+     */
+    public static class CursorRows implements Rows {
+
+        private final Cursor mCursor;
+        private final int mDataColumn;
+        private final int mWidthColumn;
+        private final int mHeightColumn;
+        private final int mMinWidth;
+        private final int mMinHeight;
+
+        public CursorRows(@NonNull Cursor cursor, @NonNull String dataColumn, @NonNull String widthColumn,
+                          @NonNull String heightColumn, int minWidth, int minHeight) {
+            mCursor = cursor;
+            mDataColumn = cursor.getColumnIndex(dataColumn);
+            mWidthColumn = cursor.getColumnIndex(widthColumn);
+            mHeightColumn = cursor.getColumnIndex(heightColumn);
+            mMinWidth = minWidth;
+            mMinHeight = minHeight;
+        }
+
+        @Nullable
+        @Override
+        public Uri getSelectableUri(int position) {
+            if (!mCursor.moveToPosition(position)) {
+                return null;
+            }
+            String data = mCursor.getString(mDataColumn);
+            return data != null ? Uri.parse(data) : null;
+        }
+
+        @Override
+        public boolean meetsMinResolution(int position) {
+            return mCursor.getInt(mWidthColumn) >= mMinWidth && mCursor.getInt(mHeightColumn) >= mMinHeight;
+        }
+    }
+
+    private final SelectionStore mStore;
+    private final boolean mSelect;
+    private final BitSet mPositions = new BitSet();
+    // The uris of the set positions, in position order
+    private final List<Uri> mUris = new ArrayList<>();
+    private int mLowResCount;
+
+    private BulkSelection(SelectionStore store, boolean select) {
+        mStore = store;
+        mSelect = select;
+    }
+
+    /**
+     * Collect the rows of [from, to] that aren't selected yet.
+     */
+    @NonNull
+    public static BulkSelection select(@NonNull SelectionStore store, @NonNull Rows rows, int from, int to) {
+        BulkSelection bulk = new BulkSelection(store, true);
+        for (int position = from; position <= to; position++) {
+            Uri uri = rows.getSelectableUri(position);
+            if (uri != null && !store.contains(uri)) {
+                bulk.mPositions.set(position);
+                bulk.mUris.add(uri);
+                if (!rows.meetsMinResolution(position)) {
+                    bulk.mLowResCount++;
+                }
+            }
+        }
+        return bulk;
+    }
+
+    /**
+     * Collect the rows of [from, to] that are selected.
+     */
+    @NonNull
+    public static BulkSelection deselect(@NonNull SelectionStore store, @NonNull Rows rows, int from, int to) {
+        BulkSelection bulk = new BulkSelection(store, false);
+        for (int position = from; position <= to; position++) {
+            Uri uri = rows.getSelectableUri(position);
+            if (uri != null && store.contains(uri)) {
+                bulk.mPositions.set(position);
+                bulk.mUris.add(uri);
+            }
+        }
+        return bulk;
+    }
+
+    /**
+     * @return The number of rows whose selection state changes
+     */
+    public int size() {
+        return mUris.size();
+    }
+
+    /**
+     * @return The number of collected rows under the min resolution, always 0 when deselecting
+     */
+    public int getLowResCount() {
+        return mLowResCount;
+    }
+
+    /**
+     * @return True if this selects the collected rows, false if it deselects them
+     */
+    public boolean isSelecting() {
+        return mSelect;
+    }
+
+    /**
+     * @return If the selection state of the row at the position changes
+     */
+    public boolean contains(int position) {
+        return mPositions.get(position);
+    }
+
+    /**
+     * @return The first position at or after the given one whose selection state changes, or -1 if there is none
+     */
+    public int nextPosition(int from) {
+        return mPositions.nextSetBit(from);
+    }
+
+    /**
+     * Change the selection state of the collected rows, in position order.
+     */
+    public void apply() {
+        for (Uri uri : mUris) {
+            if (mSelect) {
+                mStore.add(uri);
+            } else {
+                mStore.remove(uri);
+            }
+        }
+    }
+}
@@ -3,23 +3,33 @@ package com.github.potatodealer.gfiphotopicker.data;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
 import android.util.Log;
 
 import com.github.potatodealer.gfiphotopicker.FacebookAgent;
 
-import java.net.URISyntaxException;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class FacebookDBHelper extends SQLiteOpenHelper {
 
     //Constants for db name and version
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 2;
     private static final String DATABASE_NAME = "facebookManager";
 
+    // Version 1 stored the photos in here, each with the name of its album but not its id
+    private static final String TABLE_FACEBOOK_V1 = "facebook";
+
     //Constants for table and columns
-    public static final String TABLE_FACEBOOK = "facebook";
+    public static final String TABLE_FACEBOOK_PHOTO = "facebook_photo";
     public static final String _ID = "id";
     public static final String BUCKET_ID = "bucket_id";
     public static final String DISPLAY_NAME = "name";
@@ -27,85 +37,403 @@ public class FacebookDBHelper extends SQLiteOpenHelper {
     public static final String DATA = "data";
     public static final String WIDTH = "width";
     public static final String HEIGHT = "height";
+    public static final String BUCKET_COUNT = "count";
+    // Tombstone of a photo or album that is gone from Facebook
+    public static final String DELETED = "deleted";
+    // The sync that last saw the photo
+    public static final String SYNC_GENERATION = "sync_generation";
+    // The grid variant negotiated when the photo is stored, see setThumbnailSize
+    public static final String THUMBNAIL_DATA = "thumbnail_data";
+
+    //Constants for the album sync state table
+    public static final String TABLE_FACEBOOK_ALBUM = "facebook_album";
+    public static final String ALBUM_ID = "album_id";
+    public static final String UPDATED_TIME = "updated_time";
+    public static final String COMPLETE = "complete";
+    // The photo count reported by Facebook, before all the photos are stored
+    public static final String PHOTO_COUNT = "photo_count";
+    // The newest live photo of the album and the number of live photos, kept up to date on every write
+    public static final String COVER_DATA = "cover_data";
+    public static final String LIVE_COUNT = "live_count";
+
+    private static final String LOG_TAG = "FacebookDBHelper";
+    private static final boolean DEBUGGING_ENABLED = false;
+
+    private static FacebookDBHelper sInstance;
+
+    /**
+     * The provider, the sync and the pagers all share one helper, so they share one long-lived
+     * connection instead of locking each other out of the database.
+     */
+    public static synchronized FacebookDBHelper getInstance(@NonNull Context context) {
+        if (sInstance == null) {
+            sInstance = new FacebookDBHelper(context.getApplicationContext());
+        }
+        return sInstance;
+    }
 
-    private List<FacebookAgent.Album> mAlbumList;
+    private final Context mContext;
 
+    // Write throughput since the helper was created, only touched by the writers
+    private long mWrittenPhotos;
+    private long mWriteMillis;
 
-    public FacebookDBHelper(Context context) {
+    // What the grid variant is negotiated against, written on the main thread
+    private volatile int mThumbnailSize;
+
+    private FacebookDBHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mContext = context;
+        // The loaders keep reading while a page is written
+        setWriteAheadLoggingEnabled(true);
     }
 
-    public static final String[] IMAGE_PROJECTION = {_ID, BUCKET_ID, DISPLAY_NAME, DATA, WIDTH, HEIGHT};
+    public static final String[] IMAGE_PROJECTION = {_ID, BUCKET_ID, DISPLAY_NAME, DATA, WIDTH, HEIGHT, THUMBNAIL_DATA};
+
+    public static final String[] ALL_IMAGE_PROJECTION = {_ID, FacebookMediaLoader.ALL_MEDIA_BUCKET_ID + " AS " + BUCKET_ID, DISPLAY_NAME, DATA, WIDTH, HEIGHT, THUMBNAIL_DATA};
+
+    // Read from the albums table, albums that are loaded on demand count the photos Facebook reports
+    public static final String[] BUCKET_PROJECTION = {BUCKET_ID, BUCKET_DISPLAY_NAME, COVER_DATA + " AS " + DATA,
+            "MAX(" + LIVE_COUNT + ",IFNULL(" + PHOTO_COUNT + ",0)) AS " + BUCKET_COUNT};
 
-    public static final String[] ALL_IMAGE_PROJECTION = {_ID, FacebookMediaLoader.ALL_MEDIA_BUCKET_ID + " AS " + BUCKET_ID, DISPLAY_NAME, DATA, WIDTH, HEIGHT};
+    private static final String CREATE_FACEBOOK_PHOTO_TABLE = "CREATE TABLE " + TABLE_FACEBOOK_PHOTO + "("
+            + _ID + " INTEGER PRIMARY KEY," + BUCKET_ID + " INTEGER," + DISPLAY_NAME + " TEXT,"
+            + DATA + " TEXT," + WIDTH + " INTEGER," + HEIGHT + " INTEGER,"
+            + DELETED + " INTEGER NOT NULL DEFAULT 0," + SYNC_GENERATION + " INTEGER,"
+            + THUMBNAIL_DATA + " TEXT" + ")";
+    // The media of a bucket are read and counted in id order
+    private static final String CREATE_FACEBOOK_PHOTO_INDEX = "CREATE INDEX " + TABLE_FACEBOOK_PHOTO + "_" + BUCKET_ID
+            + " ON " + TABLE_FACEBOOK_PHOTO + "(" + BUCKET_ID + "," + _ID + ")";
 
-    public static final String[] BUCKET_PROJECTION = {BUCKET_ID, BUCKET_DISPLAY_NAME, DATA};
+    private static final String CREATE_FACEBOOK_ALBUM_TABLE = "CREATE TABLE " + TABLE_FACEBOOK_ALBUM + "("
+            + ALBUM_ID + " TEXT PRIMARY KEY," + BUCKET_ID + " INTEGER UNIQUE,"
+            + BUCKET_DISPLAY_NAME + " TEXT," + UPDATED_TIME + " TEXT," + PHOTO_COUNT + " INTEGER,"
+            + COMPLETE + " INTEGER NOT NULL DEFAULT 0," + DELETED + " INTEGER NOT NULL DEFAULT 0,"
+            + COVER_DATA + " TEXT," + LIVE_COUNT + " INTEGER NOT NULL DEFAULT 0" + ")";
 
-    private static final String CREATE_FACEBOOK_TABLE = "CREATE TABLE " + TABLE_FACEBOOK + "("
-            + _ID + " INTEGER PRIMARY KEY," + BUCKET_ID + " INTEGER,"
-            + DISPLAY_NAME + " TEXT," + BUCKET_DISPLAY_NAME + " TEXT,"
-            + DATA + " TEXT," + WIDTH + " INTEGER," + HEIGHT + " INTEGER" + ")";
+    // Refreshes the cover and live count of the album of a bucket, both read off the bucket index
+    private static final String UPDATE_ALBUM_SUMMARY = "UPDATE " + TABLE_FACEBOOK_ALBUM + " SET "
+            + LIVE_COUNT + "=(SELECT COUNT(*) FROM " + TABLE_FACEBOOK_PHOTO + " WHERE " + BUCKET_ID + "=?1 AND " + DELETED + "=0),"
+            + COVER_DATA + "=(SELECT " + DATA + " FROM " + TABLE_FACEBOOK_PHOTO + " WHERE " + BUCKET_ID + "=?1 AND " + DELETED + "=0"
+            + " ORDER BY " + _ID + " DESC LIMIT 1)"
+            + " WHERE " + BUCKET_ID + "=?1";
 
-    public static final String BUCKET_SELECTION = "(1) GROUP BY (1)";
+    // The albums of the version 1 buckets, which Facebook album ids never start with
+    private static final String V1_ALBUM_ID_PREFIX = "v1_";
+
+    public static final String LIVE_SELECTION = DELETED + "=0";
+
+    // Only the albums with a stored photo to show as their cover
+    public static final String BUCKET_SELECTION = LIVE_SELECTION + " AND " + COVER_DATA + " IS NOT NULL";
+
+    private static final String[] ALBUM_STATE_PROJECTION = {ALBUM_ID, BUCKET_ID, BUCKET_DISPLAY_NAME, UPDATED_TIME, PHOTO_COUNT, COMPLETE, DELETED};
+
+    /**
+     * The sync state of an album, as stored by the last sync that saw it. Complete means that all the photos
+     * of the album, as of its updated time, are stored.
+     */
+    public static class AlbumState {
+
+        public final String albumId;
+        public final long bucketId;
+        public final String name;
+        public final String updatedTime;
+        public final int photoCount;
+        public final boolean complete;
+        public final boolean deleted;
+
+        private AlbumState(Cursor cursor) {
+            albumId = cursor.getString(0);
+            bucketId = cursor.getLong(1);
+            name = cursor.getString(2);
+            updatedTime = cursor.getString(3);
+            photoCount = cursor.isNull(4) ? FacebookAgent.Album.UNKNOWN_COUNT : cursor.getInt(4);
+            complete = cursor.getInt(5) != 0;
+            deleted = cursor.getInt(6) != 0;
+        }
+
+        /**
+         * @return True if the album was fully stored and hasn't changed since
+         */
+        public boolean isUpToDate(FacebookAgent.Album album) {
+            return complete && !deleted && updatedTime != null && updatedTime.equals(album.getUpdatedTime());
+        }
+    }
 
     //Creating Tables
     @Override
     public void onCreate(SQLiteDatabase db) {
-        db.execSQL(CREATE_FACEBOOK_TABLE);
+        db.execSQL(CREATE_FACEBOOK_PHOTO_TABLE);
+        db.execSQL(CREATE_FACEBOOK_PHOTO_INDEX);
+        db.execSQL(CREATE_FACEBOOK_ALBUM_TABLE);
     }
 
     // Upgrading database
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // Drop older table if existed
-        db.execSQL("DROP TABLE IF EXISTS " + TABLE_FACEBOOK);
+        if (oldVersion < 2) {
+            upgradeFromVersion1(db);
+        }
+    }
 
-        // Create tables again
+    // Moves the version 1 photos into the photos table, so the picker has them before the first sync. Version 1
+    // didn't keep the album ids, so each of its buckets gets an album that no sync lists: the sync tombstones it,
+    // and moves its photos to their album as it stores them again.
+    private void upgradeFromVersion1(SQLiteDatabase db) {
         onCreate(db);
+
+        db.execSQL("INSERT INTO " + TABLE_FACEBOOK_ALBUM + "(" + ALBUM_ID + "," + BUCKET_ID + "," + BUCKET_DISPLAY_NAME + ")"
+                + " SELECT '" + V1_ALBUM_ID_PREFIX + "'||" + BUCKET_ID + "," + BUCKET_ID + ",MAX(" + BUCKET_DISPLAY_NAME + ")"
+                + " FROM " + TABLE_FACEBOOK_V1 + " GROUP BY " + BUCKET_ID);
+
+        // Older than any sync generation, so a full pass of their album tombstones the ones it doesn't see
+        String photoColumns = _ID + "," + BUCKET_ID + "," + DISPLAY_NAME + "," + DATA + "," + WIDTH + "," + HEIGHT;
+        db.execSQL("INSERT INTO " + TABLE_FACEBOOK_PHOTO + "(" + photoColumns + "," + SYNC_GENERATION + ") SELECT "
+                + photoColumns + ",0 FROM " + TABLE_FACEBOOK_V1);
+        db.execSQL("DROP TABLE " + TABLE_FACEBOOK_V1);
+
+        db.execSQL(UPDATE_ALBUM_SUMMARY.replace("?1", TABLE_FACEBOOK_ALBUM + "." + BUCKET_ID));
+    }
+
+    /**
+     * Sets the grid cell size the photos stored from now on negotiate their thumbnail against: the smallest
+     * variant covering a cell. The original, the largest variant, is stored next to it and is the one the
+     * resolution is checked against and the picker returns.
+     */
+    public void setThumbnailSize(int thumbnailSize) {
+        mThumbnailSize = thumbnailSize;
     }
 
     /**
      * All CRUD(Create, Read, Update, Delete) Operations
      */
 
-    public void addAlbumInfo(List<FacebookAgent.Album> facebookAlbum) {
-        mAlbumList = facebookAlbum;
+    //Reading the sync state of all the albums, by album id
+    public Map<String, AlbumState> getAlbumStates() {
+        SQLiteDatabase db = this.getReadableDatabase();
+
+        Map<String, AlbumState> albumStates = new HashMap<>();
+        Cursor cursor = db.query(TABLE_FACEBOOK_ALBUM, ALBUM_STATE_PROJECTION, null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                AlbumState albumState = new AlbumState(cursor);
+                albumStates.put(albumState.albumId, albumState);
+            }
+        } finally {
+            cursor.close();
+        }
+        return albumStates;
+    }
+
+    //Reading the generation of the next sync, later than the one of every stored photo whatever the clock says
+    public long getNextSyncGeneration() {
+        SQLiteDatabase db = this.getReadableDatabase();
+        return DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(" + SYNC_GENERATION + "),0)+1 FROM " + TABLE_FACEBOOK_PHOTO, null);
     }
 
-    //Adding new Facebook photo
-    public void addFacebookPhoto(List<FacebookAgent.Photo> facebookPhoto, int albumCount) {
+    //Reading the sync state of the album of a bucket, null if there is none
+    public AlbumState getAlbumState(long bucketId) {
+        SQLiteDatabase db = this.getReadableDatabase();
+
+        Cursor cursor = db.query(TABLE_FACEBOOK_ALBUM, ALBUM_STATE_PROJECTION, BUCKET_ID + "=?",
+                new String[]{String.valueOf(bucketId)}, null, null, null);
+        try {
+            return cursor.moveToFirst() ? new AlbumState(cursor) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    //Starting to store an album as of its updated time, it stays incomplete until completeAlbum
+    public void beginAlbum(FacebookAgent.Album album, long bucketId) {
         SQLiteDatabase db = this.getWritableDatabase();
 
         ContentValues values = new ContentValues();
+        values.put(BUCKET_ID, bucketId);
+        values.put(BUCKET_DISPLAY_NAME, album.getName());
+        values.put(UPDATED_TIME, album.getUpdatedTime());
+        if (album.getCount() != FacebookAgent.Album.UNKNOWN_COUNT) {
+            values.put(PHOTO_COUNT, album.getCount());
+        }
+        values.put(COMPLETE, 0);
+        values.put(DELETED, 0);
+        if (db.update(TABLE_FACEBOOK_ALBUM, values, ALBUM_ID + "=?", new String[]{album.getId()}) == 0) {
+            values.put(ALBUM_ID, album.getId());
+            db.insert(TABLE_FACEBOOK_ALBUM, null, values);
+        }
+    }
+
+    //Adding or refreshing a page of photos of an album, returns the number of photos that weren't stored yet
+    // The page is written in one transaction, with the statements compiled once for all its rows
+    public int addFacebookPhotos(List<FacebookAgent.Photo> facebookPhoto, long bucketId, long generation) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        long start = SystemClock.elapsedRealtime();
+        int added = 0;
+
+        int thumbnailSize = mThumbnailSize;
+
+        // The columns are bound in the same order by all three statements, the id last
+        String columns = BUCKET_ID + "=?," + DISPLAY_NAME + "=?," + DATA + "=?," + WIDTH + "=?," + HEIGHT + "=?,"
+                + THUMBNAIL_DATA + "=?," + SYNC_GENERATION + "=?," + DELETED + "=0";
+        SQLiteStatement insert = db.compileStatement("INSERT OR IGNORE INTO " + TABLE_FACEBOOK_PHOTO + "("
+                + BUCKET_ID + "," + DISPLAY_NAME + "," + DATA + "," + WIDTH + "," + HEIGHT + ","
+                + THUMBNAIL_DATA + "," + SYNC_GENERATION + "," + DELETED + "," + _ID
+                + ") VALUES(?,?,?,?,?,?,?,0,?)");
+        SQLiteStatement revive = db.compileStatement("UPDATE " + TABLE_FACEBOOK_PHOTO + " SET " + columns
+                + " WHERE " + _ID + "=? AND " + DELETED + "=1");
+        SQLiteStatement refresh = db.compileStatement("UPDATE " + TABLE_FACEBOOK_PHOTO + " SET " + columns
+                + " WHERE " + _ID + "=?");
+        SQLiteStatement summary = db.compileStatement(UPDATE_ALBUM_SUMMARY);
+
+        db.beginTransaction();
         try {
             for (int i = 0; i < facebookPhoto.size(); i++) {
-                String id = facebookPhoto.get(i).getId();
-                String url = facebookPhoto.get(i).getFullURL().toURI().toString();
+                FacebookAgent.Photo photo = facebookPhoto.get(i);
+                String url = photo.getFullURLString();
                 String name = url.substring(url.lastIndexOf("/") + 1, url.lastIndexOf("?"));
-                String bucketName = mAlbumList.get(albumCount).getName();
-                int width = facebookPhoto.get(i).getFullWidth();
-                int height = facebookPhoto.get(i).getFullHeight();
-                values.put(_ID, id);
-                values.put(BUCKET_ID, albumCount + 1);
-                values.put(DISPLAY_NAME, name);
-                values.put(BUCKET_DISPLAY_NAME, bucketName);
-                values.put(DATA, url);
-                values.put(WIDTH, width);
-                values.put(HEIGHT, height);
-
-                // Inserting Row
-                db.insert(TABLE_FACEBOOK, null, values);
+
+                // Only the grid variant is kept, next to the original
+                FacebookAgent.Photo.Image thumbnail = photo.getBestImage(thumbnailSize, thumbnailSize);
+
+                // Inserting Row, or reviving its tombstone, or refreshing it
+                bindPhoto(insert, photo.getId(), bucketId, name, url, photo, thumbnail, generation);
+                if (insert.executeInsert() != -1) {
+                    added++;
+                } else {
+                    bindPhoto(revive, photo.getId(), bucketId, name, url, photo, thumbnail, generation);
+                    if (revive.executeUpdateDelete() == 1) {
+                        added++;
+                    } else {
+                        bindPhoto(refresh, photo.getId(), bucketId, name, url, photo, thumbnail, generation);
+                        refresh.executeUpdateDelete();
+                    }
+                }
+            }
+            summary.bindLong(1, bucketId);
+            summary.executeUpdateDelete();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+            revive.close();
+            refresh.close();
+            summary.close();
+        }
+
+        logThroughput(facebookPhoto.size(), SystemClock.elapsedRealtime() - start);
+        return added;
+    }
+
+    private static void bindPhoto(SQLiteStatement statement, String id, long bucketId, String name, String url,
+                                  FacebookAgent.Photo photo, FacebookAgent.Photo.Image thumbnail, long generation) {
+        statement.clearBindings();
+        statement.bindLong(1, bucketId);
+        statement.bindString(2, name);
+        statement.bindString(3, url);
+        statement.bindLong(4, photo.getFullWidth());
+        statement.bindLong(5, photo.getFullHeight());
+        statement.bindString(6, thumbnail.getSourceURLString());
+        statement.bindLong(7, generation);
+        statement.bindString(8, id);
+    }
+
+    private synchronized void logThroughput(int count, long millis) {
+        mWrittenPhotos += count;
+        mWriteMillis += millis;
+        if (DEBUGGING_ENABLED) {
+            Log.d(LOG_TAG, "Wrote " + count + " photo(s) in " + millis + " ms, " + mWrittenPhotos + " in total at "
+                    + getPhotosPerSecond() + " photos/s");
+        }
+    }
+
+    /**
+     * @return The number of photos written since the helper was created
+     */
+    public synchronized long getWrittenPhotoCount() {
+        return mWrittenPhotos;
+    }
+
+    /**
+     * @return The photos written per second of write time, since the helper was created
+     */
+    public synchronized long getPhotosPerSecond() {
+        return mWriteMillis > 0 ? mWrittenPhotos * 1000 / mWriteMillis : mWrittenPhotos;
+    }
+
+    //Refreshing the cover and live count of the album of a bucket, after its photos were written
+    public void updateAlbumSummary(long bucketId) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.execSQL(UPDATE_ALBUM_SUMMARY, new Object[]{bucketId});
+    }
+
+    //Completing an album, returns the number of its live photos
+    public long completeAlbum(FacebookAgent.Album album, long bucketId, long generation, boolean fullPass) {
+        SQLiteDatabase db = this.getWritableDatabase();
+
+        db.beginTransaction();
+        try {
+            // A full pass saw every photo of the album, the ones it didn't see are gone
+            if (fullPass) {
+                ContentValues tombstone = new ContentValues();
+                tombstone.put(DELETED, 1);
+                db.update(TABLE_FACEBOOK_PHOTO, tombstone, BUCKET_ID + "=? AND " + SYNC_GENERATION + "<? AND " + LIVE_SELECTION,
+                        new String[]{String.valueOf(bucketId), String.valueOf(generation)});
+                db.execSQL(UPDATE_ALBUM_SUMMARY, new Object[]{bucketId});
             }
-            db.close(); // Closing database connection
-        } catch (URISyntaxException e) {
-            e.printStackTrace();
+
+            ContentValues values = new ContentValues();
+            values.put(COMPLETE, 1);
+            db.update(TABLE_FACEBOOK_ALBUM, values, ALBUM_ID + "=?", new String[]{album.getId()});
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
         }
+
+        return DatabaseUtils.queryNumEntries(db, TABLE_FACEBOOK_PHOTO, BUCKET_ID + "=? AND " + LIVE_SELECTION,
+                new String[]{String.valueOf(bucketId)});
+    }
+
+    //Tombstoning the albums, and their photos, that aren't on Facebook any more
+    public void tombstoneAlbums(Collection<String> liveAlbumIds) {
+        SQLiteDatabase db = this.getWritableDatabase();
+
+        StringBuilder liveSelection = new StringBuilder(ALBUM_ID + " NOT IN (");
+        String[] args = liveAlbumIds.toArray(new String[liveAlbumIds.size()]);
+        for (int i = 0; i < args.length; i++) {
+            liveSelection.append(i == 0 ? "?" : ",?");
+        }
+        liveSelection.append(") AND ").append(LIVE_SELECTION);
+
+        ContentValues tombstone = new ContentValues();
+        tombstone.put(DELETED, 1);
+        db.beginTransaction();
+        try {
+            db.update(TABLE_FACEBOOK_PHOTO, tombstone, BUCKET_ID + " IN (SELECT " + BUCKET_ID + " FROM " + TABLE_FACEBOOK_ALBUM
+                    + " WHERE " + liveSelection + ") AND " + LIVE_SELECTION, args);
+            int count = db.update(TABLE_FACEBOOK_ALBUM, tombstone, liveSelection.toString(), args);
+            db.setTransactionSuccessful();
+            if (DEBUGGING_ENABLED) Log.d(LOG_TAG, count + " album(s) deleted");
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    //Notifying the loaders of the rows written outside the provider
+    public void notifyChange() {
+        FacebookProvider.notifyChange(mContext);
     }
 
     // Deleting table
     public void deleteAllFacebookPhotos() {
         SQLiteDatabase db = this.getWritableDatabase();
-        db.delete(TABLE_FACEBOOK, null, null);
-        db.close();
+        db.beginTransaction();
+        try {
+            db.delete(TABLE_FACEBOOK_PHOTO, null, null);
+            db.delete(TABLE_FACEBOOK_ALBUM, null, null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        // The connection is shared and stays open
     }
 }
@@ -30,7 +30,7 @@ public class FacebookMediaLoader implements LoaderManager.LoaderCallbacks<Cursor
     private static final int BUCKET_LOADER = 4;
     private static final int MEDIA_LOADER = 5;
 
-    static final long ALL_MEDIA_BUCKET_ID = 0;
+    public static final long ALL_MEDIA_BUCKET_ID = 0;
     private static final String BUCKET_ID = FacebookDBHelper.BUCKET_ID;
 
     public static long bucketId;
@@ -44,6 +44,8 @@ public class FacebookMediaLoader implements LoaderManager.LoaderCallbacks<Cursor
 
     private FragmentActivity mActivity;
     private Callbacks mCallbacks;
+    // The loaders stay registered for content changes, only the last one started is shown
+    private int mActiveLoaderId = BUCKET_LOADER;
 
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
@@ -75,7 +77,7 @@ public class FacebookMediaLoader implements LoaderManager.LoaderCallbacks<Cursor
 
     @Override
     public void onLoadFinished(@NonNull Loader<Cursor> loader, @Nullable Cursor data) {
-        if (mCallbacks != null) {
+        if (mCallbacks != null && loader.getId() == mActiveLoaderId) {
             if (loader.getId() == BUCKET_LOADER) {
                 mCallbacks.onBucketLoadFinished(addAllMediaBucketItem(data));
             } else {
@@ -101,16 +103,19 @@ public class FacebookMediaLoader implements LoaderManager.LoaderCallbacks<Cursor
 
     public void loadBuckets() {
         ensureActivityAttached();
+        mActiveLoaderId = BUCKET_LOADER;
         mActivity.getSupportLoaderManager().restartLoader(BUCKET_LOADER, null, this);
     }
 
     public void loadByBucket(@IntRange(from = 0) long bucketId) {
         ensureActivityAttached();
         if (ALL_MEDIA_BUCKET_ID == bucketId) {
+            mActiveLoaderId = TIME_LOADER;
             mActivity.getSupportLoaderManager().restartLoader(TIME_LOADER, null, this);
         } else {
             Bundle args = new Bundle();
             args.putLong(BUCKET_ID, bucketId);
+            mActiveLoaderId = MEDIA_LOADER;
             mActivity.getSupportLoaderManager().restartLoader(MEDIA_LOADER, args, this);
         }
     }
@@ -138,11 +143,18 @@ public class FacebookMediaLoader implements LoaderManager.LoaderCallbacks<Cursor
         long id = ALL_MEDIA_BUCKET_ID;
         String label = mActivity.getString(R.string.activity_gallery_bucket_all_media);
         String data = cursor.getString(cursor.getColumnIndex(FacebookDBHelper.DATA));
-        MatrixCursor allMediaRow = new MatrixCursor(BUCKET_PROJECTION);
+        int countColumn = cursor.getColumnIndex(FacebookDBHelper.BUCKET_COUNT);
+        long count = 0;
+        do {
+            count += cursor.getLong(countColumn);
+        } while (cursor.moveToNext());
+        // The merged cursor takes its column names from the first cursor
+        MatrixCursor allMediaRow = new MatrixCursor(cursor.getColumnNames());
         allMediaRow.newRow()
                 .add(id)
                 .add(label)
-                .add(data);
+                .add(data)
+                .add(count);
         return new MergeCursor(new Cursor[]{allMediaRow, cursor});
     }
 }
\ No newline at end of file
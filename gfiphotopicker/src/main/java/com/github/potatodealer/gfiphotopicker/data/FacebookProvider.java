@@ -2,8 +2,13 @@ package com.github.potatodealer.gfiphotopicker.data;
 
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.SQLException;
@@ -14,6 +19,9 @@ import android.support.annotation.Nullable;
 import android.util.Log;
 
 import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
 
 public class FacebookProvider extends ContentProvider {
 
@@ -61,11 +69,22 @@ public class FacebookProvider extends ContentProvider {
 
     private static final UriMatcher uriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 
+    /**
+     * Notify the loaders of all the uris, for rows written straight to the {@link FacebookDBHelper}.
+     */
+    public static void notifyChange(Context context) {
+        ContentResolver resolver = context.getContentResolver();
+        resolver.notifyChange(FACEBOOK_ALL_IMAGE_URI, null);
+        resolver.notifyChange(FACEBOOK_BUCKET_URI, null);
+        resolver.notifyChange(FACEBOOK_IMAGE_URI, null);
+    }
+
+    private FacebookDBHelper helper;
     private SQLiteDatabase db;
 
     @Override
     public boolean onCreate() {
-        FacebookDBHelper helper = new FacebookDBHelper(getContext());
+        helper = FacebookDBHelper.getInstance(getContext());
         db = helper.getWritableDatabase();
         return db != null;
     }
@@ -77,16 +96,16 @@ public class FacebookProvider extends ContentProvider {
         Log.d("uri", "" + uriMatcher.match(uri));
         switch (uriMatcher.match(uri)) {
             case ALL_IMAGE:
-                cursor =  db.query(FacebookDBHelper.TABLE_FACEBOOK, FacebookDBHelper.ALL_IMAGE_PROJECTION,
-                        null, null, null, null, FacebookDBHelper._ID +" DESC");
+                cursor =  db.query(FacebookDBHelper.TABLE_FACEBOOK_PHOTO, FacebookDBHelper.ALL_IMAGE_PROJECTION,
+                        FacebookDBHelper.LIVE_SELECTION, null, null, null, FacebookDBHelper._ID +" DESC");
                 break;
             case BUCKET:
-                cursor =  db.query(FacebookDBHelper.TABLE_FACEBOOK, FacebookDBHelper.BUCKET_PROJECTION,
+                cursor =  db.query(FacebookDBHelper.TABLE_FACEBOOK_ALBUM, FacebookDBHelper.BUCKET_PROJECTION,
                         String.format("%s", FacebookDBHelper.BUCKET_SELECTION), null, null, null, FacebookDBHelper.BUCKET_ID +" ASC");
                 break;
             case IMAGE:
-                cursor =  db.query(FacebookDBHelper.TABLE_FACEBOOK, FacebookDBHelper.IMAGE_PROJECTION,
-                        String.format("%s=%s", FacebookDBHelper.BUCKET_ID, FacebookMediaLoader.bucketId), null, null, null, FacebookDBHelper._ID +" DESC");
+                cursor =  db.query(FacebookDBHelper.TABLE_FACEBOOK_PHOTO, FacebookDBHelper.IMAGE_PROJECTION,
+                        String.format("%s=%s AND %s", FacebookDBHelper.BUCKET_ID, FacebookMediaLoader.bucketId, FacebookDBHelper.LIVE_SELECTION), null, null, null, FacebookDBHelper._ID +" DESC");
                 break;
             default:
                 throw new IllegalArgumentException("This is an Unknown URI " + uri);
@@ -113,7 +132,19 @@ public class FacebookProvider extends ContentProvider {
     public Uri insert(@NonNull Uri uri, @Nullable ContentValues contentValues) {
         Log.d("insert", "Initialized");
 
-        long id = db.insert(FacebookDBHelper.TABLE_FACEBOOK,null,contentValues);
+        // The photo and the summary of its album are written together
+        long id;
+        db.beginTransaction();
+        try {
+            id = db.insert(FacebookDBHelper.TABLE_FACEBOOK_PHOTO,null,contentValues);
+            Long bucketId = contentValues != null ? contentValues.getAsLong(FacebookDBHelper.BUCKET_ID) : null;
+            if (id > 0 && bucketId != null) {
+                helper.updateAlbumSummary(bucketId);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
 
         if (id > 0) {
             Uri _uri = ContentUris.withAppendedId(FACEBOOK_BUCKET_URI, id);
@@ -123,6 +154,60 @@ public class FacebookProvider extends ContentProvider {
         throw new SQLException("Insertion Failed for URI :" + uri);
     }
 
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        Log.d("bulkInsert", "Initialized");
+
+        switch (uriMatcher.match(uri)) {
+            case BUCKET:
+            case IMAGE:
+                break;
+            default:
+                throw new IllegalArgumentException("This is an Unknown URI " + uri);
+        }
+
+        // One transaction and one notification for all the rows
+        int insCount = 0;
+        Set<Long> bucketIds = new HashSet<>();
+        db.beginTransaction();
+        try {
+            for (ContentValues contentValues : values) {
+                if (db.insert(FacebookDBHelper.TABLE_FACEBOOK_PHOTO, null, contentValues) > 0) {
+                    insCount++;
+                    Long bucketId = contentValues.getAsLong(FacebookDBHelper.BUCKET_ID);
+                    if (bucketId != null) {
+                        bucketIds.add(bucketId);
+                    }
+                }
+            }
+            // Once per album, not once per photo
+            for (Long bucketId : bucketIds) {
+                helper.updateAlbumSummary(bucketId);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (insCount > 0) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+        return insCount;
+    }
+
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations) throws OperationApplicationException {
+        // All the operations succeed or fail together, in one transaction
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            return results;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     @Override
     public int delete(@NonNull Uri uri, @Nullable String s, @Nullable String[] strings) {
         Log.d("delete", "Initialized");
@@ -130,7 +215,7 @@ public class FacebookProvider extends ContentProvider {
         int delCount = 0;
         switch (uriMatcher.match(uri)) {
             case BUCKET:
-                delCount =  db.delete(FacebookDBHelper.TABLE_FACEBOOK,s,strings);
+                delCount =  db.delete(FacebookDBHelper.TABLE_FACEBOOK_PHOTO,s,strings);
                 break;
             default:
                 throw new IllegalArgumentException("This is an Unknown URI " + uri);
@@ -146,7 +231,7 @@ public class FacebookProvider extends ContentProvider {
         int updCount = 0;
         switch (uriMatcher.match(uri)) {
             case BUCKET:
-                updCount =  db.update(FacebookDBHelper.TABLE_FACEBOOK,contentValues,s,strings);
+                updCount =  db.update(FacebookDBHelper.TABLE_FACEBOOK_PHOTO,contentValues,s,strings);
                 break;
             default:
                 throw new IllegalArgumentException("This is an Unknown URI " + uri);
@@ -0,0 +1,374 @@
+package com.github.potatodealer.gfiphotopicker.data;
+
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.MediaStore;
+import android.support.annotation.NonNull;
+import android.support.v4.util.LongSparseArray;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Process wide summary of the {@link MediaStore} image buckets: display name, cover, photo count and latest date.
+ * <p>
+ * The summary is kept in {@link GalleryIndexDBHelper} and built once. After that only the images added, modified
+ * or deleted since the last sync are read again, and only the buckets they belong to are recomputed, so showing the
+ * bucket list is a read of a small table instead of a GROUP BY over the whole MediaStore images table.
+ */
+public class GalleryBucketIndex {
+
+    private static final String LOG_TAG = "GalleryBucketIndex";
+
+    // Wait for the MediaStore to settle before syncing, a camera burst changes it many times in a row
+    private static final long SYNC_DELAY_MILLIS = 500;
+    private static final int ID_CHUNK_SIZE = 500;
+
+    private static final String[] MEDIA_KEY_PROJECTION = {
+            MediaStore.Images.ImageColumns._ID,
+            MediaStore.Images.ImageColumns.DATE_MODIFIED
+    };
+    private static final String[] MEDIA_PROJECTION = {
+            MediaStore.Images.ImageColumns._ID,
+            MediaStore.Images.ImageColumns.BUCKET_ID,
+            MediaStore.Images.ImageColumns.BUCKET_DISPLAY_NAME,
+            MediaStore.Images.ImageColumns.DATA,
+            MediaStore.Images.ImageColumns.DATE_TAKEN,
+            MediaStore.Images.ImageColumns.DATE_MODIFIED
+    };
+    // Same columns as GalleryMediaQuery.BUCKET_PROJECTION, so the rows can be merged with the "All Media" row
+    private static final String[] BUCKET_PROJECTION = {
+            GalleryIndexDBHelper.BUCKET_ID + " AS " + MediaStore.Images.ImageColumns.BUCKET_ID,
+            GalleryIndexDBHelper.BUCKET_NAME + " AS " + MediaStore.Images.ImageColumns.BUCKET_DISPLAY_NAME,
+            GalleryIndexDBHelper.COVER_DATA + " AS " + MediaStore.Images.ImageColumns.DATA,
+            GalleryIndexDBHelper.COVER_ID + " AS " + MediaStore.Images.ImageColumns._ID
+    };
+    private static final String BUCKET_SORT_ORDER = GalleryIndexDBHelper.LATEST_DATE + " DESC, "
+            + GalleryIndexDBHelper.COVER_ID + " DESC";
+
+    public interface Listener {
+
+        /**
+         * Called on the main thread when the bucket summary changed.
+         */
+        void onBucketsChanged();
+    }
+
+    private static GalleryBucketIndex sInstance;
+
+    public static synchronized GalleryBucketIndex getInstance(@NonNull Context context) {
+        if (sInstance == null) {
+            sInstance = new GalleryBucketIndex(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private final Context mContext;
+    private final GalleryIndexDBHelper mDBHelper;
+    private final Handler mMainHandler;
+    private final ExecutorService mSyncExecutor;
+    private final List<Listener> mListeners;
+    private final Object mSyncLock;
+    private final Runnable mSyncRunnable;
+    private volatile boolean mDirty;
+    private volatile boolean mBuilt;
+
+    private GalleryBucketIndex(Context context) {
+        mContext = context;
+        mDBHelper = new GalleryIndexDBHelper(context);
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mSyncExecutor = Executors.newSingleThreadExecutor();
+        mListeners = new CopyOnWriteArrayList<>();
+        mSyncLock = new Object();
+        mSyncRunnable = new Runnable() {
+            @Override
+            public void run() {
+                if (!mListeners.isEmpty()) {
+                    syncIfDirty();
+                }
+            }
+        };
+        // Whatever happened while the process was dead has to be picked up once
+        mDirty = true;
+        context.getContentResolver().registerContentObserver(GalleryMediaQuery.GALLERY_URI, true, new ContentObserver(mMainHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                mDirty = true;
+                // Nobody shows the buckets, the next loader to start syncs them
+                if (mListeners.isEmpty()) {
+                    return;
+                }
+                mMainHandler.removeCallbacks(mSyncRunnable);
+                mMainHandler.postDelayed(mSyncRunnable, SYNC_DELAY_MILLIS);
+            }
+        });
+    }
+
+    public void addListener(@NonNull Listener listener) {
+        if (!mListeners.contains(listener)) {
+            mListeners.add(listener);
+        }
+    }
+
+    public void removeListener(@NonNull Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * @return If the summary was built at least once, in this process or an earlier one
+     */
+    public boolean isBuilt() {
+        if (!mBuilt) {
+            SQLiteDatabase db = mDBHelper.getReadableDatabase();
+            mBuilt = DatabaseUtils.queryNumEntries(db, GalleryIndexDBHelper.TABLE_BUCKET_IMAGE) > 0;
+        }
+        return mBuilt;
+    }
+
+    /**
+     * Sync the summary in the background if the MediaStore may have changed since the last sync.
+     */
+    public void syncIfDirty() {
+        if (!mDirty) {
+            return;
+        }
+        mSyncExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mDirty) {
+                    sync();
+                }
+            }
+        });
+    }
+
+    /**
+     * Bring the summary up to date on the calling thread. Listeners are notified if it changed.
+     */
+    public void sync() {
+        synchronized (mSyncLock) {
+            mDirty = false;
+            boolean changed;
+            try {
+                changed = syncLocked();
+            } catch (RuntimeException e) {
+                // The MediaStore can go away under us (e.g. storage unmounted), try again next time
+                Log.e(LOG_TAG, "Unable to sync the bucket summary", e);
+                mDirty = true;
+                return;
+            }
+            mBuilt = true;
+            if (changed) {
+                notifyListeners();
+            }
+        }
+    }
+
+    /**
+     * @return The buckets with the {@link MediaStore.Images.ImageColumns#BUCKET_ID},
+     * {@link MediaStore.Images.ImageColumns#BUCKET_DISPLAY_NAME}, {@link MediaStore.Images.ImageColumns#DATA} of the
+     * cover and {@link MediaStore.Images.ImageColumns#_ID} of the cover columns, the most recent first
+     */
+    @NonNull
+    public Cursor queryBuckets() {
+        SQLiteDatabase db = mDBHelper.getReadableDatabase();
+        return db.query(GalleryIndexDBHelper.TABLE_BUCKET, BUCKET_PROJECTION, null, null, null, null, BUCKET_SORT_ORDER);
+    }
+
+    private boolean syncLocked() {
+        SQLiteDatabase db = mDBHelper.getWritableDatabase();
+
+        // Find what changed by comparing the ids and modification dates only
+        LongSparseArray<Long> known = new LongSparseArray<>();
+        Cursor indexed = db.query(GalleryIndexDBHelper.TABLE_BUCKET_IMAGE,
+                new String[]{GalleryIndexDBHelper._ID, GalleryIndexDBHelper.DATE_MODIFIED},
+                null, null, null, null, GalleryIndexDBHelper._ID + " ASC");
+        try {
+            while (indexed.moveToNext()) {
+                known.append(indexed.getLong(0), indexed.getLong(1));
+            }
+        } finally {
+            indexed.close();
+        }
+        boolean firstBuild = known.size() == 0;
+
+        Cursor media = mContext.getContentResolver().query(GalleryMediaQuery.GALLERY_URI, MEDIA_KEY_PROJECTION,
+                null, null, MediaStore.Images.ImageColumns._ID + " ASC");
+        if (media == null) {
+            return false;
+        }
+        List<Long> changed = new ArrayList<>();
+        try {
+            while (media.moveToNext()) {
+                long id = media.getLong(0);
+                Long dateModified = known.get(id);
+                if (dateModified == null || dateModified != media.getLong(1)) {
+                    changed.add(id);
+                }
+                if (dateModified != null) {
+                    known.remove(id);
+                }
+            }
+        } finally {
+            media.close();
+        }
+        // What's left wasn't in the MediaStore anymore
+        LongSparseArray<Long> removed = known;
+        if (changed.isEmpty() && removed.size() == 0) {
+            return false;
+        }
+
+        Set<Long> dirtyBuckets = new HashSet<>();
+        SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO " + GalleryIndexDBHelper.TABLE_BUCKET_IMAGE
+                + " (" + GalleryIndexDBHelper._ID + "," + GalleryIndexDBHelper.BUCKET_ID + "," + GalleryIndexDBHelper.BUCKET_NAME
+                + "," + GalleryIndexDBHelper.DATA + "," + GalleryIndexDBHelper.DATE_TAKEN + "," + GalleryIndexDBHelper.DATE_MODIFIED
+                + ") VALUES (?,?,?,?,?,?)");
+        db.beginTransaction();
+        try {
+            for (int i = 0, size = removed.size(); i < size; i++) {
+                deleteImage(db, removed.keyAt(i), dirtyBuckets);
+            }
+            if (firstBuild) {
+                insertImages(db, insert, null, dirtyBuckets);
+            } else {
+                for (int from = 0; from < changed.size(); from += ID_CHUNK_SIZE) {
+                    List<Long> chunk = changed.subList(from, Math.min(from + ID_CHUNK_SIZE, changed.size()));
+                    for (Long id : chunk) {
+                        // The image may have moved to another bucket
+                        deleteImage(db, id, dirtyBuckets);
+                    }
+                    insertImages(db, insert, MediaStore.Images.ImageColumns._ID + " IN (" + joinIds(chunk) + ")", dirtyBuckets);
+                }
+            }
+            for (Long bucketId : dirtyBuckets) {
+                updateBucket(db, bucketId);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+        }
+        return !dirtyBuckets.isEmpty();
+    }
+
+    private void deleteImage(SQLiteDatabase db, long id, Set<Long> dirtyBuckets) {
+        String[] args = {String.valueOf(id)};
+        Cursor cursor = db.query(GalleryIndexDBHelper.TABLE_BUCKET_IMAGE, new String[]{GalleryIndexDBHelper.BUCKET_ID},
+                GalleryIndexDBHelper._ID + "=?", args, null, null, null);
+        try {
+            if (cursor.moveToFirst()) {
+                dirtyBuckets.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        db.delete(GalleryIndexDBHelper.TABLE_BUCKET_IMAGE, GalleryIndexDBHelper._ID + "=?", args);
+    }
+
+    private void insertImages(SQLiteDatabase db, SQLiteStatement insert, String selection, Set<Long> dirtyBuckets) {
+        Cursor cursor = mContext.getContentResolver().query(GalleryMediaQuery.GALLERY_URI, MEDIA_PROJECTION,
+                selection, null, null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                long bucketId = cursor.getLong(1);
+                insert.clearBindings();
+                insert.bindLong(1, cursor.getLong(0));
+                insert.bindLong(2, bucketId);
+                bindString(insert, 3, cursor.getString(2));
+                bindString(insert, 4, cursor.getString(3));
+                // Images without a date taken are the oldest ones, like in GalleryMediaQuery.MEDIA_SORT_ORDER
+                insert.bindLong(5, cursor.getLong(4));
+                insert.bindLong(6, cursor.getLong(5));
+                insert.executeInsert();
+                dirtyBuckets.add(bucketId);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Compute the summary row of a bucket again from its images, using the bucket_id index.
+     */
+    private void updateBucket(SQLiteDatabase db, long bucketId) {
+        String[] args = {String.valueOf(bucketId)};
+        long count = DatabaseUtils.queryNumEntries(db, GalleryIndexDBHelper.TABLE_BUCKET_IMAGE,
+                GalleryIndexDBHelper.BUCKET_ID + "=?", args);
+        if (count == 0) {
+            db.delete(GalleryIndexDBHelper.TABLE_BUCKET, GalleryIndexDBHelper.BUCKET_ID + "=?", args);
+            return;
+        }
+        Cursor cover = db.query(GalleryIndexDBHelper.TABLE_BUCKET_IMAGE,
+                new String[]{GalleryIndexDBHelper._ID, GalleryIndexDBHelper.BUCKET_NAME, GalleryIndexDBHelper.DATA, GalleryIndexDBHelper.DATE_TAKEN},
+                GalleryIndexDBHelper.BUCKET_ID + "=?", args, null, null,
+                GalleryIndexDBHelper.DATE_TAKEN + " DESC, " + GalleryIndexDBHelper._ID + " DESC", "1");
+        try {
+            if (!cover.moveToFirst()) {
+                return;
+            }
+            SQLiteStatement statement = db.compileStatement("INSERT OR REPLACE INTO " + GalleryIndexDBHelper.TABLE_BUCKET
+                    + " (" + GalleryIndexDBHelper.BUCKET_ID + "," + GalleryIndexDBHelper.BUCKET_NAME + "," + GalleryIndexDBHelper.COVER_ID
+                    + "," + GalleryIndexDBHelper.COVER_DATA + "," + GalleryIndexDBHelper.COUNT + "," + GalleryIndexDBHelper.LATEST_DATE
+                    + ") VALUES (?,?,?,?,?,?)");
+            try {
+                statement.bindLong(1, bucketId);
+                bindString(statement, 2, cover.getString(1));
+                statement.bindLong(3, cover.getLong(0));
+                bindString(statement, 4, cover.getString(2));
+                statement.bindLong(5, count);
+                statement.bindLong(6, cover.getLong(3));
+                statement.executeInsert();
+            } finally {
+                statement.close();
+            }
+        } finally {
+            cover.close();
+        }
+    }
+
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    private static String joinIds(List<Long> ids) {
+        StringBuilder builder = new StringBuilder(ids.size() * 8);
+        for (int i = 0; i < ids.size(); i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(ids.get(i));
+        }
+        return builder.toString();
+    }
+
+    private void notifyListeners() {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Listener listener : mListeners) {
+                    listener.onBucketsChanged();
+                }
+            }
+        });
+    }
+}
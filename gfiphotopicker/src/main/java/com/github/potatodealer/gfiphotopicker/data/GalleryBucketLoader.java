@@ -0,0 +1,133 @@
+package com.github.potatodealer.gfiphotopicker.data;
+
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.MergeCursor;
+import android.provider.MediaStore;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.content.AsyncTaskLoader;
+import android.support.v7.util.DiffUtil;
+
+import static com.github.potatodealer.gfiphotopicker.data.GalleryMediaQuery.BUCKET_PROJECTION;
+
+/**
+ * {@link AsyncTaskLoader} subclass that reads the buckets from the {@link GalleryBucketIndex} summary.
+ * <p>
+ * The summary is only built on the loader thread the very first time. Afterwards the stored summary is shown
+ * right away, and the loader reloads when a background sync changed it.
+ */
+class GalleryBucketLoader extends AsyncTaskLoader<GallerySnapshot> implements GalleryBucketIndex.Listener {
+
+    private final GalleryBucketIndex mIndex;
+    private final String mAllMediaLabel;
+    private GallerySnapshot mSnapshot;
+    @Nullable
+    private volatile GallerySnapshot mBaseline;
+    private boolean mListening;
+
+    GalleryBucketLoader(@NonNull Context context, @NonNull String allMediaLabel) {
+        super(context);
+        mIndex = GalleryBucketIndex.getInstance(context);
+        mAllMediaLabel = allMediaLabel;
+    }
+
+    @Override
+    public GallerySnapshot loadInBackground() {
+        if (!mIndex.isBuilt()) {
+            mIndex.sync();
+        }
+        GallerySnapshot baseline = mBaseline;
+        Cursor cursor = mIndex.queryBuckets();
+        GallerySnapshot snapshot;
+        try {
+            Cursor withAllMedia = addAllMediaBucketItem(cursor);
+            if (withAllMedia == null) {
+                return null;
+            }
+            snapshot = GallerySnapshot.fromCursor(withAllMedia);
+        } finally {
+            cursor.close();
+        }
+        if (baseline != null) {
+            DiffUtil.DiffResult diff = DiffUtil.calculateDiff(new GallerySnapshotDiffCallback(baseline, snapshot, true), false);
+            snapshot.setDiff(baseline, diff);
+        }
+        return snapshot;
+    }
+
+    @Override
+    public void deliverResult(GallerySnapshot data) {
+        if (isReset()) {
+            return;
+        }
+        mSnapshot = data;
+        mBaseline = data;
+        if (isStarted()) {
+            super.deliverResult(data);
+        }
+    }
+
+    @Override
+    public void onBucketsChanged() {
+        onContentChanged();
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (!mListening) {
+            mIndex.addListener(this);
+            mListening = true;
+        }
+        if (mSnapshot != null) {
+            deliverResult(mSnapshot);
+        }
+        if (takeContentChanged() || mSnapshot == null) {
+            forceLoad();
+        }
+        // Pick up what changed while nobody was looking, the listener reloads if anything did
+        mIndex.syncIfDirty();
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+        if (mListening) {
+            mIndex.removeListener(this);
+            mListening = false;
+        }
+        mSnapshot = null;
+        mBaseline = null;
+    }
+
+    /**
+     * Add "All Media" item as the first row of bucket items.
+     *
+     * @param cursor The original data of all bucket items
+     * @return The data with "All Media" item added
+     */
+    @Nullable
+    private Cursor addAllMediaBucketItem(@NonNull Cursor cursor) {
+        if (!cursor.moveToPosition(0)) {
+            return null;
+        }
+        long id = GalleryMediaLoader.ALL_MEDIA_BUCKET_ID;
+        String data = cursor.getString(cursor.getColumnIndex(MediaStore.Images.Media.DATA));
+        long coverId = cursor.getLong(cursor.getColumnIndex(MediaStore.Images.Media._ID));
+        MatrixCursor allMediaRow = new MatrixCursor(BUCKET_PROJECTION);
+        allMediaRow.newRow()
+                .add(id)
+                .add(mAllMediaLabel)
+                .add(data)
+                .add(coverId);
+        return new MergeCursor(new Cursor[]{allMediaRow, cursor});
+    }
+}
@@ -0,0 +1,386 @@
+package com.github.potatodealer.gfiphotopicker.data;
+
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.MediaStore;
+import android.support.annotation.NonNull;
+import android.support.v4.util.LongSparseArray;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process wide index of the image dimensions of the {@link MediaStore} images, keyed by
+ * {@link MediaStore.Images.ImageColumns#_ID} and {@link MediaStore.Images.ImageColumns#DATE_MODIFIED}.
+ * <p>
+ * The index is filled first from the {@link MediaStore.Images.ImageColumns#WIDTH} and
+ * {@link MediaStore.Images.ImageColumns#HEIGHT} columns, and the rows the MediaStore doesn't know
+ * the size of are resolved by decoding the image bounds on a pool of background threads.
+ * Everything is persisted in {@link GalleryIndexDBHelper}, so lookups never have to touch the disk.
+ */
+public class GalleryDimensionIndex {
+
+    private static final String LOG_TAG = "GalleryDimensionIndex";
+
+    private static final int SCANNER_THREAD_COUNT = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final int SCANNER_BATCH_SIZE = 64;
+
+    private static final String[] MEDIA_PROJECTION = {
+            MediaStore.Images.ImageColumns._ID,
+            MediaStore.Images.ImageColumns.DATE_MODIFIED,
+            MediaStore.Images.ImageColumns.WIDTH,
+            MediaStore.Images.ImageColumns.HEIGHT,
+            MediaStore.Images.ImageColumns.DATA
+    };
+
+    public interface Listener {
+
+        /**
+         * Called on the main thread when the dimensions of more images became known.
+         */
+        void onDimensionsIndexed();
+    }
+
+    private static GalleryDimensionIndex sInstance;
+
+    public static synchronized GalleryDimensionIndex getInstance(@NonNull Context context) {
+        if (sInstance == null) {
+            sInstance = new GalleryDimensionIndex(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private final Context mContext;
+    private final GalleryIndexDBHelper mDBHelper;
+    private final Handler mMainHandler;
+    private final ExecutorService mSyncExecutor;
+    private final ExecutorService mScannerExecutor;
+    private final List<Listener> mListeners;
+    private final AtomicInteger mPendingScans;
+    private final Object mLock;
+    private LongSparseArray<Dimensions> mEntries;
+    private boolean mSyncRunning;
+    private boolean mSyncRequested;
+
+    private GalleryDimensionIndex(Context context) {
+        mContext = context;
+        mDBHelper = new GalleryIndexDBHelper(context);
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mSyncExecutor = Executors.newSingleThreadExecutor();
+        mScannerExecutor = Executors.newFixedThreadPool(SCANNER_THREAD_COUNT);
+        mListeners = new CopyOnWriteArrayList<>();
+        mPendingScans = new AtomicInteger();
+        mLock = new Object();
+    }
+
+    public void addListener(@NonNull Listener listener) {
+        if (!mListeners.contains(listener)) {
+            mListeners.add(listener);
+        }
+    }
+
+    public void removeListener(@NonNull Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Bring the index up to date with the MediaStore in the background.
+     * <p>
+     * Calling it while a pass is still running schedules one more pass after it.
+     */
+    public void ensureIndexed() {
+        synchronized (mLock) {
+            if (mSyncRunning || mPendingScans.get() > 0) {
+                mSyncRequested = true;
+                return;
+            }
+            mSyncRunning = true;
+        }
+        mSyncExecutor.execute(new SyncTask());
+    }
+
+    /**
+     * @return If the dimensions of the given image are known
+     */
+    public boolean isIndexed(long id, long dateModified) {
+        return lookup(id, dateModified) != null;
+    }
+
+    /**
+     * Check the image against the minimum resolution without doing any I/O.
+     * Images that weren't indexed yet are considered big enough.
+     */
+    public boolean meetsMinResolution(long id, long dateModified, int minWidth, int minHeight) {
+        Dimensions dimensions = lookup(id, dateModified);
+        return dimensions == null || (dimensions.mWidth >= minWidth && dimensions.mHeight >= minHeight);
+    }
+
+    private Dimensions lookup(long id, long dateModified) {
+        synchronized (mLock) {
+            if (mEntries == null) {
+                return null;
+            }
+            Dimensions dimensions = mEntries.get(id);
+            if (dimensions == null || dimensions.mDateModified != dateModified) {
+                return null;
+            }
+            return dimensions;
+        }
+    }
+
+    private void put(long id, Dimensions dimensions) {
+        synchronized (mLock) {
+            mEntries.put(id, dimensions);
+        }
+    }
+
+    private LongSparseArray<Dimensions> loadPersistedEntries() {
+        LongSparseArray<Dimensions> entries = new LongSparseArray<>();
+        SQLiteDatabase db = mDBHelper.getReadableDatabase();
+        Cursor cursor = db.query(GalleryIndexDBHelper.TABLE_DIMENSION, GalleryIndexDBHelper.DIMENSION_PROJECTION,
+                null, null, null, null, GalleryIndexDBHelper._ID + " ASC");
+        try {
+            while (cursor.moveToNext()) {
+                entries.append(cursor.getLong(0), new Dimensions(cursor.getLong(1), cursor.getInt(2), cursor.getInt(3)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return entries;
+    }
+
+    private void persist(List<IndexedImage> images) {
+        if (images.isEmpty()) {
+            return;
+        }
+        SQLiteDatabase db = mDBHelper.getWritableDatabase();
+        SQLiteStatement statement = db.compileStatement("INSERT OR REPLACE INTO " + GalleryIndexDBHelper.TABLE_DIMENSION
+                + " (" + GalleryIndexDBHelper._ID + "," + GalleryIndexDBHelper.DATE_MODIFIED + ","
+                + GalleryIndexDBHelper.WIDTH + "," + GalleryIndexDBHelper.HEIGHT + ") VALUES (?,?,?,?)");
+        db.beginTransaction();
+        try {
+            for (IndexedImage image : images) {
+                statement.clearBindings();
+                statement.bindLong(1, image.mId);
+                statement.bindLong(2, image.mDimensions.mDateModified);
+                statement.bindLong(3, image.mDimensions.mWidth);
+                statement.bindLong(4, image.mDimensions.mHeight);
+                statement.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            statement.close();
+        }
+    }
+
+    private void delete(List<Long> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        SQLiteDatabase db = mDBHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Long id : ids) {
+                db.delete(GalleryIndexDBHelper.TABLE_DIMENSION, GalleryIndexDBHelper._ID + "=?", new String[]{String.valueOf(id)});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private void notifyListeners() {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Listener listener : mListeners) {
+                    listener.onDimensionsIndexed();
+                }
+            }
+        });
+    }
+
+    private void onWorkFinished() {
+        boolean syncAgain;
+        synchronized (mLock) {
+            syncAgain = mSyncRequested && !mSyncRunning && mPendingScans.get() == 0;
+            if (syncAgain) {
+                mSyncRequested = false;
+                mSyncRunning = true;
+            }
+        }
+        if (syncAgain) {
+            mSyncExecutor.execute(new SyncTask());
+        }
+    }
+
+    /**
+     * Walks the whole MediaStore images table, takes every dimension it already knows and queues the rest
+     * for the bounds scanners.
+     */
+    private class SyncTask implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                sync();
+            } catch (RuntimeException e) {
+                // The MediaStore can go away under us (e.g. storage unmounted), try again next time
+                Log.e(LOG_TAG, "Unable to index the image dimensions", e);
+            } finally {
+                synchronized (mLock) {
+                    mSyncRunning = false;
+                }
+                onWorkFinished();
+            }
+        }
+
+        private void sync() {
+            LongSparseArray<Dimensions> previous;
+            synchronized (mLock) {
+                previous = mEntries;
+            }
+            if (previous == null) {
+                previous = loadPersistedEntries();
+                synchronized (mLock) {
+                    mEntries = previous;
+                }
+                notifyListeners();
+            }
+
+            Cursor cursor = mContext.getContentResolver().query(GalleryMediaQuery.GALLERY_URI, MEDIA_PROJECTION,
+                    null, null, MediaStore.Images.ImageColumns._ID + " ASC");
+            if (cursor == null) {
+                return;
+            }
+
+            LongSparseArray<Dimensions> next = new LongSparseArray<>(cursor.getCount());
+            List<IndexedImage> resolved = new ArrayList<>();
+            List<IndexedImage> unresolved = new ArrayList<>();
+            try {
+                while (cursor.moveToNext()) {
+                    long id = cursor.getLong(0);
+                    long dateModified = cursor.getLong(1);
+                    Dimensions known = previous.get(id);
+                    if (known != null && known.mDateModified == dateModified) {
+                        next.append(id, known);
+                        continue;
+                    }
+                    int width = cursor.getInt(2);
+                    int height = cursor.getInt(3);
+                    if (width > 0 && height > 0) {
+                        Dimensions dimensions = new Dimensions(dateModified, width, height);
+                        next.append(id, dimensions);
+                        resolved.add(new IndexedImage(id, dimensions, null));
+                    } else {
+                        unresolved.add(new IndexedImage(id, new Dimensions(dateModified, 0, 0), cursor.getString(4)));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+
+            List<Long> removed = new ArrayList<>();
+            for (int i = 0, size = previous.size(); i < size; i++) {
+                long id = previous.keyAt(i);
+                if (next.get(id) == null) {
+                    removed.add(id);
+                }
+            }
+
+            synchronized (mLock) {
+                mEntries = next;
+            }
+            persist(resolved);
+            delete(removed);
+            if (!resolved.isEmpty()) {
+                notifyListeners();
+            }
+
+            // Split the unresolved images between the scanner threads
+            for (int from = 0; from < unresolved.size(); from += SCANNER_BATCH_SIZE) {
+                int to = Math.min(from + SCANNER_BATCH_SIZE, unresolved.size());
+                mPendingScans.incrementAndGet();
+                mScannerExecutor.execute(new ScanTask(new ArrayList<>(unresolved.subList(from, to))));
+            }
+        }
+    }
+
+    /**
+     * Decodes the bounds of a batch of images the MediaStore doesn't know the size of.
+     */
+    private class ScanTask implements Runnable {
+
+        private final List<IndexedImage> mImages;
+
+        ScanTask(List<IndexedImage> images) {
+            mImages = images;
+        }
+
+        @Override
+        public void run() {
+            try {
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                List<IndexedImage> scanned = new ArrayList<>(mImages.size());
+                for (IndexedImage image : mImages) {
+                    if (image.mPath == null) {
+                        continue;
+                    }
+                    options.inJustDecodeBounds = true;
+                    options.outWidth = 0;
+                    options.outHeight = 0;
+                    BitmapFactory.decodeFile(image.mPath, options);
+                    Dimensions dimensions = new Dimensions(image.mDimensions.mDateModified,
+                            Math.max(options.outWidth, 0), Math.max(options.outHeight, 0));
+                    put(image.mId, dimensions);
+                    scanned.add(new IndexedImage(image.mId, dimensions, null));
+                }
+                persist(scanned);
+                notifyListeners();
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Unable to scan the image dimensions", e);
+            } finally {
+                mPendingScans.decrementAndGet();
+                onWorkFinished();
+            }
+        }
+    }
+
+    private static class Dimensions {
+
+        final long mDateModified;
+        final int mWidth;
+        final int mHeight;
+
+        Dimensions(long dateModified, int width, int height) {
+            mDateModified = dateModified;
+            mWidth = width;
+            mHeight = height;
+        }
+    }
+
+    private static class IndexedImage {
+
+        final long mId;
+        final Dimensions mDimensions;
+        final String mPath;
+
+        IndexedImage(long id, Dimensions dimensions, String path) {
+            mId = id;
+            mDimensions = dimensions;
+            mPath = path;
+        }
+    }
+}
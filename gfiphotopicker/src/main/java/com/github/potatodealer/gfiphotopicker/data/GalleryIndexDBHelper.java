@@ -0,0 +1,75 @@
+package com.github.potatodealer.gfiphotopicker.data;
+
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+/**
+ * Local cache of data derived from {@link android.provider.MediaStore} that is too expensive
+ * to compute again on every picker session.
+ */
+public class GalleryIndexDBHelper extends SQLiteOpenHelper {
+
+    //Constants for db name and version
+    private static final int DATABASE_VERSION = 2;
+    private static final String DATABASE_NAME = "galleryIndex";
+
+    //Constants for table and columns
+    public static final String TABLE_DIMENSION = "dimension";
+    public static final String _ID = "id";
+    public static final String DATE_MODIFIED = "date_modified";
+    public static final String WIDTH = "width";
+    public static final String HEIGHT = "height";
+
+    public static final String TABLE_BUCKET_IMAGE = "bucket_image";
+    public static final String BUCKET_ID = "bucket_id";
+    public static final String BUCKET_NAME = "bucket_name";
+    public static final String DATA = "data";
+    public static final String DATE_TAKEN = "date_taken";
+    public static final String TABLE_BUCKET = "bucket";
+    public static final String COVER_ID = "cover_id";
+    public static final String COVER_DATA = "cover_data";
+    public static final String COUNT = "count";
+    public static final String LATEST_DATE = "latest_date";
+
+    public static final String[] DIMENSION_PROJECTION = {_ID, DATE_MODIFIED, WIDTH, HEIGHT};
+
+    private static final String CREATE_DIMENSION_TABLE = "CREATE TABLE " + TABLE_DIMENSION + "("
+            + _ID + " INTEGER PRIMARY KEY," + DATE_MODIFIED + " INTEGER,"
+            + WIDTH + " INTEGER," + HEIGHT + " INTEGER" + ")";
+    // One row per MediaStore image, the bucket summary is maintained from it
+    private static final String CREATE_BUCKET_IMAGE_TABLE = "CREATE TABLE " + TABLE_BUCKET_IMAGE + "("
+            + _ID + " INTEGER PRIMARY KEY," + BUCKET_ID + " INTEGER," + BUCKET_NAME + " TEXT,"
+            + DATA + " TEXT," + DATE_TAKEN + " INTEGER," + DATE_MODIFIED + " INTEGER" + ")";
+    private static final String CREATE_BUCKET_IMAGE_INDEX = "CREATE INDEX " + TABLE_BUCKET_IMAGE + "_" + BUCKET_ID
+            + " ON " + TABLE_BUCKET_IMAGE + "(" + BUCKET_ID + "," + DATE_TAKEN + "," + _ID + ")";
+    private static final String CREATE_BUCKET_TABLE = "CREATE TABLE " + TABLE_BUCKET + "("
+            + BUCKET_ID + " INTEGER PRIMARY KEY," + BUCKET_NAME + " TEXT," + COVER_ID + " INTEGER,"
+            + COVER_DATA + " TEXT," + COUNT + " INTEGER," + LATEST_DATE + " INTEGER" + ")";
+
+    public GalleryIndexDBHelper(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    //Creating Tables
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL(CREATE_DIMENSION_TABLE);
+        db.execSQL(CREATE_BUCKET_IMAGE_TABLE);
+        db.execSQL(CREATE_BUCKET_IMAGE_INDEX);
+        db.execSQL(CREATE_BUCKET_TABLE);
+    }
+
+    // Upgrading database
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Everything in here can be rebuilt from MediaStore, so just start again
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_DIMENSION);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_BUCKET_IMAGE);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_BUCKET);
+
+        // Create tables again
+        onCreate(db);
+    }
+}
@@ -1,8 +1,5 @@
 package com.github.potatodealer.gfiphotopicker.data;
 
-import android.database.Cursor;
-import android.database.MatrixCursor;
-import android.database.MergeCursor;
 import android.os.Bundle;
 import android.provider.MediaStore;
 import android.support.annotation.IntRange;
@@ -10,78 +7,183 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.app.LoaderManager;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 
 import com.github.potatodealer.gfiphotopicker.R;
 
 import static com.github.potatodealer.gfiphotopicker.data.GalleryMediaQuery.ALL_IMAGE_PROJECTION;
-import static com.github.potatodealer.gfiphotopicker.data.GalleryMediaQuery.BUCKET_PROJECTION;
-import static com.github.potatodealer.gfiphotopicker.data.GalleryMediaQuery.BUCKET_SELECTION;
-import static com.github.potatodealer.gfiphotopicker.data.GalleryMediaQuery.BUCKET_SORT_ORDER;
 import static com.github.potatodealer.gfiphotopicker.data.GalleryMediaQuery.GALLERY_URI;
 import static com.github.potatodealer.gfiphotopicker.data.GalleryMediaQuery.IMAGE_PROJECTION;
 import static com.github.potatodealer.gfiphotopicker.data.GalleryMediaQuery.MEDIA_SORT_ORDER;
 
-public class GalleryMediaLoader implements LoaderManager.LoaderCallbacks<Cursor> {
+public class GalleryMediaLoader implements LoaderManager.LoaderCallbacks<GallerySnapshot>, GalleryMediaPager.Listener {
 
     private static final int TIME_LOADER = 0;
     private static final int BUCKET_LOADER = 1;
     private static final int MEDIA_LOADER = 2;
 
+    /**
+     * Page size good for a few screens of the grid, see {@link #setPageSize(int)}
+     */
+    public static final int DEFAULT_PAGE_SIZE = 200;
+    private static final int RETAINED_PAGES = 2;
+
     static final long ALL_MEDIA_BUCKET_ID = 0;
     private static final String BUCKET_ID = MediaStore.Images.Media.BUCKET_ID;
 
     public interface Callbacks {
 
-        void onBucketLoadFinished(@Nullable Cursor data);
+        void onBucketLoadFinished(@Nullable GallerySnapshot data);
+
+        void onMediaLoadFinished(@Nullable GallerySnapshot data);
 
-        void onMediaLoadFinished(@Nullable Cursor data);
+        /**
+         * A new page was appended to the media, only called when loading pages.
+         */
+        void onMediaRangeInserted(@NonNull GallerySnapshot data, int positionStart, int itemCount);
+
+        /**
+         * The rows of a page released to save memory are available again, only called when loading pages.
+         */
+        void onMediaRangeChanged(@NonNull GallerySnapshot data, int positionStart, int itemCount);
+    }
+
+    /**
+     * Receives all the rows of the media, see {@link #queryAllMedia(AllMediaCallback)}.
+     */
+    public interface AllMediaCallback {
+
+        void onAllMediaLoaded(@NonNull GallerySnapshot data);
     }
 
     private FragmentActivity mActivity;
     private Callbacks mCallbacks;
+    private GalleryMediaPager mPager;
+    private int mPageSize;
+    private String[] mMediaProjection;
+    private String mMediaSelection;
+
+    /**
+     * Load the media by pages of the given size instead of all at once.
+     *
+     * @param pageSize The number of rows of each page, or 0 to load everything at once
+     */
+    public void setPageSize(@IntRange(from = 0) int pageSize) {
+        mPageSize = pageSize;
+    }
+
+    /**
+     * Let the loader fetch the following pages and release the far ones when paging.
+     */
+    public void onVisibleRangeChanged(int firstPosition, int lastPosition) {
+        if (mPager != null) {
+            mPager.onVisibleRangeChanged(firstPosition, lastPosition);
+        }
+    }
+
+    /**
+     * Load the media pages up to the row at the position, then run {@code onLoaded} on the main thread, like to
+     * scroll to that row. It runs straight away if the media isn't loaded by pages, and isn't run if another
+     * bucket is loaded meanwhile.
+     */
+    public void loadUpTo(int position, @NonNull Runnable onLoaded) {
+        if (mPager == null || !mPager.loadUpTo(position, onLoaded)) {
+            onLoaded.run();
+        }
+    }
+
+    /**
+     * Query all the rows of the media loaded by pages, including the ones not read yet or released, off the main
+     * thread. Nothing is delivered if another bucket is loaded meanwhile.
+     *
+     * @return False if the media isn't loaded by pages, all its rows are then in the loaded data
+     */
+    public boolean queryAllMedia(@NonNull AllMediaCallback callback) {
+        return mPager != null && mPager.queryAll(callback);
+    }
 
     @Override
-    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+    public Loader<GallerySnapshot> onCreateLoader(int id, Bundle args) {
         if (id == TIME_LOADER) {
-            return new CursorLoader(mActivity,
+            mMediaProjection = ALL_IMAGE_PROJECTION;
+            mMediaSelection = null;
+            return new GallerySnapshotLoader(mActivity,
                     GALLERY_URI,
-                    ALL_IMAGE_PROJECTION,
-                    null,
-                    null,
-                    MEDIA_SORT_ORDER);
+                    mMediaProjection,
+                    mMediaSelection,
+                    MEDIA_SORT_ORDER,
+                    mPageSize);
         }
         if (id == BUCKET_LOADER) {
-            return new CursorLoader(mActivity,
-                    GALLERY_URI,
-                    BUCKET_PROJECTION,
-                    String.format("%s", BUCKET_SELECTION),
-                    null,
-                    BUCKET_SORT_ORDER);
+            return new GalleryBucketLoader(mActivity, mActivity.getString(R.string.activity_gallery_bucket_all_media));
         }
         // id == MEDIA_LOADER
-        return new CursorLoader(mActivity,
+        mMediaProjection = IMAGE_PROJECTION;
+        mMediaSelection = String.format("%s=%s", MediaStore.Images.Media.BUCKET_ID, args.getLong(BUCKET_ID));
+        return new GallerySnapshotLoader(mActivity,
                 GALLERY_URI,
-                IMAGE_PROJECTION,
-                String.format("%s=%s", MediaStore.Images.Media.BUCKET_ID, args.getLong(BUCKET_ID)),
-                null,
-                MEDIA_SORT_ORDER);
+                mMediaProjection,
+                mMediaSelection,
+                MEDIA_SORT_ORDER,
+                mPageSize);
     }
 
     @Override
-    public void onLoadFinished(@NonNull Loader<Cursor> loader, @Nullable Cursor data) {
+    public void onLoadFinished(@NonNull Loader<GallerySnapshot> loader, @Nullable GallerySnapshot data) {
+        if (mActivity != null) {
+            // The MediaStore just changed or was read for the first time, let the index catch up
+            GalleryDimensionIndex.getInstance(mActivity).ensureIndexed();
+        }
         if (mCallbacks != null) {
             if (loader.getId() == BUCKET_LOADER) {
-                mCallbacks.onBucketLoadFinished(addAllMediaBucketItem(data));
+                mCallbacks.onBucketLoadFinished(data);
             } else {
+                if (mPageSize > 0 && data != null && mActivity != null) {
+                    // The loader only reads the first page, the pager goes on from there
+                    if (mPager == null) {
+                        mPager = new GalleryMediaPager(mActivity, this);
+                    }
+                    mPager.reset(data, mMediaProjection, mMediaSelection, mPageSize, mPageSize / 2, RETAINED_PAGES);
+                }
                 mCallbacks.onMediaLoadFinished(data);
             }
         }
     }
 
     @Override
-    public void onLoaderReset(Loader<Cursor> loader) {
+    public void onPageAppended(@NonNull GallerySnapshot data, int positionStart, int itemCount) {
+        setMediaBaseline(data);
+        if (mCallbacks != null) {
+            mCallbacks.onMediaRangeInserted(data, positionStart, itemCount);
+        }
+    }
+
+    @Override
+    public void onPageRestored(@NonNull GallerySnapshot data, int positionStart, int itemCount) {
+        if (mCallbacks != null) {
+            mCallbacks.onMediaRangeChanged(data, positionStart, itemCount);
+        }
+    }
+
+    /**
+     * Make the media loader diff its next reload from the pages appended so far.
+     */
+    private void setMediaBaseline(GallerySnapshot data) {
+        if (mActivity == null) {
+            return;
+        }
+        LoaderManager loaderManager = mActivity.getSupportLoaderManager();
+        Loader<GallerySnapshot> loader = loaderManager.getLoader(TIME_LOADER);
+        if (loader == null || !loader.isStarted()) {
+            loader = loaderManager.getLoader(MEDIA_LOADER);
+        }
+        if (loader instanceof GallerySnapshotLoader && loader.isStarted()) {
+            ((GallerySnapshotLoader) loader).setBaseline(data);
+        }
+    }
+
+    @Override
+    public void onLoaderReset(Loader<GallerySnapshot> loader) {
 
     }
 
@@ -93,15 +195,24 @@ public class GalleryMediaLoader implements LoaderManager.LoaderCallbacks<Cursor>
     public void onDetach() {
         mActivity = null;
         mCallbacks = null;
+        if (mPager != null) {
+            mPager.clear();
+        }
     }
 
     public void loadBuckets() {
         ensureActivityAttached();
+        if (mPager != null) {
+            mPager.clear();
+        }
         mActivity.getSupportLoaderManager().restartLoader(BUCKET_LOADER, null, this);
     }
 
     public void loadByBucket(@IntRange(from = 0) long bucketId) {
         ensureActivityAttached();
+        if (mPager != null) {
+            mPager.clear();
+        }
         if (ALL_MEDIA_BUCKET_ID == bucketId) {
             mActivity.getSupportLoaderManager().restartLoader(TIME_LOADER, null, this);
         } else {
@@ -119,26 +230,4 @@ public class GalleryMediaLoader implements LoaderManager.LoaderCallbacks<Cursor>
             throw new IllegalStateException("The FragmentActivity was not attached!");
         }
     }
-
-    /**
-     * Add "All Media" item as the first row of bucket items.
-     *
-     * @param cursor The original data of all bucket items
-     * @return The data with "All Media" item added
-     */
-    private Cursor addAllMediaBucketItem(@Nullable Cursor cursor) {
-        if (cursor == null || !cursor.moveToPosition(0)) {
-            return null;
-        }
-        ensureActivityAttached();
-        long id = ALL_MEDIA_BUCKET_ID;
-        String label = mActivity.getString(R.string.activity_gallery_bucket_all_media);
-        String data = cursor.getString(cursor.getColumnIndex(MediaStore.Images.Media.DATA));
-        MatrixCursor allMediaRow = new MatrixCursor(BUCKET_PROJECTION);
-        allMediaRow.newRow()
-                .add(id)
-                .add(label)
-                .add(data);
-        return new MergeCursor(new Cursor[]{allMediaRow, cursor});
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,289 @@
+package com.github.potatodealer.gfiphotopicker.data;
+
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.util.SparseBooleanArray;
+
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.github.potatodealer.gfiphotopicker.data.GalleryMediaQuery.GALLERY_URI;
+import static com.github.potatodealer.gfiphotopicker.data.GalleryMediaQuery.KEYSET_SELECTION;
+import static com.github.potatodealer.gfiphotopicker.data.GalleryMediaQuery.MEDIA_SORT_ORDER;
+
+/**
+ * Keyset pager for the media queries of {@link GalleryMediaLoader}.
+ * <p>
+ * The first page comes from the loader. The following pages are queried after the (date taken, id) key of the
+ * last loaded row, when the visible range gets close to the end of the loaded rows. To keep the memory bounded,
+ * the label, path and {@link android.net.Uri} of the pages far from the visible range are released, and queried
+ * again from the key of the previous page when they are scrolled back into view.
+ * <p>
+ * All the methods must be called on the main thread.
+ */
+class GalleryMediaPager {
+
+    private static final String LOG_TAG = "GalleryMediaPager";
+
+    interface Listener {
+
+        void onPageAppended(@NonNull GallerySnapshot data, int positionStart, int itemCount);
+
+        void onPageRestored(@NonNull GallerySnapshot data, int positionStart, int itemCount);
+    }
+
+    private final Context mContext;
+    private final Listener mListener;
+    private final Handler mMainHandler;
+    private final ExecutorService mExecutor;
+    private final SparseBooleanArray mRestoring;
+    private String[] mProjection;
+    @Nullable
+    private String mSelection;
+    private int mPageSize;
+    private int mPrefetchDistance;
+    private int mRetainedPages;
+    @Nullable
+    private GallerySnapshot mData;
+    private boolean mEndReached;
+    private boolean mAppending;
+    private int mGeneration;
+    private int mTargetPosition;
+    @Nullable
+    private Runnable mOnTargetLoaded;
+
+    GalleryMediaPager(@NonNull Context context, @NonNull Listener listener) {
+        mContext = context.getApplicationContext();
+        mListener = listener;
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mExecutor = Executors.newSingleThreadExecutor();
+        mRestoring = new SparseBooleanArray();
+    }
+
+    /**
+     * Start paging a new query from its first rows, which can span several pages after a reload.
+     */
+    void reset(@NonNull GallerySnapshot firstPage, @NonNull String[] projection, @Nullable String selection,
+               int pageSize, int prefetchDistance, int retainedPages) {
+        mGeneration++;
+        mData = firstPage;
+        mProjection = projection;
+        mSelection = selection;
+        mPageSize = pageSize;
+        mPrefetchDistance = prefetchDistance;
+        mRetainedPages = retainedPages;
+        mEndReached = firstPage.isComplete();
+        mAppending = false;
+        mOnTargetLoaded = null;
+        mRestoring.clear();
+    }
+
+    /**
+     * Stop paging, any page still being queried is dropped.
+     */
+    void clear() {
+        mGeneration++;
+        mData = null;
+        mAppending = false;
+        mOnTargetLoaded = null;
+        mRestoring.clear();
+    }
+
+    /**
+     * Append pages until the row at the position is loaded, like to scroll back to it.
+     * <p>
+     * {@code onLoaded} is run on the main thread once the row is loaded, or once there are no more pages to
+     * load it from. It is dropped if paging stops or starts over meanwhile, and replaced by a later call.
+     *
+     * @return False if no query is being paged, {@code onLoaded} isn't run then
+     */
+    boolean loadUpTo(int position, @NonNull Runnable onLoaded) {
+        if (mData == null) {
+            return false;
+        }
+        mTargetPosition = position;
+        mOnTargetLoaded = onLoaded;
+        loadTarget(false);
+        return true;
+    }
+
+    /**
+     * Run the target callback if its row is loaded, or append the next page towards it.
+     *
+     * @param stuck If the last page couldn't be queried, the callback is run anyway then
+     */
+    private void loadTarget(boolean stuck) {
+        if (mOnTargetLoaded == null || mData == null) {
+            return;
+        }
+        if (stuck || mEndReached || mTargetPosition < mData.getCount()) {
+            Runnable onLoaded = mOnTargetLoaded;
+            mOnTargetLoaded = null;
+            onLoaded.run();
+        } else if (!mAppending) {
+            appendNextPage();
+        }
+    }
+
+    void onVisibleRangeChanged(int first, int last) {
+        if (mData == null || first < 0 || last < first) {
+            return;
+        }
+        int count = mData.getCount();
+        if (!mEndReached && !mAppending && last >= count - mPrefetchDistance) {
+            appendNextPage();
+        }
+
+        int firstPage = first / mPageSize;
+        int lastPage = last / mPageSize;
+        int pageCount = (count + mPageSize - 1) / mPageSize;
+        for (int page = 0; page < pageCount; page++) {
+            int from = page * mPageSize;
+            if (page < firstPage - mRetainedPages || page > lastPage + mRetainedPages) {
+                if (!mRestoring.get(page) && mData.isLoaded(from)) {
+                    mData.release(from, from + mPageSize);
+                }
+            } else if (!mData.isLoaded(from) && !mRestoring.get(page)) {
+                restorePage(page);
+            }
+        }
+    }
+
+    private void appendNextPage() {
+        final GallerySnapshot data = mData;
+        final int generation = mGeneration;
+        final int count = data.getCount();
+        final String keyset = count > 0 ? keysetAfter(data, count - 1) : null;
+        final PageQuery query = new PageQuery(mProjection, mSelection, mPageSize);
+        mAppending = true;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final GallerySnapshot page = query.run(mContext, keyset);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration) {
+                            return;
+                        }
+                        mAppending = false;
+                        if (page == null) {
+                            loadTarget(true);
+                            return;
+                        }
+                        mEndReached = page.getCount() < mPageSize;
+                        if (page.getCount() > 0) {
+                            mData = GallerySnapshot.concat(mData, page);
+                            mListener.onPageAppended(mData, count, page.getCount());
+                        }
+                        loadTarget(false);
+                    }
+                });
+            }
+        });
+    }
+
+    private void restorePage(final int pageIndex) {
+        final int generation = mGeneration;
+        final int from = pageIndex * mPageSize;
+        final String keyset = from > 0 ? keysetAfter(mData, from - 1) : null;
+        final PageQuery query = new PageQuery(mProjection, mSelection, mPageSize);
+        mRestoring.put(pageIndex, true);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final GallerySnapshot page = query.run(mContext, keyset);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration) {
+                            return;
+                        }
+                        mRestoring.delete(pageIndex);
+                        if (page != null && mData.restore(page, from) > 0) {
+                            mListener.onPageRestored(mData, from, Math.min(mPageSize, mData.getCount() - from));
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Query all the rows of the query being paged at once, for the operations that need every row like select all.
+     * Nothing is delivered if paging stops or starts over with another query meanwhile.
+     *
+     * @return False if no query is being paged
+     */
+    boolean queryAll(@NonNull final GalleryMediaLoader.AllMediaCallback callback) {
+        if (mData == null) {
+            return false;
+        }
+        final int generation = mGeneration;
+        final PageQuery query = new PageQuery(mProjection, mSelection, 0);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final GallerySnapshot data = query.run(mContext, null);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation == mGeneration && data != null) {
+                            callback.onAllMediaLoaded(data);
+                        }
+                    }
+                });
+            }
+        });
+        return true;
+    }
+
+    private static String keysetAfter(GallerySnapshot data, int position) {
+        return String.format(Locale.US, KEYSET_SELECTION, data.getDateTaken(position), data.getId(position));
+    }
+
+    /**
+     * The parameters of the query a page is read with, captured on the main thread.
+     */
+    private static class PageQuery {
+
+        final String[] mProjection;
+        final String mSelection;
+        final int mPageSize;
+
+        PageQuery(String[] projection, String selection, int pageSize) {
+            mProjection = projection;
+            mSelection = selection;
+            mPageSize = pageSize;
+        }
+
+        @Nullable
+        GallerySnapshot run(Context context, @Nullable String keyset) {
+            String selection = mSelection;
+            if (keyset != null) {
+                selection = selection != null ? "(" + selection + ") AND " + keyset : keyset;
+            }
+            Cursor cursor = null;
+            try {
+                // A page size of 0 reads all the rows
+                cursor = context.getContentResolver().query(GALLERY_URI, mProjection, selection, null,
+                        mPageSize > 0 ? MEDIA_SORT_ORDER + " LIMIT " + mPageSize : MEDIA_SORT_ORDER);
+                return cursor != null ? GallerySnapshot.fromCursor(cursor) : null;
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Unable to query a page", e);
+                return null;
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+    }
+}
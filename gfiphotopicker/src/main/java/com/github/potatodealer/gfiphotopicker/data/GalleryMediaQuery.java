@@ -18,31 +18,38 @@ public class GalleryMediaQuery {
             MediaStore.Images.ImageColumns._ID,
             MediaStore.Images.ImageColumns.BUCKET_ID,
             MediaStore.Images.ImageColumns.DISPLAY_NAME,
-            MediaStore.Images.ImageColumns.DATA
+            MediaStore.Images.ImageColumns.DATA,
+            MediaStore.Images.ImageColumns.DATE_TAKEN,
+            MediaStore.Images.ImageColumns.DATE_MODIFIED,
+            MediaStore.Images.ImageColumns.WIDTH,
+            MediaStore.Images.ImageColumns.HEIGHT
     };
     static final String[] ALL_IMAGE_PROJECTION = {
             MediaStore.Images.ImageColumns._ID,
             GalleryMediaLoader.ALL_MEDIA_BUCKET_ID + " AS " + MediaStore.Images.ImageColumns.BUCKET_ID,
             MediaStore.Images.ImageColumns.DISPLAY_NAME,
-            MediaStore.Images.ImageColumns.DATA
+            MediaStore.Images.ImageColumns.DATA,
+            MediaStore.Images.ImageColumns.DATE_TAKEN,
+            MediaStore.Images.ImageColumns.DATE_MODIFIED,
+            MediaStore.Images.ImageColumns.WIDTH,
+            MediaStore.Images.ImageColumns.HEIGHT
     };
-    static final String MEDIA_SORT_ORDER = MediaStore.Images.Media.DATE_TAKEN + " DESC";
-
+    // Images without a date taken are treated as the oldest ones, and the _ID breaks the ties so that
+    // every row has a unique key to resume a paged query from.
+    private static final String DATE_TAKEN_KEY = "IFNULL(" + MediaStore.Images.Media.DATE_TAKEN + ",0)";
+    static final String MEDIA_SORT_ORDER = DATE_TAKEN_KEY + " DESC, " + MediaStore.Images.Media._ID + " DESC";
+    // Keyset selection of the rows after the (date taken, id) of the last row of the previous page.
+    // The keys are formatted in the selection: bound arguments are strings, which would never compare
+    // equal to the integer keys.
+    static final String KEYSET_SELECTION = "(" + DATE_TAKEN_KEY + "<%1$d OR (" + DATE_TAKEN_KEY + "=%1$d AND "
+            + MediaStore.Images.Media._ID + "<%2$d))";
+
+    // Columns of the bucket rows read from GalleryBucketIndex
     static final String[] BUCKET_PROJECTION = {
             MediaStore.Images.ImageColumns.BUCKET_ID,
             MediaStore.Images.ImageColumns.BUCKET_DISPLAY_NAME,
-            MediaStore.Images.ImageColumns.DATA
+            MediaStore.Images.ImageColumns.DATA,
+            MediaStore.Images.ImageColumns._ID
     };
-    // The template for "WHERE" parameter is like:
-    //    SELECT ... FROM ... WHERE (%s)
-    // and we make it look like:
-    //    SELECT ... FROM ... WHERE (1) GROUP BY (1)
-    // The "WHERE (1)" means true.
-    // The "GROUP BY (1)" means the first column specified after SELECT.
-    // Note that because there is a "(" and )" in the template, we use "1)" and "(1" to match it.
-    //
-    // *Hack pulled from https://android.googlesource.com/platform/packages/apps/Gallery2/+/android-4.4.2_r2/src/com/android/gallery3d/data/BucketHelper.java
-    static final String BUCKET_SELECTION = "1) GROUP BY (1";
-    static final String BUCKET_SORT_ORDER = "MAX(" + MediaStore.Images.Media.DATE_TAKEN + ") DESC";
 
 }
@@ -0,0 +1,291 @@
+package com.github.potatodealer.gfiphotopicker.data;
+
+
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v7.util.DiffUtil;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Column oriented copy of a {@link MediaStore} query result.
+ * <p>
+ * Every value the adapters need is read out of the {@link Cursor} once, off the main thread, into plain arrays,
+ * so binding an item is just an array access with no cursor seeks and no allocation.
+ * Columns missing from the query read as {@code 0} or {@code null}.
+ * <p>
+ * Snapshots of paged queries can have the label, path and {@link Uri} of the rows far from the visible range
+ * released to bound memory, see {@link GalleryMediaPager}. That only ever happens on the main thread, so
+ * {@link #isLoaded(int)}, {@link #getLabel(int)}, {@link #getPath(int)} and {@link #getUri(int)} must only be
+ * read there for those snapshots. The other columns never change once read, and can be read from any thread.
+ */
+public final class GallerySnapshot {
+
+    public static final GallerySnapshot EMPTY = new GallerySnapshot(0);
+
+    private final int mCount;
+    private final long[] mIds;
+    private final long[] mBucketIds;
+    private final long[] mDatesTaken;
+    private final long[] mDatesModified;
+    private final int[] mWidths;
+    private final int[] mHeights;
+    private final String[] mLabels;
+    private final String[] mPaths;
+    private final Uri[] mUris;
+    private boolean mComplete = true;
+    // If rows can still be appended in place after mCount, see concat()
+    private boolean mAppendable = true;
+    @Nullable
+    private GallerySnapshot mDiffBase;
+    @Nullable
+    private DiffUtil.DiffResult mDiff;
+
+    private GallerySnapshot(int count) {
+        this(count, count);
+    }
+
+    private GallerySnapshot(int count, int capacity) {
+        mCount = count;
+        mIds = new long[capacity];
+        mBucketIds = new long[capacity];
+        mDatesTaken = new long[capacity];
+        mDatesModified = new long[capacity];
+        mWidths = new int[capacity];
+        mHeights = new int[capacity];
+        mLabels = new String[capacity];
+        mPaths = new String[capacity];
+        mUris = new Uri[capacity];
+    }
+
+    /**
+     * A snapshot of the first {@code count} rows of the columns of {@code shared}.
+     */
+    private GallerySnapshot(int count, GallerySnapshot shared) {
+        mCount = count;
+        mIds = shared.mIds;
+        mBucketIds = shared.mBucketIds;
+        mDatesTaken = shared.mDatesTaken;
+        mDatesModified = shared.mDatesModified;
+        mWidths = shared.mWidths;
+        mHeights = shared.mHeights;
+        mLabels = shared.mLabels;
+        mPaths = shared.mPaths;
+        mUris = shared.mUris;
+    }
+
+    /**
+     * Copy all the rows of the cursor. The cursor is left open.
+     * <p>
+     * The label is taken from {@link MediaStore.Images.ImageColumns#DISPLAY_NAME} for media rows and
+     * {@link MediaStore.Images.ImageColumns#BUCKET_DISPLAY_NAME} for bucket rows.
+     */
+    @NonNull
+    public static GallerySnapshot fromCursor(@NonNull Cursor cursor) {
+        int idColumn = cursor.getColumnIndex(MediaStore.Images.ImageColumns._ID);
+        int bucketIdColumn = cursor.getColumnIndex(MediaStore.Images.ImageColumns.BUCKET_ID);
+        int dateTakenColumn = cursor.getColumnIndex(MediaStore.Images.ImageColumns.DATE_TAKEN);
+        int dateModifiedColumn = cursor.getColumnIndex(MediaStore.Images.ImageColumns.DATE_MODIFIED);
+        int widthColumn = cursor.getColumnIndex(MediaStore.Images.ImageColumns.WIDTH);
+        int heightColumn = cursor.getColumnIndex(MediaStore.Images.ImageColumns.HEIGHT);
+        int dataColumn = cursor.getColumnIndex(MediaStore.Images.ImageColumns.DATA);
+        int labelColumn = cursor.getColumnIndex(MediaStore.Images.ImageColumns.DISPLAY_NAME);
+        boolean internLabels = false;
+        if (labelColumn == -1) {
+            // Bucket names repeat a lot, share a single instance of each
+            labelColumn = cursor.getColumnIndex(MediaStore.Images.ImageColumns.BUCKET_DISPLAY_NAME);
+            internLabels = true;
+        }
+
+        GallerySnapshot snapshot = new GallerySnapshot(cursor.getCount());
+        Map<String, String> labels = new HashMap<>();
+        cursor.moveToPosition(-1);
+        for (int i = 0; i < snapshot.mCount && cursor.moveToNext(); i++) {
+            if (idColumn != -1) snapshot.mIds[i] = cursor.getLong(idColumn);
+            if (bucketIdColumn != -1) snapshot.mBucketIds[i] = cursor.getLong(bucketIdColumn);
+            if (dateTakenColumn != -1) snapshot.mDatesTaken[i] = cursor.getLong(dateTakenColumn);
+            if (dateModifiedColumn != -1) snapshot.mDatesModified[i] = cursor.getLong(dateModifiedColumn);
+            if (widthColumn != -1) snapshot.mWidths[i] = cursor.getInt(widthColumn);
+            if (heightColumn != -1) snapshot.mHeights[i] = cursor.getInt(heightColumn);
+            if (labelColumn != -1) {
+                String label = cursor.getString(labelColumn);
+                if (internLabels && label != null) {
+                    String shared = labels.get(label);
+                    if (shared == null) {
+                        labels.put(label, label);
+                    } else {
+                        label = shared;
+                    }
+                }
+                snapshot.mLabels[i] = label;
+            }
+            if (dataColumn != -1) {
+                String path = cursor.getString(dataColumn);
+                snapshot.mPaths[i] = path;
+                snapshot.mUris[i] = path != null ? Uri.fromFile(new File(path)) : Uri.EMPTY;
+            } else {
+                snapshot.mUris[i] = Uri.EMPTY;
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Append the rows of {@code next} after the rows of {@code first}, the way an {@link java.util.ArrayList} grows:
+     * they are written in place to the spare capacity of the columns of {@code first}, which is doubled when it
+     * runs out, so paging through n rows copies O(n) of them.
+     * <p>
+     * {@code first} keeps its own count, and the columns of its rows that never change, so it can be diffed on the
+     * loader thread meanwhile. It can't be appended to again though, that would overwrite the rows appended now.
+     *
+     * @return A new snapshot with the rows of {@code next} after the rows of {@code first}
+     */
+    @NonNull
+    static GallerySnapshot concat(@NonNull GallerySnapshot first, @NonNull GallerySnapshot next) {
+        int count = first.mCount + next.mCount;
+        GallerySnapshot snapshot;
+        if (first.mAppendable && count <= first.mIds.length) {
+            snapshot = new GallerySnapshot(count, first);
+        } else {
+            snapshot = new GallerySnapshot(count, Math.max(count, first.mCount * 2));
+            first.copyTo(snapshot, 0);
+            // Move the strings rather than share them, so that the pages released from now on are freed even if
+            // first is still held, like by the loader that delivered it. Read again, first is restored by pages
+            first.release(0, first.mCount);
+        }
+        first.mAppendable = false;
+        next.copyTo(snapshot, first.mCount);
+        return snapshot;
+    }
+
+    private void copyTo(GallerySnapshot snapshot, int offset) {
+        System.arraycopy(mIds, 0, snapshot.mIds, offset, mCount);
+        System.arraycopy(mBucketIds, 0, snapshot.mBucketIds, offset, mCount);
+        System.arraycopy(mDatesTaken, 0, snapshot.mDatesTaken, offset, mCount);
+        System.arraycopy(mDatesModified, 0, snapshot.mDatesModified, offset, mCount);
+        System.arraycopy(mWidths, 0, snapshot.mWidths, offset, mCount);
+        System.arraycopy(mHeights, 0, snapshot.mHeights, offset, mCount);
+        System.arraycopy(mLabels, 0, snapshot.mLabels, offset, mCount);
+        System.arraycopy(mPaths, 0, snapshot.mPaths, offset, mCount);
+        System.arraycopy(mUris, 0, snapshot.mUris, offset, mCount);
+    }
+
+    /**
+     * Drop the label, path and {@link Uri} of the rows in [from, to). The other columns are kept.
+     */
+    void release(int from, int to) {
+        for (int i = Math.max(from, 0); i < Math.min(to, mCount); i++) {
+            mLabels[i] = null;
+            mPaths[i] = null;
+            mUris[i] = null;
+        }
+    }
+
+    /**
+     * Put back the released rows from a fresh page starting at {@code offset}.
+     * Rows whose id doesn't match anymore are left released.
+     *
+     * @return The number of rows put back
+     */
+    int restore(@NonNull GallerySnapshot page, int offset) {
+        int restored = 0;
+        for (int i = 0; i < page.mCount && offset + i < mCount; i++) {
+            if (mIds[offset + i] == page.mIds[i]) {
+                mLabels[offset + i] = page.mLabels[i];
+                mPaths[offset + i] = page.mPaths[i];
+                mUris[offset + i] = page.mUris[i];
+                restored++;
+            }
+        }
+        return restored;
+    }
+
+    void setComplete(boolean complete) {
+        mComplete = complete;
+    }
+
+    /**
+     * @return If the query had no more rows than this snapshot holds
+     */
+    boolean isComplete() {
+        return mComplete;
+    }
+
+    void setDiff(@NonNull GallerySnapshot base, @NonNull DiffUtil.DiffResult diff) {
+        mDiffBase = base;
+        mDiff = diff;
+    }
+
+    /**
+     * @param current The data currently bound
+     * @return The updates from {@code current} to this snapshot, or null if this snapshot wasn't diffed from it
+     */
+    @Nullable
+    public DiffUtil.DiffResult getDiffFrom(@Nullable GallerySnapshot current) {
+        return current != null && current == mDiffBase ? mDiff : null;
+    }
+
+    /**
+     * @return If the label, path and {@link Uri} of this row are available
+     */
+    public boolean isLoaded(int position) {
+        return mUris[position] != null;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public long getId(int position) {
+        return mIds[position];
+    }
+
+    public long getBucketId(int position) {
+        return mBucketIds[position];
+    }
+
+    public long getDateTaken(int position) {
+        return mDatesTaken[position];
+    }
+
+    public long getDateModified(int position) {
+        return mDatesModified[position];
+    }
+
+    /**
+     * @return The width the MediaStore knows for this image, or {@code 0} if unknown
+     */
+    public int getWidth(int position) {
+        return mWidths[position];
+    }
+
+    /**
+     * @return The height the MediaStore knows for this image, or {@code 0} if unknown
+     */
+    public int getHeight(int position) {
+        return mHeights[position];
+    }
+
+    @Nullable
+    public String getLabel(int position) {
+        return mLabels[position];
+    }
+
+    @Nullable
+    public String getPath(int position) {
+        return mPaths[position];
+    }
+
+    /**
+     * @return The file {@link Uri} of the row, or null if it was released
+     */
+    @Nullable
+    public Uri getUri(int position) {
+        return mUris[position];
+    }
+}
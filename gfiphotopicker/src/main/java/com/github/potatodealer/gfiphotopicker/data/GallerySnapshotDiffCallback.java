@@ -0,0 +1,55 @@
+package com.github.potatodealer.gfiphotopicker.data;
+
+
+import android.support.v7.util.DiffUtil;
+import android.text.TextUtils;
+
+/**
+ * Compares the rows of two snapshots by their id, and their content by the date they were modified.
+ * Bucket rows are compared by bucket id, and their content by label and cover.
+ * <p>
+ * The diff runs on the loader thread, so media rows are only compared by the columns a snapshot never changes.
+ * Their label, path and {@link android.net.Uri} can be released and restored by the pager on the main thread
+ * meanwhile. Bucket snapshots aren't paged, so all their columns stay as they were read.
+ */
+class GallerySnapshotDiffCallback extends DiffUtil.Callback {
+
+    private final GallerySnapshot mOld;
+    private final GallerySnapshot mNew;
+    private final boolean mBuckets;
+
+    GallerySnapshotDiffCallback(GallerySnapshot oldSnapshot, GallerySnapshot newSnapshot, boolean buckets) {
+        mOld = oldSnapshot;
+        mNew = newSnapshot;
+        mBuckets = buckets;
+    }
+
+    @Override
+    public int getOldListSize() {
+        return mOld.getCount();
+    }
+
+    @Override
+    public int getNewListSize() {
+        return mNew.getCount();
+    }
+
+    @Override
+    public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+        if (mBuckets) {
+            return mOld.getBucketId(oldItemPosition) == mNew.getBucketId(newItemPosition);
+        }
+        return mOld.getId(oldItemPosition) == mNew.getId(newItemPosition);
+    }
+
+    @Override
+    public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+        if (mBuckets) {
+            return TextUtils.equals(mOld.getLabel(oldItemPosition), mNew.getLabel(newItemPosition))
+                    && TextUtils.equals(mOld.getPath(oldItemPosition), mNew.getPath(newItemPosition));
+        }
+        // Released rows are never bound on screen: the pager only releases the pages far from the visible range,
+        // and a released page is rebound once restored, so the new data is simply bound when they are scrolled to
+        return mOld.getDateModified(oldItemPosition) == mNew.getDateModified(newItemPosition);
+    }
+}
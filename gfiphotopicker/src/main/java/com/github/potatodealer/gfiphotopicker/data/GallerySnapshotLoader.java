@@ -0,0 +1,127 @@
+package com.github.potatodealer.gfiphotopicker.data;
+
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.content.AsyncTaskLoader;
+import android.support.v7.util.DiffUtil;
+
+/**
+ * {@link AsyncTaskLoader} subclass that runs a {@link MediaStore} query and turns its result into a
+ * {@link GallerySnapshot} on the loader thread.
+ * <p>
+ * Like {@link android.support.v4.content.CursorLoader} it reloads when the content changes,
+ * but it doesn't keep any {@link Cursor} open once the snapshot is built. A reload also computes the
+ * {@link DiffUtil.DiffResult} from the data on screen, so that adapters only rebind the rows that changed.
+ */
+class GallerySnapshotLoader extends AsyncTaskLoader<GallerySnapshot> {
+
+    private final ForceLoadContentObserver mObserver;
+    private final Uri mUri;
+    private final String[] mProjection;
+    private final String mSelection;
+    private final String mSortOrder;
+    private final int mPageSize;
+    private GallerySnapshot mSnapshot;
+    @Nullable
+    private volatile GallerySnapshot mBaseline;
+    private boolean mObserving;
+
+    /**
+     * @param pageSize The minimum number of rows to read, or 0 to read all of them
+     */
+    GallerySnapshotLoader(@NonNull Context context, @NonNull Uri uri, @NonNull String[] projection,
+                          @Nullable String selection, @NonNull String sortOrder, int pageSize) {
+        super(context);
+        mObserver = new ForceLoadContentObserver();
+        mUri = uri;
+        mProjection = projection;
+        mSelection = selection;
+        mSortOrder = sortOrder;
+        mPageSize = pageSize;
+    }
+
+    /**
+     * Set the data currently on screen, the next load is diffed from it.
+     * <p>
+     * When reading pages, the next load also reads at least as many rows as the baseline has,
+     * so that the pages loaded since are kept.
+     */
+    void setBaseline(@Nullable GallerySnapshot baseline) {
+        mBaseline = baseline;
+    }
+
+    @Override
+    public GallerySnapshot loadInBackground() {
+        GallerySnapshot baseline = mBaseline;
+        String sortOrder = mSortOrder;
+        int limit = 0;
+        if (mPageSize > 0) {
+            limit = Math.max(mPageSize, baseline != null ? baseline.getCount() : 0);
+            sortOrder += " LIMIT " + limit;
+        }
+        Cursor cursor = getContext().getContentResolver().query(mUri, mProjection, mSelection, null, sortOrder);
+        if (cursor == null) {
+            return null;
+        }
+        GallerySnapshot snapshot;
+        try {
+            snapshot = GallerySnapshot.fromCursor(cursor);
+        } finally {
+            cursor.close();
+        }
+        snapshot.setComplete(limit == 0 || snapshot.getCount() < limit);
+        if (baseline != null) {
+            DiffUtil.DiffResult diff = DiffUtil.calculateDiff(new GallerySnapshotDiffCallback(baseline, snapshot, false), false);
+            snapshot.setDiff(baseline, diff);
+        }
+        return snapshot;
+    }
+
+    @Override
+    public void deliverResult(GallerySnapshot data) {
+        if (isReset()) {
+            return;
+        }
+        mSnapshot = data;
+        mBaseline = data;
+        if (isStarted()) {
+            super.deliverResult(data);
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (!mObserving) {
+            getContext().getContentResolver().registerContentObserver(mUri, true, mObserver);
+            mObserving = true;
+        }
+        if (mSnapshot != null) {
+            deliverResult(mSnapshot);
+        }
+        if (takeContentChanged() || mSnapshot == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+        if (mObserving) {
+            getContext().getContentResolver().unregisterContentObserver(mObserver);
+            mObserving = false;
+        }
+        mSnapshot = null;
+        mBaseline = null;
+    }
+}
@@ -1,50 +1,76 @@
 package com.github.potatodealer.gfiphotopicker.data;
 
 
-import android.content.ContentValues;
 import android.content.Context;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.support.annotation.NonNull;
 
 import com.github.potatodealer.gfiphotopicker.InstagramAgent;
 
-import java.net.URISyntaxException;
 import java.util.List;
 
 public class InstagramDBHelper extends SQLiteOpenHelper {
 
     //Constants for db name and version
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 2;
     private static final String DATABASE_NAME = "instagramManager";
 
     //Constants for table and columns
     public static final String TABLE_INSTAGRAM = "instagram";
     public static final String _ID = "id";
+    public static final String MEDIA_ID = "media_id";
     public static final String DISPLAY_NAME = "name";
     public static final String DATA = "data";
     public static final String WIDTH = "width";
     public static final String HEIGHT = "height";
+    public static final String CREATED_TIME = "created_time";
+    public static final String END_OF_FEED = "end_of_feed";
 
-    public InstagramDBHelper(Context context) {
+    // The feed order, newest first
+    public static final String SORT_ORDER = CREATED_TIME + " DESC," + _ID + " DESC";
+
+    private static InstagramDBHelper sInstance;
+
+    /**
+     * The provider, the fragment and the pager share one helper, so they share one connection.
+     */
+    public static synchronized InstagramDBHelper getInstance(@NonNull Context context) {
+        if (sInstance == null) {
+            sInstance = new InstagramDBHelper(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private InstagramDBHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
     }
 
     public static final String[] ALL_IMAGE_PROJECTION = {_ID, DISPLAY_NAME, DATA, WIDTH, HEIGHT};
 
+    // Each media is stored once, under its Instagram id
     private static final String CREATE_INSTAGRAM_TABLE = "CREATE TABLE " + TABLE_INSTAGRAM + "("
-            + _ID + " INTEGER PRIMARY KEY AUTOINCREMENT," + DISPLAY_NAME + " TEXT,"
-            + DATA + " TEXT," + WIDTH + " INTEGER," + HEIGHT + " INTEGER" + ")";
+            + _ID + " INTEGER PRIMARY KEY," + MEDIA_ID + " TEXT NOT NULL UNIQUE," + DISPLAY_NAME + " TEXT,"
+            + DATA + " TEXT," + WIDTH + " INTEGER," + HEIGHT + " INTEGER,"
+            + CREATED_TIME + " INTEGER," + END_OF_FEED + " INTEGER DEFAULT 0" + ")";
+
+    private static final String CREATE_INSTAGRAM_SORT_INDEX = "CREATE INDEX " + TABLE_INSTAGRAM + "_sort ON "
+            + TABLE_INSTAGRAM + "(" + CREATED_TIME + " DESC," + _ID + " DESC)";
 
     //Creating Tables
     @Override
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(CREATE_INSTAGRAM_TABLE);
+        db.execSQL(CREATE_INSTAGRAM_SORT_INDEX);
     }
 
     // Upgrading database
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // Drop older table if existed
+        // Version 1 stored no media id, so its rows can't be matched to the feed: drop them, they
+        // are fetched again
         db.execSQL("DROP TABLE IF EXISTS " + TABLE_INSTAGRAM);
 
         // Create tables again
@@ -55,35 +81,64 @@ public class InstagramDBHelper extends SQLiteOpenHelper {
      * All CRUD(Create, Read, Update, Delete) Operations
      */
 
-    //Adding new Instagram photo
-    public void addInstagramPhoto(List<InstagramAgent.InstagramPhoto> instagramPhoto) {
+    //Adding or refreshing a page of Instagram photos, returns the number of them that were already stored
+    // Set endOfFeed for the last page, whose last photo is then the oldest of the feed
+    public int addInstagramPhotos(List<InstagramAgent.InstagramPhoto> instagramPhoto, boolean endOfFeed) {
         SQLiteDatabase db = this.getWritableDatabase();
+        int known = 0;
+
+        // The columns are bound in the same order by both statements, the media id last
+        SQLiteStatement insert = db.compileStatement("INSERT OR IGNORE INTO " + TABLE_INSTAGRAM + "("
+                + DISPLAY_NAME + "," + DATA + "," + WIDTH + "," + HEIGHT + "," + CREATED_TIME + "," + END_OF_FEED + ","
+                + MEDIA_ID + ") VALUES(?,?,?,?,?,?,?)");
+        SQLiteStatement update = db.compileStatement("UPDATE " + TABLE_INSTAGRAM + " SET "
+                + DISPLAY_NAME + "=?," + DATA + "=?," + WIDTH + "=?," + HEIGHT + "=?," + CREATED_TIME + "=?,"
+                + END_OF_FEED + "=MAX(" + END_OF_FEED + ",?) WHERE " + MEDIA_ID + "=?");
 
-        ContentValues values = new ContentValues();
+        db.beginTransaction();
         try {
             for (int i = 0; i < instagramPhoto.size(); i++) {
-                String url = instagramPhoto.get(i).getFullURL().toURI().toString();
-                String name = url.substring(url.lastIndexOf("/") + 1);
-                int width = instagramPhoto.get(i).getFullWidth();
-                int height = instagramPhoto.get(i).getFullHeight();
-                values.put(DISPLAY_NAME, name);
-                values.put(DATA, url);
-                values.put(WIDTH, width);
-                values.put(HEIGHT, height);
-
-                // Inserting Row
-                db.insert(TABLE_INSTAGRAM, null, values);
+                InstagramAgent.InstagramPhoto photo = instagramPhoto.get(i);
+                boolean last = endOfFeed && i == instagramPhoto.size() - 1;
+
+                // Inserting Row, or refreshing the one already stored
+                bindPhoto(insert, photo, last);
+                if (insert.executeInsert() == -1) {
+                    known++;
+                    bindPhoto(update, photo, last);
+                    update.executeUpdateDelete();
+                }
             }
-            db.close(); // Closing database connection
-        } catch (URISyntaxException e) {
-            e.printStackTrace();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+            update.close();
         }
+        return known;
+    }
+
+    private static void bindPhoto(SQLiteStatement statement, InstagramAgent.InstagramPhoto photo, boolean last) {
+        String url = photo.getFullURL().toString();
+        statement.clearBindings();
+        statement.bindString(1, url.substring(url.lastIndexOf("/") + 1));
+        statement.bindString(2, url);
+        statement.bindLong(3, photo.getFullWidth());
+        statement.bindLong(4, photo.getFullHeight());
+        statement.bindLong(5, photo.getCreatedTime());
+        statement.bindLong(6, last ? 1 : 0);
+        statement.bindString(7, photo.getId());
+    }
+
+    //Checking whether the whole feed, down to its oldest photo, has been stored
+    public boolean isFeedComplete() {
+        SQLiteDatabase db = this.getReadableDatabase();
+        return DatabaseUtils.queryNumEntries(db, TABLE_INSTAGRAM, END_OF_FEED + "=1") > 0;
     }
 
     // Deleting table
     public void deleteAllInstagramPhotos() {
         SQLiteDatabase db = this.getWritableDatabase();
         db.delete(TABLE_INSTAGRAM, null, null);
-        db.close();
     }
 }
@@ -4,6 +4,7 @@ package com.github.potatodealer.gfiphotopicker.data;
 import android.content.ContentProvider;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.SQLException;
@@ -47,11 +48,18 @@ public class InstagramProvider extends ContentProvider {
 
     private static final UriMatcher uriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 
+    /**
+     * Notify the loaders of the uri, for rows written straight to the {@link InstagramDBHelper}.
+     */
+    public static void notifyChange(Context context) {
+        context.getContentResolver().notifyChange(INSTAGRAM_URI, null);
+    }
+
     private SQLiteDatabase db;
 
     @Override
     public boolean onCreate() {
-        InstagramDBHelper helper = new InstagramDBHelper(getContext());
+        InstagramDBHelper helper = InstagramDBHelper.getInstance(getContext());
         db = helper.getWritableDatabase();
         return db != null;
     }
@@ -63,7 +71,7 @@ public class InstagramProvider extends ContentProvider {
         switch (uriMatcher.match(uri)) {
             case INSTAGRAM:
                 cursor =  db.query(InstagramDBHelper.TABLE_INSTAGRAM, InstagramDBHelper.ALL_IMAGE_PROJECTION,
-                        null,null,null,null,InstagramDBHelper._ID +" DESC");
+                        null,null,null,null,InstagramDBHelper.SORT_ORDER);
                 break;
             default:
                 throw new IllegalArgumentException("This is an Unknown URI " + uri);
@@ -0,0 +1,297 @@
+package com.github.potatodealer.gfiphotopicker.data;
+
+
+import android.net.Uri;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * The selected images of one source, in the order they were selected.
+ * <p>
+ * Every {@link Uri} is reduced to a 64 bit key once, when it is added, and membership is looked up in an open
+ * addressing table of those keys, so {@link #contains(Uri)} doesn't depend on the number of selected images.
+ * Removed entries leave a hole in the ordered entries, which are compacted when they run out of room.
+ * <p>
+ * The store is {@link Parcelable} so that the preview screens get and return the selection as is;
+ * a {@code List<Uri>} is only built for the final result.
+ */
+public final class SelectionStore implements Parcelable {
+
+    private static final int MIN_CAPACITY = 16;
+    private static final int EMPTY = 0;
+    private static final int DELETED = -1;
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    // The entries in selection order, null where an entry was removed
+    private Uri[] mEntries;
+    private long[] mKeys;
+    // Index + 1 of the entry of each key, EMPTY or DELETED, twice as long as mEntries
+    private int[] mTable;
+    private int mEnd;
+    private int mSize;
+
+    public SelectionStore() {
+        allocate(MIN_CAPACITY);
+    }
+
+    public SelectionStore(@Nullable Collection<Uri> uris) {
+        this();
+        if (uris != null) {
+            addAll(uris);
+        }
+    }
+
+    public SelectionStore(@NonNull SelectionStore other) {
+        mEntries = Arrays.copyOf(other.mEntries, other.mEntries.length);
+        mKeys = Arrays.copyOf(other.mKeys, other.mKeys.length);
+        mTable = Arrays.copyOf(other.mTable, other.mTable.length);
+        mEnd = other.mEnd;
+        mSize = other.mSize;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public boolean contains(@Nullable Uri uri) {
+        return uri != null && find(uri, keyOf(uri)) >= 0;
+    }
+
+    /**
+     * @return True if the uri wasn't selected yet
+     */
+    public boolean add(@NonNull Uri uri) {
+        long key = keyOf(uri);
+        if (find(uri, key) >= 0) {
+            return false;
+        }
+        if (mEnd == mEntries.length) {
+            // Compact if there are enough holes, else grow
+            resize(mSize < mEntries.length / 2 ? mEntries.length : mEntries.length * 2);
+        }
+        mEntries[mEnd] = uri;
+        mKeys[mEnd] = key;
+        insert(key, mEnd);
+        mEnd++;
+        mSize++;
+        return true;
+    }
+
+    /**
+     * @return True if any of the uris wasn't selected yet
+     */
+    public boolean addAll(@NonNull Collection<Uri> uris) {
+        boolean changed = false;
+        for (Uri uri : uris) {
+            changed |= add(uri);
+        }
+        return changed;
+    }
+
+    /**
+     * @return True if the uri was selected
+     */
+    public boolean remove(@Nullable Uri uri) {
+        if (uri == null) {
+            return false;
+        }
+        int slot = find(uri, keyOf(uri));
+        if (slot < 0) {
+            return false;
+        }
+        mEntries[mTable[slot] - 1] = null;
+        mTable[slot] = DELETED;
+        if (--mSize == 0) {
+            clear();
+        }
+        return true;
+    }
+
+    public void clear() {
+        if (mEnd > 0) {
+            allocate(MIN_CAPACITY);
+        }
+    }
+
+    /**
+     * Replace the selection with the one of the other store.
+     */
+    public void set(@NonNull SelectionStore other) {
+        if (other == this) {
+            return;
+        }
+        mEntries = Arrays.copyOf(other.mEntries, other.mEntries.length);
+        mKeys = Arrays.copyOf(other.mKeys, other.mKeys.length);
+        mTable = Arrays.copyOf(other.mTable, other.mTable.length);
+        mEnd = other.mEnd;
+        mSize = other.mSize;
+    }
+
+    /**
+     * @return The selected uris in selection order
+     */
+    @NonNull
+    public ArrayList<Uri> toList() {
+        ArrayList<Uri> list = new ArrayList<>(mSize);
+        for (int i = 0; i < mEnd; i++) {
+            if (mEntries[i] != null) {
+                list.add(mEntries[i]);
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof SelectionStore)) {
+            return false;
+        }
+        SelectionStore other = (SelectionStore) o;
+        if (mSize != other.mSize) {
+            return false;
+        }
+        int i = 0;
+        int j = 0;
+        while (true) {
+            while (i < mEnd && mEntries[i] == null) i++;
+            while (j < other.mEnd && other.mEntries[j] == null) j++;
+            if (i == mEnd || j == other.mEnd) {
+                return i == mEnd && j == other.mEnd;
+            }
+            if (mKeys[i] != other.mKeys[j] || !mEntries[i].equals(other.mEntries[j])) {
+                return false;
+            }
+            i++;
+            j++;
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        int hashCode = 1;
+        for (int i = 0; i < mEnd; i++) {
+            if (mEntries[i] != null) {
+                hashCode = 31 * hashCode + (int) (mKeys[i] ^ (mKeys[i] >>> 32));
+            }
+        }
+        return hashCode;
+    }
+
+    @Override
+    public String toString() {
+        return toList().toString();
+    }
+
+    private void allocate(int capacity) {
+        mEntries = new Uri[capacity];
+        mKeys = new long[capacity];
+        mTable = new int[capacity * 2];
+        mEnd = 0;
+        mSize = 0;
+    }
+
+    private void resize(int capacity) {
+        Uri[] entries = mEntries;
+        long[] keys = mKeys;
+        int end = mEnd;
+        allocate(Math.max(MIN_CAPACITY, capacity));
+        for (int i = 0; i < end; i++) {
+            if (entries[i] != null) {
+                mEntries[mEnd] = entries[i];
+                mKeys[mEnd] = keys[i];
+                insert(keys[i], mEnd);
+                mEnd++;
+            }
+        }
+        mSize = mEnd;
+    }
+
+    /**
+     * @return The table slot of the uri, or -1 if it isn't selected
+     */
+    private int find(Uri uri, long key) {
+        int mask = mTable.length - 1;
+        for (int slot = slotOf(key, mask); ; slot = (slot + 1) & mask) {
+            int entry = mTable[slot];
+            if (entry == EMPTY) {
+                return -1;
+            }
+            if (entry != DELETED && mKeys[entry - 1] == key && uri.equals(mEntries[entry - 1])) {
+                return slot;
+            }
+        }
+    }
+
+    private void insert(long key, int index) {
+        int mask = mTable.length - 1;
+        int slot = slotOf(key, mask);
+        while (mTable[slot] > 0) {
+            slot = (slot + 1) & mask;
+        }
+        mTable[slot] = index + 1;
+    }
+
+    private static int slotOf(long key, int mask) {
+        int hash = (int) (key ^ (key >>> 32));
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    /**
+     * @return The 64 bit FNV-1a hash of the uri string
+     */
+    private static long keyOf(Uri uri) {
+        String string = uri.toString();
+        long key = FNV_OFFSET_BASIS;
+        for (int i = 0; i < string.length(); i++) {
+            key ^= string.charAt(i);
+            key *= FNV_PRIME;
+        }
+        return key;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(mSize);
+        for (int i = 0; i < mEnd; i++) {
+            if (mEntries[i] != null) {
+                Uri.writeToParcel(dest, mEntries[i]);
+            }
+        }
+    }
+
+    public static final Creator<SelectionStore> CREATOR = new Creator<SelectionStore>() {
+        @Override
+        public SelectionStore createFromParcel(Parcel source) {
+            int size = source.readInt();
+            SelectionStore store = new SelectionStore();
+            for (int i = 0; i < size; i++) {
+                store.add(Uri.CREATOR.createFromParcel(source));
+            }
+            return store;
+        }
+
+        @Override
+        public SelectionStore[] newArray(int size) {
+            return new SelectionStore[size];
+        }
+    };
+}
@@ -8,7 +8,6 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.database.Cursor;
-import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.support.annotation.IntRange;
@@ -32,18 +31,22 @@ import android.widget.Button;
 import android.widget.ProgressBar;
 
 import com.github.potatodealer.gfiphotopicker.FacebookAgent;
+import com.github.potatodealer.gfiphotopicker.FacebookPhotoPager;
+import com.github.potatodealer.gfiphotopicker.FacebookSync;
 import com.github.potatodealer.gfiphotopicker.R;
 import com.github.potatodealer.gfiphotopicker.activity.FacebookPreviewActivity;
 import com.github.potatodealer.gfiphotopicker.activity.PhotoPickerActivity;
 import com.github.potatodealer.gfiphotopicker.adapter.FacebookAdapter;
 import com.github.potatodealer.gfiphotopicker.data.FacebookDBHelper;
 import com.github.potatodealer.gfiphotopicker.data.FacebookMediaLoader;
+import com.github.potatodealer.gfiphotopicker.data.SelectionStore;
+import com.github.potatodealer.gfiphotopicker.util.DragSelectTouchListener;
 import com.github.potatodealer.gfiphotopicker.util.ItemOffsetDecoration;
+import com.github.potatodealer.gfiphotopicker.util.ThumbnailPrefetcher;
 import com.github.potatodealer.gfiphotopicker.util.transition.MediaSharedElementCallback;
 import com.github.potatodealer.gfiphotopicker.util.transition.TransitionCallback;
 
 import java.util.ArrayList;
-import java.util.List;
 
 /**
  * A simple {@link Fragment} subclass.
@@ -51,7 +54,7 @@ import java.util.List;
  * {@link FacebookFragment.Callbacks} interface
  * to handle interaction events.
  */
-public class FacebookFragment extends Fragment implements FacebookMediaLoader.Callbacks, FacebookAdapter.Callbacks, FacebookAgent.Callbacks {
+public class FacebookFragment extends Fragment implements FacebookMediaLoader.Callbacks, FacebookAdapter.Callbacks, FacebookSync.Listener {
 
     ////////// Static Constant(s) //////////
 
@@ -62,6 +65,9 @@ public class FacebookFragment extends Fragment implements FacebookMediaLoader.Ca
 
     private static final int     REQUEST_CODE_LOGIN                = 2301;
 
+    // How close to the end of the grid the next page of photos is loaded
+    private static final int     PAGE_AHEAD_ITEMS                  = 30;
+
 
     /**
      * This interface must be implemented by activities that contain this
@@ -99,22 +105,26 @@ public class FacebookFragment extends Fragment implements FacebookMediaLoader.Ca
 
     private final FacebookMediaLoader mMediaLoader;
     private final FacebookAdapter mAdapter;
+    private final ThumbnailPrefetcher mPrefetcher;
+    private final DragSelectTouchListener mDragSelectListener;
     private View mEmptyView;
     private View mLoginView;
     private ProgressBar mProgressBar;
     private String mTitle;
-    private int mAlbumCount;
     private int mMediaBucketPosition;
     private long mBucketId;
     private GridLayoutManager mLayoutManager;
     private RecyclerView mRecyclerView;
     private FacebookFragment.Callbacks mCallbacks;
     private boolean mShouldHandleBackPressed;
-    private boolean mAllAlbumsProcessed;
-    private List<FacebookAgent.Album> mAlbumList;
+    // Only restore the scroll position on the first load, not when a sync reloads the data
+    private boolean mRestoreScrollPosition;
+    private boolean mSyncShowedBuckets;
     private MenuItem logoutMenu;
     private FacebookDBHelper db;
     private FacebookAgent mFacebookAgent;
+    private FacebookSync mSync;
+    private FacebookPhotoPager mPager;
 
 
     ////////// Constructor(s) //////////
@@ -123,6 +133,8 @@ public class FacebookFragment extends Fragment implements FacebookMediaLoader.Ca
         mMediaLoader = new FacebookMediaLoader();
         mAdapter = new FacebookAdapter();
         mAdapter.setCallbacks(this);
+        mPrefetcher = new ThumbnailPrefetcher(mAdapter, ThumbnailPrefetcher.Budget.NETWORK);
+        mDragSelectListener = new DragSelectTouchListener(mAdapter);
         setRetainInstance(true);
         setHasOptionsMenu(true);
     }
@@ -185,6 +197,21 @@ public class FacebookFragment extends Fragment implements FacebookMediaLoader.Ca
         return super.onOptionsItemSelected(item);
     }
 
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        // The retained fragment outlives its views, let go of the old grid
+        mPrefetcher.detach();
+        mDragSelectListener.detach();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        cancelSync();
+        cancelPager();
+    }
+
     @Override
     public void onDetach() {
         super.onDetach();
@@ -232,6 +259,14 @@ public class FacebookFragment extends Fragment implements FacebookMediaLoader.Ca
         mRecyclerView.setClipToPadding(false);
         mRecyclerView.addItemDecoration(new ItemOffsetDecoration(spacing));
         mRecyclerView.setHasFixedSize(true);
+        mPrefetcher.attach(mRecyclerView);
+        mDragSelectListener.attach(mRecyclerView);
+        mRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                pageAhead();
+            }
+        });
         mRecyclerView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
             @Override
             public boolean onPreDraw() {
@@ -244,7 +279,8 @@ public class FacebookFragment extends Fragment implements FacebookMediaLoader.Ca
             }
         });
 
-        db = new FacebookDBHelper(getActivity());
+        db = FacebookDBHelper.getInstance(getActivity());
+        db.setThumbnailSize(getResources().getDimensionPixelSize(R.dimen.gallery_item_size));
 
         if (savedInstanceState != null) {
             Log.d("FBonCreateView", "savedInstanceState");
@@ -300,13 +336,13 @@ public class FacebookFragment extends Fragment implements FacebookMediaLoader.Ca
         mAdapter.swapData(FacebookAdapter.VIEW_TYPE_BUCKET, data);
         getActivity().invalidateOptionsMenu();
         updateEmptyState();
-        if (mBucketPosition != -1) mLayoutManager.scrollToPositionWithOffset(mBucketPosition, mBucketTopView);
+        if (mRestoreScrollPosition && mBucketPosition != -1) mLayoutManager.scrollToPositionWithOffset(mBucketPosition, mBucketTopView);
+        mRestoreScrollPosition = false;
 
-        if (mMediaPosition.size() == 0) {
-            for (int i = 0; i <= mAdapter.getItemCount(); i++) {
-                mMediaPosition.add(i, -1);
-                mMediaTopView.add(i, -1);
-            }
+        // Buckets keep appearing while the albums are synced
+        while (mMediaPosition.size() <= mAdapter.getItemCount()) {
+            mMediaPosition.add(-1);
+            mMediaTopView.add(-1);
         }
     }
 
@@ -315,11 +351,22 @@ public class FacebookFragment extends Fragment implements FacebookMediaLoader.Ca
         mAdapter.swapData(FacebookAdapter.VIEW_TYPE_MEDIA, data);
         getActivity().invalidateOptionsMenu();
         updateEmptyState();
+        if (!mRestoreScrollPosition) {
+            return;
+        }
+        mRestoreScrollPosition = false;
         if (mMediaPosition.get(mMediaBucketPosition) != -1) {
             mLayoutManager.scrollToPositionWithOffset(mMediaPosition.get(mMediaBucketPosition), mMediaTopView.get(mMediaBucketPosition));
         } else {
             mLayoutManager.scrollToPosition(0);
         }
+        // A short grid can't be scrolled, so check once it is laid out
+        mRecyclerView.post(new Runnable() {
+            @Override
+            public void run() {
+                pageAhead();
+            }
+        });
     }
 
 
@@ -339,7 +386,7 @@ public class FacebookFragment extends Fragment implements FacebookMediaLoader.Ca
 
         // load the bucket media
         mBucketId = bucketId;
-        mMediaLoader.loadByBucket(mBucketId);
+        loadMedia(mBucketId);
 
         mShouldHandleBackPressed = true;
     }
@@ -370,52 +417,40 @@ public class FacebookFragment extends Fragment implements FacebookMediaLoader.Ca
     }
 
 
-    ////////// FacebookAgent.Callbacks Method(s) //////////
+    ////////// FacebookSync.Listener Method(s) //////////
 
     /*****************************************************
      *
-     * Called when albums were successfully retrieved.
+     * Called when a page of an album was stored. The buckets
+     * are shown with the first stored page, the loader then
+     * refreshes them as the later pages are stored.
      *
      *****************************************************/
     @Override
-    public void facOnAlbumsSuccess( List<FacebookAgent.Album> albumList, boolean moreAlbums ) {
-        mAllAlbumsProcessed = false;
-
-        mAlbumList = albumList;
-        mAlbumCount = 0;
+    public void onAlbumProgress( FacebookAgent.Album album, long bucketId, int photoCount, boolean complete ) {
+        if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, album.getName() + ": " + photoCount + " photo(s)" + ( complete ? ", complete" : "" ) );
 
-        db.addAlbumInfo(albumList);
+        if (getActivity() == null || mSyncShowedBuckets || mAdapter.getItemCount() > 0 || photoCount == 0) return;
 
-        // Add the albums to our table
-        getNextAlbum(mAlbumCount);
-
-        if (moreAlbums) {
-            mFacebookAgent.getAlbums(this);
-        } else {
-            mAllAlbumsProcessed = true;
-        }
+        mSyncShowedBuckets = true;
+        mShouldHandleBackPressed = false;
+        loadBucketList();
     }
 
 
     /*****************************************************
      *
-     * Called when photos were successfully retrieved.
+     * Called when all the albums and photos were synced.
      *
      *****************************************************/
     @Override
-    public void facOnPhotosSuccess( List<FacebookAgent.Photo> photoList, boolean morePhotos ) {
-        db.addFacebookPhoto(photoList, mAlbumCount);
-
-        if (morePhotos) {
-            mFacebookAgent.getPhotos(null, this);
-        } else if (mAlbumCount < mAlbumList.size() - 1) {
-            mAlbumCount++;
-            getNextAlbum(mAlbumCount);
-        }
+    public void onSyncFinished() {
+        if (getActivity() == null) return;
 
-        if (mAllAlbumsProcessed && mAlbumCount == mAlbumList.size() - 1) {
+        // The loaded buckets are already up to date
+        if (!mSyncShowedBuckets && mAdapter.getItemCount() == 0) {
             mShouldHandleBackPressed = false;
-            mMediaLoader.loadBuckets();
+            loadBucketList();
         }
     }
 
@@ -426,9 +461,12 @@ public class FacebookFragment extends Fragment implements FacebookMediaLoader.Ca
      *
      *****************************************************/
     @Override
-    public void facOnError( Exception exception ) {
+    public void onSyncError( Exception exception ) {
         Log.e( LOG_TAG, "Facebook error", exception );
 
+        // Keep showing the stored photos when refreshing them fails
+        if (getActivity() == null || mAdapter.getItemCount() > 0) return;
+
         RetryListener  retryListener  = new RetryListener();
         CancelListener cancelListener = new CancelListener();
 
@@ -449,7 +487,9 @@ public class FacebookFragment extends Fragment implements FacebookMediaLoader.Ca
      *
      *****************************************************/
     @Override
-    public void facOnCancel() {
+    public void onSyncCancelled() {
+        if (getActivity() == null) return;
+
         mAdapter.clearFacebookSelection();
         mRecyclerView.setVisibility(View.INVISIBLE);
         mEmptyView.setVisibility(View.INVISIBLE);
@@ -468,11 +508,11 @@ public class FacebookFragment extends Fragment implements FacebookMediaLoader.Ca
         mAdapter.updateAllSelectionCount(count);
     }
 
-    public List<Uri> getFacebookSelection() {
-        return new ArrayList<>(mAdapter.getFacebookSelection());
+    public SelectionStore getFacebookSelection() {
+        return mAdapter.getFacebookSelection();
     }
 
-    public void setFacebookSelection(@NonNull List<Uri> selection) {
+    public void setFacebookSelection(@NonNull SelectionStore selection) {
         mAdapter.setFacebookSelection(selection);
     }
 
@@ -534,14 +574,52 @@ public class FacebookFragment extends Fragment implements FacebookMediaLoader.Ca
         });
     }
 
-    private void getNextAlbum(int albumCount) {
-        mFacebookAgent.getPhotos(mAlbumList.get(albumCount), this);
+    private void loadBuckets() {
+        cancelSync();
+        mSyncShowedBuckets = false;
+        mSync = new FacebookSync(mFacebookAgent, db, this);
+        mSync.setProgressive(true);
+        mSync.setIncremental(true);
+        // The rest of each album is paged in when it is opened
+        mSync.setLazy(true);
+        mSync.start();
+    }
+
+    private void loadBucketList() {
+        mRestoreScrollPosition = true;
+        mMediaLoader.loadBuckets();
+    }
+
+    private void loadMedia(long bucketId) {
+        mRestoreScrollPosition = true;
+        mMediaLoader.loadByBucket(bucketId);
+        if (mPager == null) {
+            mPager = new FacebookPhotoPager(mFacebookAgent, db);
+        }
+        mPager.setBucket(bucketId);
     }
 
-    private void loadBuckets() {
-        mFacebookAgent.resetAlbums();
-        mFacebookAgent.resetPhotos();
-        mFacebookAgent.getAlbums(this);
+    private void pageAhead() {
+        if (!mShouldHandleBackPressed || mPager == null) return;
+
+        // An empty grid has no visible item, and loads its first page
+        if (mLayoutManager.findLastVisibleItemPosition() >= mAdapter.getItemCount() - PAGE_AHEAD_ITEMS) {
+            mPager.loadMore();
+        }
+    }
+
+    private void cancelPager() {
+        if (mPager != null) {
+            mPager.cancel();
+            mPager = null;
+        }
+    }
+
+    private void cancelSync() {
+        if (mSync != null) {
+            mSync.cancel();
+            mSync = null;
+        }
     }
 
     private void updateLoginState() {
@@ -549,9 +627,14 @@ public class FacebookFragment extends Fragment implements FacebookMediaLoader.Ca
             mLoginView.setVisibility(View.INVISIBLE);
 
             if (mShouldHandleBackPressed) {
-                mMediaLoader.loadByBucket(mBucketId);
+                loadMedia(mBucketId);
             } else {
-                mMediaLoader.loadBuckets();
+                loadBucketList();
+            }
+
+            // Show the stored photos, and bring them up to date once per fragment
+            if (mSync == null) {
+                loadBuckets();
             }
         } else {
             mLoginView.setVisibility(View.VISIBLE);
@@ -565,6 +648,8 @@ public class FacebookFragment extends Fragment implements FacebookMediaLoader.Ca
     }
 
     private void logout() {
+        cancelSync();
+        cancelPager();
         mFacebookAgent.logOut();
         mAdapter.clearFacebookSelection();
         db.deleteAllFacebookPhotos();
@@ -598,7 +683,7 @@ public class FacebookFragment extends Fragment implements FacebookMediaLoader.Ca
             mTitle = "Facebook";
             ((PhotoPickerActivity) getActivity()).setActionBarTitle(mTitle);
             mShouldHandleBackPressed = false;
-            mMediaLoader.loadBuckets();
+            loadBucketList();
             return false;
         }
         return true;
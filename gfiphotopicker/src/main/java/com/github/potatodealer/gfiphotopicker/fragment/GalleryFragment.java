@@ -3,8 +3,6 @@ package com.github.potatodealer.gfiphotopicker.fragment;
 import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
-import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.support.annotation.IntRange;
@@ -26,13 +24,17 @@ import com.github.potatodealer.gfiphotopicker.R;
 import com.github.potatodealer.gfiphotopicker.activity.GalleryPreviewActivity;
 import com.github.potatodealer.gfiphotopicker.activity.PhotoPickerActivity;
 import com.github.potatodealer.gfiphotopicker.adapter.GalleryAdapter;
+import com.github.potatodealer.gfiphotopicker.data.GalleryDimensionIndex;
 import com.github.potatodealer.gfiphotopicker.data.GalleryMediaLoader;
+import com.github.potatodealer.gfiphotopicker.data.GallerySnapshot;
+import com.github.potatodealer.gfiphotopicker.data.SelectionStore;
+import com.github.potatodealer.gfiphotopicker.util.DragSelectTouchListener;
 import com.github.potatodealer.gfiphotopicker.util.ItemOffsetDecoration;
+import com.github.potatodealer.gfiphotopicker.util.ThumbnailPrefetcher;
 import com.github.potatodealer.gfiphotopicker.util.transition.MediaSharedElementCallback;
 import com.github.potatodealer.gfiphotopicker.util.transition.TransitionCallback;
 
 import java.util.ArrayList;
-import java.util.List;
 
 /**
  * A simple {@link Fragment} subclass.
@@ -77,6 +79,9 @@ public class GalleryFragment extends Fragment implements GalleryMediaLoader.Call
 
     private final GalleryMediaLoader mMediaLoader;
     private final GalleryAdapter mAdapter;
+    private final ThumbnailPrefetcher mPrefetcher;
+    private final DragSelectTouchListener mDragSelectListener;
+    private GalleryDimensionIndex mDimensionIndex;
     private View mEmptyView;
     private String mTitle;
     private int mMediaBucketPosition;
@@ -92,8 +97,11 @@ public class GalleryFragment extends Fragment implements GalleryMediaLoader.Call
 
     public GalleryFragment() {
         mMediaLoader = new GalleryMediaLoader();
+        mMediaLoader.setPageSize(GalleryMediaLoader.DEFAULT_PAGE_SIZE);
         mAdapter = new GalleryAdapter();
         mAdapter.setCallbacks(this);
+        mPrefetcher = new ThumbnailPrefetcher(mAdapter, ThumbnailPrefetcher.Budget.LOCAL);
+        mDragSelectListener = new DragSelectTouchListener(mAdapter);
         setRetainInstance(true);
     }
 
@@ -115,6 +123,17 @@ public class GalleryFragment extends Fragment implements GalleryMediaLoader.Call
             throw new IllegalArgumentException(context.getClass().getSimpleName() + " must inherit from " + FragmentActivity.class.getName());
         }
         mMediaLoader.onAttach((FragmentActivity) context, this);
+        mDimensionIndex = GalleryDimensionIndex.getInstance(context);
+        mDimensionIndex.addListener(mAdapter);
+        mAdapter.setDimensionIndex(mDimensionIndex);
+    }
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        // The retained fragment outlives its views, let go of the old grid
+        mPrefetcher.detach();
+        mDragSelectListener.detach();
     }
 
     @Override
@@ -123,6 +142,7 @@ public class GalleryFragment extends Fragment implements GalleryMediaLoader.Call
         Log.d("GalleryFragment", "onDetach");
         mCallbacks = null;
         mMediaLoader.onDetach();
+        mDimensionIndex.removeListener(mAdapter);
     }
 
     @Override
@@ -153,6 +173,18 @@ public class GalleryFragment extends Fragment implements GalleryMediaLoader.Call
         mRecyclerView.setClipToPadding(false);
         mRecyclerView.addItemDecoration(new ItemOffsetDecoration(spacing));
         mRecyclerView.setHasFixedSize(true);
+        mPrefetcher.attach(mRecyclerView);
+        mDragSelectListener.attach(mRecyclerView);
+        mRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                if (mShouldHandleBackPressed) {
+                    // Only the media are loaded by pages
+                    mMediaLoader.onVisibleRangeChanged(mLayoutManager.findFirstVisibleItemPosition(),
+                            mLayoutManager.findLastVisibleItemPosition());
+                }
+            }
+        });
         mRecyclerView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
             @Override
             public boolean onPreDraw() {
@@ -217,32 +249,53 @@ public class GalleryFragment extends Fragment implements GalleryMediaLoader.Call
     ////////// GalleryMediaLoader.Callbacks Method(s) //////////
 
     @Override
-    public void onBucketLoadFinished(@Nullable Cursor data) {
-        mAdapter.swapData(GalleryAdapter.VIEW_TYPE_BUCKET, data);
+    public void onBucketLoadFinished(@Nullable GallerySnapshot data) {
+        boolean updated = mAdapter.swapData(GalleryAdapter.VIEW_TYPE_BUCKET, data);
         getActivity().invalidateOptionsMenu();
         updateEmptyState();
-        if (mBucketPosition != -1) mLayoutManager.scrollToPositionWithOffset(mBucketPosition, mBucketTopView);
+        // Keep the scroll position when the MediaStore changes under the same buckets
+        if (!updated && mBucketPosition != -1) mLayoutManager.scrollToPositionWithOffset(mBucketPosition, mBucketTopView);
 
-        if (mMediaPosition.size() == 0) {
-            for (int i = 0; i <= mAdapter.getItemCount(); i++) {
-                mMediaPosition.add(i, -1);
-                mMediaTopView.add(i, -1);
-            }
+        while (mMediaPosition.size() <= mAdapter.getItemCount()) {
+            mMediaPosition.add(-1);
+            mMediaTopView.add(-1);
         }
     }
 
     @Override
-    public void onMediaLoadFinished(@Nullable Cursor data) {
-        mAdapter.swapData(GalleryAdapter.VIEW_TYPE_MEDIA, data);
+    public void onMediaLoadFinished(@Nullable GallerySnapshot data) {
+        boolean updated = mAdapter.swapData(GalleryAdapter.VIEW_TYPE_MEDIA, data);
         getActivity().invalidateOptionsMenu();
         updateEmptyState();
-        if (mMediaPosition.get(mMediaBucketPosition) != -1) {
-            mLayoutManager.scrollToPositionWithOffset(mMediaPosition.get(mMediaBucketPosition), mMediaTopView.get(mMediaBucketPosition));
+        if (updated) {
+            // Keep the scroll position when the MediaStore changes under the same bucket
+            return;
+        }
+        final int position = mMediaPosition.get(mMediaBucketPosition);
+        if (position != -1) {
+            final int offset = mMediaTopView.get(mMediaBucketPosition);
+            // Only the first page is loaded, and the layout manager drops a position past the loaded rows
+            mMediaLoader.loadUpTo(position, new Runnable() {
+                @Override
+                public void run() {
+                    mLayoutManager.scrollToPositionWithOffset(Math.min(position, mAdapter.getItemCount() - 1), offset);
+                }
+            });
         } else {
             mLayoutManager.scrollToPosition(0);
         }
     }
 
+    @Override
+    public void onMediaRangeInserted(@NonNull GallerySnapshot data, int positionStart, int itemCount) {
+        mAdapter.appendData(data, positionStart, itemCount);
+    }
+
+    @Override
+    public void onMediaRangeChanged(@NonNull GallerySnapshot data, int positionStart, int itemCount) {
+        mAdapter.reloadData(data, positionStart, itemCount);
+    }
+
     private void updateEmptyState() {
         mRecyclerView.setVisibility(mAdapter.getItemCount() > 0 ? View.VISIBLE : View.INVISIBLE);
         mEmptyView.setVisibility(mAdapter.getItemCount() > 0 ? View.INVISIBLE : View.VISIBLE);
@@ -306,11 +359,11 @@ public class GalleryFragment extends Fragment implements GalleryMediaLoader.Call
         mAdapter.updateAllSelectionCount(count);
     }
 
-    public List<Uri> getSelection() {
-        return new ArrayList<>(mAdapter.getSelection());
+    public SelectionStore getSelection() {
+        return mAdapter.getSelection();
     }
 
-    public void setSelection(@NonNull List<Uri> selection) {
+    public void setSelection(@NonNull SelectionStore selection) {
         mAdapter.setSelection(selection);
     }
 
@@ -318,12 +371,20 @@ public class GalleryFragment extends Fragment implements GalleryMediaLoader.Call
         mAdapter.setMinImageResolution(minWidth, minHeight);
     }
 
+    public void selectAll() {
+        // The grid reads the media by pages, the rows not read yet or released are queried
+        boolean querying = mMediaLoader.queryAllMedia(new GalleryMediaLoader.AllMediaCallback() {
+            @Override
+            public void onAllMediaLoaded(@NonNull GallerySnapshot data) {
+                mAdapter.selectAll(data);
+            }
+        });
+        if (!querying) mAdapter.selectAll();
+    }
+
     public void onActivityReenter(int resultCode, Intent data) {
 
         final int position = GalleryPreviewActivity.getPosition(resultCode, data);
-        if (position != RecyclerView.NO_POSITION) {
-            mRecyclerView.scrollToPosition(position);
-        }
 
         final MediaSharedElementCallback sharedElementCallback = new MediaSharedElementCallback();
         getActivity().setExitSharedElementCallback(sharedElementCallback);
@@ -352,6 +413,24 @@ public class GalleryFragment extends Fragment implements GalleryMediaLoader.Call
 
         //noinspection ConstantConditions
         getActivity().supportPostponeEnterTransition();
+        if (position == RecyclerView.NO_POSITION) {
+            startPostponedEnterTransition(position, sharedElementCallback);
+            return;
+        }
+        // The preview pages through the whole bucket, the grid may have to load more pages to show the position
+        mMediaLoader.loadUpTo(position, new Runnable() {
+            @Override
+            public void run() {
+                mRecyclerView.scrollToPosition(Math.min(position, mAdapter.getItemCount() - 1));
+                startPostponedEnterTransition(position, sharedElementCallback);
+            }
+        });
+    }
+
+    /**
+     * Start the transition once the grid is laid out, from the item at the position if it is shown.
+     */
+    private void startPostponedEnterTransition(final int position, final MediaSharedElementCallback sharedElementCallback) {
         mRecyclerView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
             @Override
             public boolean onPreDraw() {
@@ -7,7 +7,6 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.database.Cursor;
-import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.support.annotation.IntRange;
@@ -31,6 +30,7 @@ import android.widget.Button;
 import android.widget.ProgressBar;
 
 import com.github.potatodealer.gfiphotopicker.InstagramAgent;
+import com.github.potatodealer.gfiphotopicker.InstagramPhotoPager;
 import com.github.potatodealer.gfiphotopicker.R;
 import com.github.potatodealer.gfiphotopicker.activity.InstagramLoginActivity;
 import com.github.potatodealer.gfiphotopicker.activity.InstagramPreviewActivity;
@@ -38,11 +38,13 @@ import com.github.potatodealer.gfiphotopicker.activity.PhotoPickerActivity;
 import com.github.potatodealer.gfiphotopicker.adapter.InstagramAdapter;
 import com.github.potatodealer.gfiphotopicker.data.InstagramDBHelper;
 import com.github.potatodealer.gfiphotopicker.data.InstagramMediaLoader;
+import com.github.potatodealer.gfiphotopicker.data.SelectionStore;
+import com.github.potatodealer.gfiphotopicker.util.DragSelectTouchListener;
 import com.github.potatodealer.gfiphotopicker.util.ItemOffsetDecoration;
+import com.github.potatodealer.gfiphotopicker.util.ThumbnailPrefetcher;
 import com.github.potatodealer.gfiphotopicker.util.transition.MediaSharedElementCallback;
 import com.github.potatodealer.gfiphotopicker.util.transition.TransitionCallback;
 
-import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -51,7 +53,7 @@ import java.util.List;
  * {@link InstagramFragment.Callbacks} interface
  * to handle interaction events.
  */
-public class InstagramFragment extends Fragment implements InstagramMediaLoader.Callbacks, InstagramAdapter.Callbacks, InstagramAgent.Callbacks {
+public class InstagramFragment extends Fragment implements InstagramMediaLoader.Callbacks, InstagramAdapter.Callbacks, InstagramAgent.Callbacks, InstagramPhotoPager.Callbacks {
 
     ////////// Static Constant(s) //////////
 
@@ -101,6 +103,8 @@ public class InstagramFragment extends Fragment implements InstagramMediaLoader.
 
     private final InstagramMediaLoader mMediaLoader;
     private final InstagramAdapter mAdapter;
+    private final ThumbnailPrefetcher mPrefetcher;
+    private final DragSelectTouchListener mDragSelectListener;
     private View mEmptyView;
     private View mLoginView;
     private String mTitle;
@@ -112,6 +116,9 @@ public class InstagramFragment extends Fragment implements InstagramMediaLoader.
     private MenuItem logoutMenu;
     private InstagramDBHelper db;
     private InstagramAgent mInstagramAgent;
+    private InstagramPhotoPager mPager;
+    private int mPageAheadItems = InstagramPhotoPager.DEFAULT_PAGE_AHEAD_ITEMS;
+    private boolean mResumePaging;
 
 
     ////////// Constructor(s) //////////
@@ -120,6 +127,8 @@ public class InstagramFragment extends Fragment implements InstagramMediaLoader.
         mMediaLoader = new InstagramMediaLoader();
         mAdapter = new InstagramAdapter();
         mAdapter.setCallbacks(this);
+        mPrefetcher = new ThumbnailPrefetcher(mAdapter, ThumbnailPrefetcher.Budget.NETWORK);
+        mDragSelectListener = new DragSelectTouchListener(mAdapter);
         setRetainInstance(true);
         setHasOptionsMenu(true);
     }
@@ -181,10 +190,29 @@ public class InstagramFragment extends Fragment implements InstagramMediaLoader.
         return super.onOptionsItemSelected(item);
     }
 
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        // The retained fragment outlives its views, let go of the old grid
+        mPrefetcher.detach();
+        mDragSelectListener.detach();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        cancelPager();
+    }
+
     @Override
     public void onDetach() {
         super.onDetach();
         Log.d("InstagramFragment", "onDetach");
+        // Nothing may call back into the old activity: abort the page in flight and stop paging,
+        // to pick up again once the views are back
+        if (mPager != null && mPager.hasMorePhotos()) mResumePaging = true;
+        cancelPager();
+        mInstagramAgent.cancelRequests();
         mCallbacks = null;
         mMediaLoader.onDetach();
     }
@@ -227,6 +255,14 @@ public class InstagramFragment extends Fragment implements InstagramMediaLoader.
         mRecyclerView.setClipToPadding(false);
         mRecyclerView.addItemDecoration(new ItemOffsetDecoration(spacing));
         mRecyclerView.setHasFixedSize(true);
+        mPrefetcher.attach(mRecyclerView);
+        mDragSelectListener.attach(mRecyclerView);
+        mRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                if (mPager != null) mPager.onScrolled(mLayoutManager.findLastVisibleItemPosition());
+            }
+        });
         mRecyclerView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
             @Override
             public boolean onPreDraw() {
@@ -239,7 +275,7 @@ public class InstagramFragment extends Fragment implements InstagramMediaLoader.
             }
         });
 
-        db = new InstagramDBHelper(getActivity());
+        db = InstagramDBHelper.getInstance(getActivity());
 
         if (savedInstanceState != null) {
             Log.d("INonCreateView", "savedInstanceState");
@@ -337,6 +373,8 @@ public class InstagramFragment extends Fragment implements InstagramMediaLoader.
             Log.e(LOG_TAG, "Instagram error", exception);
         }
 
+        if (mPager != null) mPager.onError();
+
         RetryListener  retryListener  = new RetryListener();
         CancelListener cancelListener = new CancelListener();
 
@@ -374,13 +412,22 @@ public class InstagramFragment extends Fragment implements InstagramMediaLoader.
     public void iaOnPhotosSuccess(List<InstagramAgent.InstagramPhoto> photoList, boolean morePhotos) {
         if ( DEBUGGING_ENABLED ) Log.d( LOG_TAG, "iaOnPhotosSuccess( photoList = " + ( photoList != null ? photoList : "null" ) + " ( " + ( photoList != null ? photoList.size() : "0" ) + " ), morePhotos = " + morePhotos + " )" );
 
-        db.addInstagramPhoto(photoList);
+        if (mPager != null) mPager.onPhotosSuccess(photoList, morePhotos);
+    }
 
-        if (morePhotos) {
-            mInstagramAgent.getPhotos();
-        } else {
-            mMediaLoader.loadMedias();
-        }
+
+    ////////// InstagramPhotoPager.Callbacks Method(s) //////////
+
+    /*****************************************************
+     *
+     * Called when a page of photos has been stored. The
+     * grid is shown from the first page, and the later
+     * pages reach it through the provider.
+     *
+     *****************************************************/
+    @Override
+    public void ipOnPageStored(boolean firstPage) {
+        if (firstPage && mCallbacks != null) mMediaLoader.loadMedias();
     }
 
 
@@ -402,14 +449,22 @@ public class InstagramFragment extends Fragment implements InstagramMediaLoader.
         mAdapter.updateAllSelectionCount(count);
     }
 
-    public List<Uri> getInstagramSelection() {
-        return new ArrayList<>(mAdapter.getInstagramSelection());
+    public SelectionStore getInstagramSelection() {
+        return mAdapter.getInstagramSelection();
     }
 
-    public void setInstagramSelection(@NonNull List<Uri> selection) {
+    public void setInstagramSelection(@NonNull SelectionStore selection) {
         mAdapter.setInstagramSelection(selection);
     }
 
+    /**
+     * Sets how many photos are loaded ahead of the last visible one before loading pauses.
+     */
+    public void setPageAheadItems(@IntRange(from = 0) int pageAheadItems) {
+        mPageAheadItems = pageAheadItems;
+        if (mPager != null) mPager.setPageAheadItems(pageAheadItems);
+    }
+
     public void setMinImageResolution(int minWidth, int minHeight) {
         mAdapter.setMinImageResolution(minWidth, minHeight);
     }
@@ -471,8 +526,22 @@ public class InstagramFragment extends Fragment implements InstagramMediaLoader.
     public void loadMedias() {
         mLoginView.setVisibility(View.INVISIBLE);
         mProgressBar.setVisibility(View.VISIBLE);
-        mInstagramAgent.resetPhotos();
-        mInstagramAgent.getPhotos();
+        startPager();
+    }
+
+    private void startPager() {
+        cancelPager();
+        mResumePaging = false;
+        mPager = new InstagramPhotoPager(mInstagramAgent, db, getActivity(), this);
+        mPager.setPageAheadItems(mPageAheadItems);
+        mPager.start();
+    }
+
+    private void cancelPager() {
+        if (mPager != null) {
+            mPager.cancel();
+            mPager = null;
+        }
     }
 
     private void showErrorDialog(String message) {
@@ -487,6 +556,7 @@ public class InstagramFragment extends Fragment implements InstagramMediaLoader.
         if (mInstagramAgent.haveAccessToken(getActivity())) {
             mLoginView.setVisibility(View.INVISIBLE);
             mMediaLoader.loadMedias();
+            if (mResumePaging) startPager();
         } else {
             mLoginView.setVisibility(View.VISIBLE);
         }
@@ -499,6 +569,7 @@ public class InstagramFragment extends Fragment implements InstagramMediaLoader.
     }
 
     private void logout() {
+        cancelPager();
         mInstagramAgent.clearAccessToken(getActivity());
         InstagramLoginActivity.logOut(getActivity());
         mAdapter.clearInstagramSelection();
@@ -2,6 +2,9 @@ package com.github.potatodealer.gfiphotopicker.rest;
 
 
 import com.github.potatodealer.gfiphotopicker.GFIPhotoPicker;
+import com.github.potatodealer.gfiphotopicker.rest.model.Response;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
 
 import retrofit2.Retrofit;
 import retrofit2.converter.gson.GsonConverterFactory;
@@ -9,15 +12,30 @@ import retrofit2.converter.gson.GsonConverterFactory;
 public class InstagramApiClient {
 
     private static Retrofit retrofit = null;
+    private static Gson gson = null;
 
     public static Retrofit getClient(String baseUrl) {
         if (retrofit == null) {
             retrofit = new Retrofit.Builder()
                     .baseUrl(baseUrl)
-                    .addConverterFactory(GsonConverterFactory.create())
+                    .addConverterFactory(GsonConverterFactory.create(getGson()))
                     .build();
         }
         return retrofit;
     }
 
+    /**
+     * Returns the Gson that reads media responses with {@link ResponseTypeAdapter}, rather
+     * than by reflection. Give it a {@link java.io.Reader} over the response body, so the
+     * body is parsed as it arrives instead of being buffered first.
+     */
+    public static synchronized Gson getGson() {
+        if (gson == null) {
+            gson = new GsonBuilder()
+                    .registerTypeAdapter(Response.class, new ResponseTypeAdapter())
+                    .create();
+        }
+        return gson;
+    }
+
 }
@@ -0,0 +1,228 @@
+package com.github.potatodealer.gfiphotopicker.rest;
+
+
+import com.github.potatodealer.gfiphotopicker.rest.model.Data;
+import com.github.potatodealer.gfiphotopicker.rest.model.Image;
+import com.github.potatodealer.gfiphotopicker.rest.model.Images;
+import com.github.potatodealer.gfiphotopicker.rest.model.Meta;
+import com.github.potatodealer.gfiphotopicker.rest.model.Pagination;
+import com.github.potatodealer.gfiphotopicker.rest.model.Response;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a media {@link Response} straight off the stream, without reflection.
+ * <p>
+ * Only the fields the picker uses are read: the meta, the id, type, creation time and images
+ * of each media, and the next page url. Everything else (captions, comments, likes, users...)
+ * is skipped without being built, so those getters return null.
+ */
+public class ResponseTypeAdapter extends TypeAdapter<Response> {
+
+    @Override
+    public Response read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        Response response = new Response();
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+            } else if ("meta".equals(name)) {
+                response.setMeta(readMeta(in));
+            } else if ("data".equals(name)) {
+                response.setData(readDataList(in));
+            } else if ("pagination".equals(name)) {
+                response.setPagination(readPagination(in));
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        return response;
+    }
+
+    private Meta readMeta(JsonReader in) throws IOException {
+        Meta meta = new Meta();
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+            } else if ("code".equals(name)) {
+                meta.setCode(in.nextString());
+            } else if ("error_type".equals(name)) {
+                meta.setError_type(in.nextString());
+            } else if ("error_message".equals(name)) {
+                meta.setError_message(in.nextString());
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        return meta;
+    }
+
+    private List<Data> readDataList(JsonReader in) throws IOException {
+        List<Data> dataList = new ArrayList<>();
+        in.beginArray();
+        while (in.hasNext()) {
+            dataList.add(readData(in));
+        }
+        in.endArray();
+        return dataList;
+    }
+
+    private Data readData(JsonReader in) throws IOException {
+        Data data = new Data();
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+            } else if ("id".equals(name)) {
+                data.setId(in.nextString());
+            } else if ("type".equals(name)) {
+                data.setType(in.nextString());
+            } else if ("created_time".equals(name)) {
+                data.setCreatedTime(in.nextString());
+            } else if ("images".equals(name)) {
+                data.setImages(readImages(in));
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        return data;
+    }
+
+    private Images readImages(JsonReader in) throws IOException {
+        Images images = new Images();
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+            } else if ("thumbnail".equals(name)) {
+                images.setThumbnail(readImage(in));
+            } else if ("low_resolution".equals(name)) {
+                images.setLow_resolution(readImage(in));
+            } else if ("standard_resolution".equals(name)) {
+                images.setStandard_resolution(readImage(in));
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        return images;
+    }
+
+    private Image readImage(JsonReader in) throws IOException {
+        Image image = new Image();
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+            } else if ("url".equals(name)) {
+                image.setUrl(in.nextString());
+            } else if ("width".equals(name)) {
+                // nextString() also reads numbers, as they were sent
+                image.setWidth(in.nextString());
+            } else if ("height".equals(name)) {
+                image.setHeight(in.nextString());
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        return image;
+    }
+
+    private Pagination readPagination(JsonReader in) throws IOException {
+        Pagination pagination = new Pagination();
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+            } else if ("next_url".equals(name)) {
+                pagination.setNext_url(in.nextString());
+            } else if ("next_max_id".equals(name)) {
+                pagination.setNext_max_id(in.nextString());
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        return pagination;
+    }
+
+    @Override
+    public void write(JsonWriter out, Response response) throws IOException {
+        if (response == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        Meta meta = response.getMeta();
+        if (meta != null) {
+            out.name("meta").beginObject();
+            out.name("code").value(meta.getCode());
+            out.name("error_type").value(meta.getError_type());
+            out.name("error_message").value(meta.getError_message());
+            out.endObject();
+        }
+        List<Data> dataList = response.getData();
+        if (dataList != null) {
+            out.name("data").beginArray();
+            for (Data data : dataList) {
+                writeData(out, data);
+            }
+            out.endArray();
+        }
+        Pagination pagination = response.getPagination();
+        if (pagination != null) {
+            out.name("pagination").beginObject();
+            out.name("next_url").value(pagination.getNext_url());
+            out.name("next_max_id").value(pagination.getNext_max_id());
+            out.endObject();
+        }
+        out.endObject();
+    }
+
+    private void writeData(JsonWriter out, Data data) throws IOException {
+        out.beginObject();
+        out.name("id").value(data.getId());
+        out.name("type").value(data.getType());
+        out.name("created_time").value(data.getCreatedTime());
+        Images images = data.getImages();
+        if (images != null) {
+            out.name("images").beginObject();
+            writeImage(out, "thumbnail", images.getThumbnail());
+            writeImage(out, "low_resolution", images.getLow_resolution());
+            writeImage(out, "standard_resolution", images.getStandard_resolution());
+            out.endObject();
+        }
+        out.endObject();
+    }
+
+    private void writeImage(JsonWriter out, String name, Image image) throws IOException {
+        if (image == null) return;
+        out.name(name).beginObject();
+        out.name("url").value(image.getUrl());
+        out.name("width").value(image.getWidth());
+        out.name("height").value(image.getHeight());
+        out.endObject();
+    }
+
+}
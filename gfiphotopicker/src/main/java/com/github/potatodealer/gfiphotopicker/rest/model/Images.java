@@ -12,7 +12,7 @@ public class Images {
     @SerializedName("low_resolution")
     @Expose
     private Image low_resolution;
-    @SerializedName("standard_reslution")
+    @SerializedName("standard_resolution")
     @Expose
     private Image standard_resolution;
 
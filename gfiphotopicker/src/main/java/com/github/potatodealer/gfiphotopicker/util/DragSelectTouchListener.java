@@ -0,0 +1,158 @@
+package com.github.potatodealer.gfiphotopicker.util;
+
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.view.GestureDetectorCompat;
+import android.support.v7.widget.RecyclerView;
+import android.view.GestureDetector;
+import android.view.HapticFeedbackConstants;
+import android.view.MotionEvent;
+import android.view.View;
+import android.view.ViewParent;
+
+/**
+ * {@link RecyclerView.OnItemTouchListener} that selects a range of grid items by dragging.
+ * <p>
+ * A long press on an item starts the range, and moving the finger over the grid stretches it from that item to
+ * the one under the finger. The {@link Callback} shows the range as it changes, and applies it once the finger
+ * is lifted.
+ */
+public class DragSelectTouchListener implements RecyclerView.OnItemTouchListener {
+
+    /**
+     * Implemented by the adapters of the grids.
+     */
+    public interface Callback {
+
+        /**
+         * @return False if no range can start at the position, the long press is then left alone
+         */
+        boolean onDragSelectionStarted(int position);
+
+        /**
+         * Called with the range between the start position and the item under the finger, bounds included.
+         */
+        void onDragSelectionChanged(int from, int to);
+
+        /**
+         * Apply the last range, or drop it if the drag was cancelled.
+         */
+        void onDragSelectionFinished(boolean cancelled);
+    }
+
+    private final Callback mCallback;
+    @Nullable
+    private RecyclerView mRecyclerView;
+    @Nullable
+    private GestureDetectorCompat mGestureDetector;
+    private int mStartPosition = RecyclerView.NO_POSITION;
+    private int mLastPosition = RecyclerView.NO_POSITION;
+
+    public DragSelectTouchListener(@NonNull Callback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * Start listening to the long presses of the grid.
+     */
+    public void attach(@NonNull RecyclerView recyclerView) {
+        detach();
+        mRecyclerView = recyclerView;
+        mGestureDetector = new GestureDetectorCompat(recyclerView.getContext(), new GestureDetector.SimpleOnGestureListener() {
+            @Override
+            public void onLongPress(MotionEvent e) {
+                startDrag(e);
+            }
+        });
+        recyclerView.addOnItemTouchListener(this);
+    }
+
+    /**
+     * Stop listening, and drop the range being dragged.
+     */
+    public void detach() {
+        if (mRecyclerView != null) {
+            mRecyclerView.removeOnItemTouchListener(this);
+            mRecyclerView = null;
+        }
+        mGestureDetector = null;
+        finishDrag(true);
+    }
+
+    @Override
+    public boolean onInterceptTouchEvent(RecyclerView rv, MotionEvent e) {
+        if (mStartPosition != RecyclerView.NO_POSITION) {
+            // The item under the finger gets a cancel instead of a click. The event that is intercepted isn't
+            // passed to onTouchEvent, the ones after it are
+            onTouchEvent(rv, e);
+            return true;
+        }
+        if (mGestureDetector != null) {
+            mGestureDetector.onTouchEvent(e);
+        }
+        return false;
+    }
+
+    @Override
+    public void onTouchEvent(RecyclerView rv, MotionEvent e) {
+        switch (e.getActionMasked()) {
+            case MotionEvent.ACTION_MOVE:
+                int position = getPositionUnder(rv, e);
+                // Between two items the range stays as it was
+                if (position != RecyclerView.NO_POSITION && position != mLastPosition) {
+                    mLastPosition = position;
+                    mCallback.onDragSelectionChanged(Math.min(mStartPosition, position), Math.max(mStartPosition, position));
+                }
+                break;
+            case MotionEvent.ACTION_UP:
+                finishDrag(false);
+                break;
+            case MotionEvent.ACTION_CANCEL:
+                finishDrag(true);
+                break;
+        }
+    }
+
+    @Override
+    public void onRequestDisallowInterceptTouchEvent(boolean disallowIntercept) {
+        // A child that takes the gesture over ends the drag
+        if (disallowIntercept) {
+            finishDrag(true);
+        }
+    }
+
+    private void startDrag(MotionEvent e) {
+        RecyclerView recyclerView = mRecyclerView;
+        if (recyclerView == null) {
+            return;
+        }
+        int position = getPositionUnder(recyclerView, e);
+        if (position == RecyclerView.NO_POSITION || !mCallback.onDragSelectionStarted(position)) {
+            return;
+        }
+        mStartPosition = position;
+        mLastPosition = position;
+        mCallback.onDragSelectionChanged(position, position);
+        recyclerView.performHapticFeedback(HapticFeedbackConstants.LONG_PRESS);
+        // Keep the pager from taking a sideways drag
+        ViewParent parent = recyclerView.getParent();
+        if (parent != null) {
+            parent.requestDisallowInterceptTouchEvent(true);
+        }
+    }
+
+    private void finishDrag(boolean cancelled) {
+        if (mStartPosition == RecyclerView.NO_POSITION) {
+            return;
+        }
+        mStartPosition = RecyclerView.NO_POSITION;
+        mLastPosition = RecyclerView.NO_POSITION;
+        mCallback.onDragSelectionFinished(cancelled);
+    }
+
+    private static int getPositionUnder(RecyclerView recyclerView, MotionEvent e) {
+        View child = recyclerView.findChildViewUnder(e.getX(), e.getY());
+        return child != null ? recyclerView.getChildAdapterPosition(child) : RecyclerView.NO_POSITION;
+    }
+}
@@ -0,0 +1,211 @@
+package com.github.potatodealer.gfiphotopicker.util;
+
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.Priority;
+import com.bumptech.glide.load.ResourceDecoder;
+import com.bumptech.glide.load.data.DataFetcher;
+import com.bumptech.glide.load.engine.Resource;
+import com.bumptech.glide.load.engine.bitmap_recycle.BitmapPool;
+import com.bumptech.glide.load.model.ModelLoader;
+import com.bumptech.glide.load.resource.bitmap.BitmapResource;
+
+import java.io.IOException;
+
+/**
+ * Glide model of a {@link MediaStore} image to show in the gallery grid.
+ * <p>
+ * Its {@link Decoder} tries the cheap sources first: the thumbnail embedded in the EXIF data,
+ * then the MediaStore {@link MediaStore.Images.Thumbnails#MINI_KIND} thumbnail if it was already generated,
+ * and only falls back to a sampled decode of the full image when neither is big enough for the cell.
+ */
+public class GalleryThumbnail {
+
+    private static final String LOG_TAG = "GalleryThumbnail";
+
+    // A source thumbnail is good enough if it is at least half the cell size, the cell scales it up the rest
+    private static final float MIN_SOURCE_SCALE = .5f;
+
+    private final Uri mUri;
+    private final long mId;
+
+    /**
+     * @param uri The file {@link Uri} of the image
+     * @param id  The {@link MediaStore.Images.ImageColumns#_ID} of the image, or 0 if unknown
+     */
+    public GalleryThumbnail(@NonNull Uri uri, long id) {
+        mUri = uri;
+        mId = id;
+    }
+
+    /**
+     * Passes the model through, the {@link Decoder} does all the work.
+     */
+    public static class Loader implements ModelLoader<GalleryThumbnail, GalleryThumbnail> {
+
+        @Override
+        public DataFetcher<GalleryThumbnail> getResourceFetcher(final GalleryThumbnail model, int width, int height) {
+            return new DataFetcher<GalleryThumbnail>() {
+                @Override
+                public GalleryThumbnail loadData(Priority priority) {
+                    return model;
+                }
+
+                @Override
+                public void cleanup() {
+
+                }
+
+                @Override
+                public String getId() {
+                    return model.mUri.toString();
+                }
+
+                @Override
+                public void cancel() {
+
+                }
+            };
+        }
+    }
+
+    public static class Decoder implements ResourceDecoder<GalleryThumbnail, Bitmap> {
+
+        private final ContentResolver mContentResolver;
+        private final BitmapPool mBitmapPool;
+
+        public Decoder(@NonNull Context context) {
+            mContentResolver = context.getContentResolver();
+            mBitmapPool = Glide.get(context).getBitmapPool();
+        }
+
+        @Override
+        public Resource<Bitmap> decode(GalleryThumbnail source, int width, int height) throws IOException {
+            String path = source.mUri.getPath();
+            int minSize = (int) (Math.min(width, height) * MIN_SOURCE_SCALE);
+
+            ExifInterface exif = null;
+            try {
+                exif = new ExifInterface(path);
+            } catch (IOException e) {
+                // Not a JPEG or not readable, the full decode below reports the real problem if any
+            }
+
+            Bitmap bitmap = null;
+            if (exif != null && exif.hasThumbnail()) {
+                byte[] thumbnail = exif.getThumbnail();
+                if (thumbnail != null) {
+                    BitmapFactory.Options options = decodeBounds(thumbnail, null);
+                    if (Math.min(options.outWidth, options.outHeight) >= minSize) {
+                        bitmap = BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length, sampled(options, width, height));
+                    }
+                }
+            }
+            if (bitmap == null && source.mId > 0) {
+                String miniThumbnailPath = queryMiniThumbnailPath(source.mId);
+                if (miniThumbnailPath != null) {
+                    BitmapFactory.Options options = decodeBounds(null, miniThumbnailPath);
+                    if (Math.min(options.outWidth, options.outHeight) >= minSize) {
+                        bitmap = BitmapFactory.decodeFile(miniThumbnailPath, sampled(options, width, height));
+                    }
+                }
+            }
+            if (bitmap == null) {
+                BitmapFactory.Options options = decodeBounds(null, path);
+                bitmap = BitmapFactory.decodeFile(path, sampled(options, width, height));
+            }
+            if (bitmap == null) {
+                throw new IOException("Unable to decode " + source.mUri);
+            }
+
+            // Neither the embedded nor the MediaStore thumbnails are rotated, and neither is the raw decode
+            int rotation = exif != null ? getRotation(exif) : 0;
+            if (rotation != 0) {
+                Matrix matrix = new Matrix();
+                matrix.postRotate(rotation);
+                Bitmap rotated = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+                if (rotated != bitmap) {
+                    bitmap.recycle();
+                    bitmap = rotated;
+                }
+            }
+            return BitmapResource.obtain(bitmap, mBitmapPool);
+        }
+
+        @Override
+        public String getId() {
+            return "GalleryThumbnail.Decoder";
+        }
+
+        @Nullable
+        private String queryMiniThumbnailPath(long id) {
+            Cursor cursor = null;
+            try {
+                // Only looks the thumbnail up, unlike Thumbnails.getThumbnail() which would generate a missing one
+                cursor = MediaStore.Images.Thumbnails.queryMiniThumbnail(mContentResolver, id,
+                        MediaStore.Images.Thumbnails.MINI_KIND, new String[]{MediaStore.Images.Thumbnails.DATA});
+                if (cursor != null && cursor.moveToFirst()) {
+                    return cursor.getString(0);
+                }
+            } catch (RuntimeException e) {
+                Log.w(LOG_TAG, "Unable to query the mini thumbnail of " + id, e);
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+            return null;
+        }
+
+        private static BitmapFactory.Options decodeBounds(@Nullable byte[] data, @Nullable String path) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            if (data != null) {
+                BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            } else {
+                BitmapFactory.decodeFile(path, options);
+            }
+            return options;
+        }
+
+        /**
+         * @return Options to decode the image at the smallest power of two sample still covering the cell
+         */
+        private static BitmapFactory.Options sampled(BitmapFactory.Options bounds, int width, int height) {
+            int sampleSize = 1;
+            while (bounds.outWidth / (sampleSize * 2) >= width && bounds.outHeight / (sampleSize * 2) >= height) {
+                sampleSize *= 2;
+            }
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sampleSize;
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+            return options;
+        }
+
+        private static int getRotation(ExifInterface exif) {
+            switch (exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL)) {
+                case ExifInterface.ORIENTATION_ROTATE_90:
+                    return 90;
+                case ExifInterface.ORIENTATION_ROTATE_180:
+                    return 180;
+                case ExifInterface.ORIENTATION_ROTATE_270:
+                    return 270;
+                default:
+                    return 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package com.github.potatodealer.gfiphotopicker.util;
+
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+import android.widget.ImageView;
+
+import com.bumptech.glide.BitmapRequestBuilder;
+import com.bumptech.glide.GenericRequestBuilder;
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.Priority;
+import com.bumptech.glide.load.engine.DiskCacheStrategy;
+import com.bumptech.glide.request.animation.GlideAnimation;
+import com.bumptech.glide.request.target.BitmapImageViewTarget;
+import com.bumptech.glide.request.target.SimpleTarget;
+import com.bumptech.glide.request.target.Target;
+import com.github.potatodealer.gfiphotopicker.R;
+
+import java.util.Locale;
+
+/**
+ * Memory cache of the grid thumbnails, shared by the Gallery, Facebook and Instagram grids and their preview screens.
+ * <p>
+ * The cache is bounded in bytes to a fraction of the memory class, and its entries are keyed by the image
+ * {@link Uri} (unique across the three sources) and the thumbnail size.
+ * The bitmaps are copied out of Glide, because Glide puts the bitmaps it decoded back into its pool once their
+ * request is cleared.
+ */
+public class ThumbnailCache {
+
+    private static final String LOG_TAG = "ThumbnailCache";
+    private static final boolean DEBUGGING_ENABLED = false;
+
+    // Part of the memory class given to the cache, 1/8 leaves plenty for the full size previews
+    private static final int MEMORY_CLASS_DIVIDER = 8;
+    private static final int STATS_LOG_INTERVAL = 200;
+
+    private static ThumbnailCache sInstance;
+
+    /**
+     * Told on the main thread when a prefetch finished, whether its thumbnail was cached or could not be loaded.
+     */
+    public interface PrefetchListener {
+
+        void onPrefetchFinished(@NonNull Target<?> target);
+    }
+
+    public static synchronized ThumbnailCache getInstance(@NonNull Context context) {
+        if (sInstance == null) {
+            sInstance = new ThumbnailCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private final LruCache<String, Bitmap> mCache;
+    private final GalleryThumbnail.Loader mGalleryThumbnailLoader;
+    private final GalleryThumbnail.Decoder mGalleryThumbnailDecoder;
+    private final int mThumbnailSize;
+    private int mLookupCount;
+
+    private ThumbnailCache(Context context) {
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        int maxSize = activityManager.getMemoryClass() * 1024 * 1024 / MEMORY_CLASS_DIVIDER;
+        mCache = new LruCache<String, Bitmap>(maxSize) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+        mGalleryThumbnailLoader = new GalleryThumbnail.Loader();
+        mGalleryThumbnailDecoder = new GalleryThumbnail.Decoder(context);
+        mThumbnailSize = context.getResources().getDimensionPixelSize(R.dimen.gallery_item_size);
+    }
+
+    /**
+     * @return The size in pixels of the grid thumbnails
+     */
+    public int getThumbnailSize() {
+        return mThumbnailSize;
+    }
+
+    @Nullable
+    public Bitmap get(@NonNull Uri uri) {
+        Bitmap bitmap = mCache.get(key(uri, mThumbnailSize));
+        if (DEBUGGING_ENABLED && ++mLookupCount % STATS_LOG_INTERVAL == 0) {
+            Log.d(LOG_TAG, getStats());
+        }
+        return bitmap;
+    }
+
+    public void put(@NonNull Uri uri, @NonNull Bitmap bitmap) {
+        mCache.put(key(uri, mThumbnailSize), bitmap);
+    }
+
+    /**
+     * @return The cached grid thumbnail as a placeholder for a bigger load, or null if it isn't cached
+     */
+    @Nullable
+    public Drawable getPlaceholder(@NonNull Context context, @NonNull Uri uri) {
+        Bitmap bitmap = get(uri);
+        return bitmap != null ? new BitmapDrawable(context.getResources(), bitmap) : null;
+    }
+
+    /**
+     * Show the grid thumbnail of the image, from the cache if possible, else loaded with Glide and cached.
+     */
+    public void loadThumbnail(@NonNull ImageView imageView, @NonNull Uri uri) {
+        loadThumbnail(imageView, uri, uri);
+    }
+
+    /**
+     * Same as {@link #loadThumbnail(ImageView, Uri)}, but loaded from a smaller variant of the image.
+     *
+     * @param sourceUri The variant to load the thumbnail from, it is still cached as the thumbnail of the image
+     */
+    public void loadThumbnail(@NonNull ImageView imageView, @NonNull Uri uri, @NonNull Uri sourceUri) {
+        Bitmap bitmap = get(uri);
+        if (bitmap != null) {
+            // Cancel the load the recycled view may still be waiting for
+            Glide.clear(imageView);
+            imageView.setImageBitmap(bitmap);
+            return;
+        }
+        thumbnailRequest(imageView.getContext(), sourceUri)
+                .placeholder(R.color.gallery_item_background)
+                .into(new CachingTarget(imageView, uri));
+    }
+
+    /**
+     * Show the grid thumbnail of a local image, from the cache if possible, else decoded from the cheapest
+     * source available, see {@link GalleryThumbnail}, and cached.
+     *
+     * @param id The {@link android.provider.MediaStore.Images.ImageColumns#_ID} of the image, or 0 if unknown
+     */
+    public void loadGalleryThumbnail(@NonNull ImageView imageView, @NonNull Uri uri, long id) {
+        Bitmap bitmap = get(uri);
+        if (bitmap != null) {
+            Glide.clear(imageView);
+            imageView.setImageBitmap(bitmap);
+            return;
+        }
+        galleryThumbnailRequest(imageView.getContext(), uri, id)
+                .placeholder(R.color.gallery_item_background)
+                .into(new CachingTarget(imageView, uri));
+    }
+
+    /**
+     * Load the grid thumbnail of the image into the cache ahead of its cell being bound.
+     * <p>
+     * The request is the same as the one of {@link #loadThumbnail(ImageView, Uri)}, so a cell bound while it is
+     * still running waits for it instead of starting another one.
+     *
+     * @param listener Told when the load finished, its target must not be cleared after that
+     * @return The target to clear to cancel the load, or null if the thumbnail is already cached
+     */
+    @Nullable
+    public Target<Bitmap> prefetchThumbnail(@NonNull Context context, @NonNull Uri uri,
+                                            @Nullable PrefetchListener listener) {
+        return prefetchThumbnail(context, uri, uri, listener);
+    }
+
+    /**
+     * Same as {@link #prefetchThumbnail(Context, Uri, PrefetchListener)} for the thumbnail of
+     * {@link #loadThumbnail(ImageView, Uri, Uri)}.
+     */
+    @Nullable
+    public Target<Bitmap> prefetchThumbnail(@NonNull Context context, @NonNull Uri uri, @NonNull Uri sourceUri,
+                                            @Nullable PrefetchListener listener) {
+        if (mCache.get(key(uri, mThumbnailSize)) != null) {
+            return null;
+        }
+        return thumbnailRequest(context, sourceUri)
+                .priority(Priority.LOW)
+                .into(new PrefetchTarget(uri, listener));
+    }
+
+    /**
+     * Same as {@link #prefetchThumbnail(Context, Uri, PrefetchListener)} for the thumbnail of
+     * {@link #loadGalleryThumbnail(ImageView, Uri, long)}.
+     */
+    @Nullable
+    public Target<Bitmap> prefetchGalleryThumbnail(@NonNull Context context, @NonNull Uri uri, long id,
+                                                   @Nullable PrefetchListener listener) {
+        if (mCache.get(key(uri, mThumbnailSize)) != null) {
+            return null;
+        }
+        return galleryThumbnailRequest(context, uri, id)
+                .priority(Priority.LOW)
+                .into(new PrefetchTarget(uri, listener));
+    }
+
+    public int getHitCount() {
+        return mCache.hitCount();
+    }
+
+    public int getMissCount() {
+        return mCache.missCount();
+    }
+
+    public String getStats() {
+        int hits = mCache.hitCount();
+        int misses = mCache.missCount();
+        int lookups = hits + misses;
+        return String.format(Locale.US, "hits=%d misses=%d hitRate=%.2f size=%dKB/%dKB evictions=%d",
+                hits, misses, lookups > 0 ? (float) hits / lookups : 0f,
+                mCache.size() / 1024, mCache.maxSize() / 1024, mCache.evictionCount());
+    }
+
+    private BitmapRequestBuilder<Uri, Bitmap> thumbnailRequest(Context context, Uri uri) {
+        return Glide.with(context)
+                .load(uri)
+                .asBitmap()
+                .skipMemoryCache(true)
+                .centerCrop()
+                .override(mThumbnailSize, mThumbnailSize);
+    }
+
+    private GenericRequestBuilder<GalleryThumbnail, GalleryThumbnail, Bitmap, Bitmap> galleryThumbnailRequest(Context context, Uri uri, long id) {
+        return Glide.with(context)
+                .using(mGalleryThumbnailLoader, GalleryThumbnail.class)
+                .load(new GalleryThumbnail(uri, id))
+                .as(Bitmap.class)
+                .decoder(mGalleryThumbnailDecoder)
+                .diskCacheStrategy(DiskCacheStrategy.NONE)
+                .skipMemoryCache(true)
+                .override(mThumbnailSize, mThumbnailSize);
+    }
+
+    private static String key(Uri uri, int size) {
+        return uri.toString() + ':' + size;
+    }
+
+    private class CachingTarget extends BitmapImageViewTarget {
+
+        private final Uri mUri;
+
+        CachingTarget(ImageView view, Uri uri) {
+            super(view);
+            mUri = uri;
+        }
+
+        @Override
+        public void onResourceReady(Bitmap resource, GlideAnimation<? super Bitmap> glideAnimation) {
+            Bitmap copy = resource.copy(resource.getConfig() != null ? resource.getConfig() : Bitmap.Config.ARGB_8888, false);
+            if (copy != null) {
+                put(mUri, copy);
+            }
+            super.onResourceReady(resource, glideAnimation);
+        }
+    }
+
+    private class PrefetchTarget extends SimpleTarget<Bitmap> {
+
+        private final Uri mUri;
+        @Nullable
+        private final PrefetchListener mListener;
+
+        PrefetchTarget(Uri uri, @Nullable PrefetchListener listener) {
+            super(mThumbnailSize, mThumbnailSize);
+            mUri = uri;
+            mListener = listener;
+        }
+
+        @Override
+        public void onResourceReady(Bitmap resource, GlideAnimation<? super Bitmap> glideAnimation) {
+            Bitmap copy = resource.copy(resource.getConfig() != null ? resource.getConfig() : Bitmap.Config.ARGB_8888, false);
+            if (copy != null) {
+                put(mUri, copy);
+            }
+            if (mListener != null) {
+                mListener.onPrefetchFinished(this);
+            }
+        }
+
+        @Override
+        public void onLoadFailed(Exception e, Drawable errorDrawable) {
+            if (mListener != null) {
+                mListener.onPrefetchFinished(this);
+            }
+        }
+    }
+}
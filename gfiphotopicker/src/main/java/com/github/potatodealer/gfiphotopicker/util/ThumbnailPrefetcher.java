@@ -0,0 +1,268 @@
+package com.github.potatodealer.gfiphotopicker.util;
+
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v7.widget.GridLayoutManager;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.util.SparseArray;
+import android.view.View;
+
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.request.Request;
+import com.bumptech.glide.request.target.Target;
+
+/**
+ * {@link RecyclerView.OnScrollListener} that loads the thumbnails of the rows about to scroll into view.
+ * <p>
+ * The direction and velocity of the scroll are estimated from the scroll events: the faster the grid scrolls,
+ * the more rows ahead are prefetched, up to the {@link Budget} of the source. Prefetches that fall out of the
+ * range, or belong to data that was swapped, are cancelled. A prefetch stops counting against the budget as soon
+ * as it finished.
+ */
+public class ThumbnailPrefetcher extends RecyclerView.OnScrollListener {
+
+    /**
+     * Implemented by the adapters of the grids to start the thumbnail loads.
+     */
+    public interface Source {
+
+        int getItemCount();
+
+        /**
+         * Start loading the thumbnail at the position into the {@link ThumbnailCache}.
+         *
+         * @param listener To be told when the load finished
+         * @return The target to clear to cancel the load, or null if there is nothing to load
+         */
+        @Nullable
+        Target<?> prefetchThumbnail(@NonNull Context context, int position,
+                                    @NonNull ThumbnailCache.PrefetchListener listener);
+    }
+
+    /**
+     * How far ahead a grid prefetches.
+     */
+    public static class Budget {
+
+        /**
+         * Local images decode quickly, so it pays to run far ahead of a fling.
+         */
+        public static final Budget LOCAL = new Budget(1, 6, 24);
+
+        /**
+         * Network images take longer and cost data, only the next rows are worth it.
+         */
+        public static final Budget NETWORK = new Budget(1, 3, 12);
+
+        final int mMinRows;
+        final int mMaxRows;
+        final int mMaxInFlight;
+
+        /**
+         * @param minRows     The rows prefetched when the grid is idle or scrolls slowly
+         * @param maxRows     The rows prefetched during a fast scroll
+         * @param maxInFlight The maximum number of prefetches running at once
+         */
+        public Budget(int minRows, int maxRows, int maxInFlight) {
+            mMinRows = minRows;
+            mMaxRows = maxRows;
+            mMaxInFlight = maxInFlight;
+        }
+    }
+
+    // How far in the future the prefetched rows should cover at the current velocity
+    private static final long LOOKAHEAD_MILLIS = 300;
+    // Weight of the newest sample in the velocity estimate
+    private static final float VELOCITY_SMOOTHING = .3f;
+    // Scroll events further apart than this start a new estimate
+    private static final long VELOCITY_TIMEOUT_MILLIS = 100;
+
+    private final Source mSource;
+    private final Budget mBudget;
+    // The running prefetches by position, a prefetch is removed as soon as it finished
+    private final SparseArray<Target<?>> mInFlight = new SparseArray<>();
+    private final ThumbnailCache.PrefetchListener mPrefetchListener = new ThumbnailCache.PrefetchListener() {
+        @Override
+        public void onPrefetchFinished(@NonNull Target<?> target) {
+            int index = mInFlight.indexOfValue(target);
+            if (index >= 0) {
+                mInFlight.removeAt(index);
+            }
+        }
+    };
+    private final RecyclerView.AdapterDataObserver mDataObserver = new RecyclerView.AdapterDataObserver() {
+        @Override
+        public void onChanged() {
+            cancelAll();
+        }
+
+        @Override
+        public void onItemRangeInserted(int positionStart, int itemCount) {
+            cancelFrom(positionStart);
+        }
+
+        @Override
+        public void onItemRangeRemoved(int positionStart, int itemCount) {
+            cancelFrom(positionStart);
+        }
+
+        @Override
+        public void onItemRangeMoved(int fromPosition, int toPosition, int itemCount) {
+            cancelFrom(Math.min(fromPosition, toPosition));
+        }
+    };
+    @Nullable
+    private RecyclerView mRecyclerView;
+    @Nullable
+    private RecyclerView.Adapter mAdapter;
+    // Smoothed scroll velocity in pixels per millisecond, negative when scrolling up
+    private float mVelocity;
+    private long mLastScrollTime;
+    private int mDirection = 1;
+
+    public ThumbnailPrefetcher(@NonNull Source source, @NonNull Budget budget) {
+        mSource = source;
+        mBudget = budget;
+    }
+
+    /**
+     * Start prefetching for the grid, whose adapter must be the {@link Source}.
+     */
+    public void attach(@NonNull RecyclerView recyclerView) {
+        detach();
+        mRecyclerView = recyclerView;
+        mAdapter = recyclerView.getAdapter();
+        if (mAdapter != null) {
+            mAdapter.registerAdapterDataObserver(mDataObserver);
+        }
+        recyclerView.addOnScrollListener(this);
+    }
+
+    /**
+     * Stop prefetching and cancel the running prefetches.
+     */
+    public void detach() {
+        if (mRecyclerView != null) {
+            mRecyclerView.removeOnScrollListener(this);
+            mRecyclerView = null;
+        }
+        if (mAdapter != null) {
+            mAdapter.unregisterAdapterDataObserver(mDataObserver);
+            mAdapter = null;
+        }
+        cancelAll();
+    }
+
+    @Override
+    public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+        if (dy == 0) {
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        long elapsed = now - mLastScrollTime;
+        mLastScrollTime = now;
+        if (elapsed <= 0 || elapsed > VELOCITY_TIMEOUT_MILLIS || Integer.signum(dy) != mDirection) {
+            mVelocity = 0;
+        }
+        mDirection = Integer.signum(dy);
+        if (elapsed > 0 && elapsed <= VELOCITY_TIMEOUT_MILLIS) {
+            float velocity = (float) dy / elapsed;
+            mVelocity = mVelocity == 0 ? velocity : mVelocity + (velocity - mVelocity) * VELOCITY_SMOOTHING;
+        }
+        prefetch(recyclerView);
+    }
+
+    @Override
+    public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+        if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+            mVelocity = 0;
+            prefetch(recyclerView);
+        }
+    }
+
+    /**
+     * Cancel the running prefetches.
+     */
+    public void cancelAll() {
+        for (int i = 0; i < mInFlight.size(); i++) {
+            Glide.clear(mInFlight.valueAt(i));
+        }
+        mInFlight.clear();
+    }
+
+    /**
+     * Cancel the prefetches of the positions that were shifted by a change of the data.
+     */
+    private void cancelFrom(int positionStart) {
+        for (int i = mInFlight.size() - 1; i >= 0 && mInFlight.keyAt(i) >= positionStart; i--) {
+            Glide.clear(mInFlight.valueAt(i));
+            mInFlight.removeAt(i);
+        }
+    }
+
+    private void prefetch(RecyclerView recyclerView) {
+        RecyclerView.LayoutManager layoutManager = recyclerView.getLayoutManager();
+        if (!(layoutManager instanceof LinearLayoutManager) || recyclerView.getChildCount() == 0) {
+            return;
+        }
+        LinearLayoutManager linearLayoutManager = (LinearLayoutManager) layoutManager;
+        int firstVisible = linearLayoutManager.findFirstVisibleItemPosition();
+        int lastVisible = linearLayoutManager.findLastVisibleItemPosition();
+        if (firstVisible == RecyclerView.NO_POSITION || lastVisible == RecyclerView.NO_POSITION) {
+            return;
+        }
+        int spanCount = layoutManager instanceof GridLayoutManager ? ((GridLayoutManager) layoutManager).getSpanCount() : 1;
+
+        View child = recyclerView.getChildAt(0);
+        int rowHeight = Math.max(1, child.getHeight());
+        int rows = Math.round(Math.abs(mVelocity) * LOOKAHEAD_MILLIS / rowHeight);
+        rows = Math.max(mBudget.mMinRows, Math.min(mBudget.mMaxRows, rows));
+
+        int itemCount = mSource.getItemCount();
+        int from;
+        int to;
+        if (mDirection > 0) {
+            from = lastVisible + 1;
+            to = Math.min(itemCount - 1, lastVisible + rows * spanCount);
+        } else {
+            from = Math.max(0, firstVisible - rows * spanCount);
+            to = firstVisible - 1;
+        }
+
+        // Cancel what left the range, a visible cell now waits on its own load
+        for (int i = mInFlight.size() - 1; i >= 0; i--) {
+            int position = mInFlight.keyAt(i);
+            if (position < from || position > to) {
+                Glide.clear(mInFlight.valueAt(i));
+                mInFlight.removeAt(i);
+            }
+        }
+
+        // Start with the rows closest to the screen
+        Context context = recyclerView.getContext();
+        int start = mDirection > 0 ? from : to;
+        for (int position = start; position >= from && position <= to; position += mDirection) {
+            if (mInFlight.size() >= mBudget.mMaxInFlight) {
+                break;
+            }
+            if (mInFlight.indexOfKey(position) >= 0) {
+                continue;
+            }
+            Target<?> target = mSource.prefetchThumbnail(context, position, mPrefetchListener);
+            // Cached thumbnails get no target. A request Glide can't start, like one without a model, has already
+            // failed when its target is returned
+            if (target != null && !isFinished(target)) {
+                mInFlight.put(position, target);
+            }
+        }
+    }
+
+    private static boolean isFinished(Target<?> target) {
+        Request request = target.getRequest();
+        return request == null || request.isComplete() || request.isFailed();
+    }
+}
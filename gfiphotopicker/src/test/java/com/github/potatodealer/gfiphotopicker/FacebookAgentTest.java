@@ -0,0 +1,151 @@
+package com.github.potatodealer.gfiphotopicker;
+
+import android.content.Context;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of the Graph request batching and of the parsing of the albums, with their first page of photos.
+ */
+public class FacebookAgentTest {
+
+    // A /me/albums response with fields=id,name,cover_photo,updated_time,count,photos.limit(2){id,picture,images}
+    private static final String ALBUMS_RESPONSE = "{"
+            + "\"data\":["
+            + "{\"id\":\"101\",\"name\":\"Holidays\",\"cover_photo\":{\"created_time\":\"2017-08-01T10:00:00+0000\",\"id\":\"1001\"},"
+            + "\"updated_time\":\"2017-08-02T10:00:00+0000\",\"count\":3,"
+            + "\"photos\":{\"data\":["
+            + "{\"id\":\"1001\",\"picture\":\"https://scontent.example/1001_s.jpg?oh=a\",\"images\":["
+            + "{\"height\":720,\"source\":\"https://scontent.example/1001_n.jpg?oh=b\",\"width\":960},"
+            + "{\"height\":480,\"source\":\"https://scontent.example/1001_m.jpg?oh=c\",\"width\":640},"
+            + "{\"height\":225,\"source\":\"https://scontent.example/1001_t.jpg?oh=d\",\"width\":300}]},"
+            + "{\"id\":\"1002\",\"picture\":\"https://scontent.example/1002_s.jpg?oh=e\",\"images\":["
+            + "{\"height\":1200,\"source\":\"https://scontent.example/1002_n.jpg?oh=f\",\"width\":900}]}],"
+            + "\"paging\":{\"cursors\":{\"before\":\"QVFIUmJ\",\"after\":\"QVFIUnZ\"},"
+            + "\"next\":\"https://graph.facebook.com/v2.10/101/photos?limit=2&after=QVFIUnZ\"}}},"
+            + "{\"id\":\"102\",\"name\":\"Profile Pictures\",\"cover_photo\":\"2001\",\"updated_time\":\"2017-07-01T10:00:00+0000\",\"count\":1,"
+            + "\"photos\":{\"data\":["
+            + "{\"id\":\"2001\",\"picture\":\"https://scontent.example/2001_s.jpg?oh=g\",\"images\":["
+            + "{\"height\":320,\"source\":\"https://scontent.example/2001_n.jpg?oh=h\",\"width\":320}]}],"
+            + "\"paging\":{\"cursors\":{\"before\":\"QVFIUkx\",\"after\":\"QVFIUkx\"}}}},"
+            + "{\"id\":\"103\",\"name\":\"Empty\",\"cover_photo\":{\"id\":\"0\"}},"
+            + "{\"name\":\"No id\",\"cover_photo\":\"3001\"}],"
+            + "\"paging\":{\"cursors\":{\"before\":\"MTAx\",\"after\":\"MTAz\"}}"
+            + "}";
+
+    private static List<Integer> range(int count) {
+        List<Integer> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            list.add(i);
+        }
+        return list;
+    }
+
+    private static List<FacebookAgent.Album> parseAlbums() throws Exception {
+        FacebookAgent agent = new FacebookAgent((Context) null);
+        return agent.albumsFromJSON(new JSONObject(ALBUMS_RESPONSE).getJSONArray("data"));
+    }
+
+    @Test
+    public void splitIntoBatches_keepsTheRequestsInOrder() throws Exception {
+        List<List<Integer>> batches = FacebookAgent.splitIntoBatches(range(120), 50);
+        assertEquals(3, batches.size());
+        assertEquals(range(50), batches.get(0));
+        assertEquals(50, batches.get(1).size());
+        assertEquals(Integer.valueOf(50), batches.get(1).get(0));
+        assertEquals(Arrays.asList(100, 101, 102, 103, 104, 105, 106, 107, 108, 109,
+                110, 111, 112, 113, 114, 115, 116, 117, 118, 119), batches.get(2));
+    }
+
+    @Test
+    public void splitIntoBatches_onlySplitsAboveTheMaxSize() throws Exception {
+        assertTrue(FacebookAgent.splitIntoBatches(range(0), 50).isEmpty());
+        assertEquals(1, FacebookAgent.splitIntoBatches(range(1), 50).size());
+        assertEquals(1, FacebookAgent.splitIntoBatches(range(50), 50).size());
+
+        List<List<Integer>> batches = FacebookAgent.splitIntoBatches(range(51), 50);
+        assertEquals(2, batches.size());
+        assertEquals(Arrays.asList(50), batches.get(1));
+    }
+
+    @Test
+    public void splitIntoBatches_copiesTheRequests() throws Exception {
+        List<Integer> queued = range(60);
+        List<List<Integer>> batches = FacebookAgent.splitIntoBatches(queued, 50);
+        queued.clear();
+        assertEquals(50, batches.get(0).size());
+        assertEquals(10, batches.get(1).size());
+    }
+
+    @Test
+    public void albumsFromJSON_skipsMalformedAlbums() throws Exception {
+        List<FacebookAgent.Album> albums = parseAlbums();
+        assertEquals(3, albums.size());
+        assertEquals("101", albums.get(0).getId());
+        assertEquals("102", albums.get(1).getId());
+        assertEquals("103", albums.get(2).getId());
+    }
+
+    @Test
+    public void albumsFromJSON_readsTheSyncState() throws Exception {
+        List<FacebookAgent.Album> albums = parseAlbums();
+        FacebookAgent.Album holidays = albums.get(0);
+        assertEquals("Holidays", holidays.getName());
+        assertEquals("2017-08-02T10:00:00+0000", holidays.getUpdatedTime());
+        assertEquals(3, holidays.getCount());
+
+        FacebookAgent.Album empty = albums.get(2);
+        assertNull(empty.getUpdatedTime());
+        assertEquals(FacebookAgent.Album.UNKNOWN_COUNT, empty.getCount());
+    }
+
+    @Test
+    public void albumsFromJSON_keepsTheNestedFirstPhotosPage() throws Exception {
+        FacebookAgent.Album holidays = parseAlbums().get(0);
+        List<FacebookAgent.Photo> photos = holidays.getFirstPhotosPage();
+        assertNotNull(photos);
+        assertEquals(2, photos.size());
+
+        FacebookAgent.Photo photo = photos.get(0);
+        assertEquals("1001", photo.getId());
+        // The picture and the three images
+        assertEquals(4, photo.getImages().size());
+        assertEquals(960, photo.getFullWidth());
+        assertEquals(720, photo.getFullHeight());
+        assertEquals("https://scontent.example/1001_n.jpg?oh=b", photo.getFullURLString());
+        assertEquals("https://scontent.example/1001_m.jpg?oh=c", photo.getBestImage(400, 400).getSourceURLString());
+
+        assertEquals("1002", photos.get(1).getId());
+        assertEquals(1200, photos.get(1).getFullHeight());
+    }
+
+    @Test
+    public void albumsFromJSON_keepsTheCursorOfTheNextPhotosPage() throws Exception {
+        List<FacebookAgent.Album> albums = parseAlbums();
+        assertEquals("QVFIUnZ", albums.get(0).getFirstPhotosPageCursor());
+        // Without a next page, the cursor is not followed
+        assertEquals(1, albums.get(1).getFirstPhotosPage().size());
+        assertNull(albums.get(1).getFirstPhotosPageCursor());
+        // Empty edges are left out of the response
+        assertNull(albums.get(2).getFirstPhotosPage());
+        assertNull(albums.get(2).getFirstPhotosPageCursor());
+    }
+
+    @Test
+    public void nextPageCursor_needsANextPage() throws Exception {
+        JSONObject response = new JSONObject(ALBUMS_RESPONSE);
+        assertNull(FacebookAgent.nextPageCursor(response));
+        assertNull(FacebookAgent.nextPageCursor(new JSONObject("{\"data\":[]}")));
+
+        JSONArray albums = response.getJSONArray("data");
+        assertEquals("QVFIUnZ", FacebookAgent.nextPageCursor(albums.getJSONObject(0).getJSONObject("photos")));
+    }
+}
@@ -0,0 +1,143 @@
+package com.github.potatodealer.gfiphotopicker;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of the Graph request pacing and retry decisions.
+ */
+public class FacebookRequestSchedulerTest {
+
+    private static final long NOW = 1000;
+
+    /**
+     * Always draws the same number, so the jitter is known.
+     */
+    private static class FixedRandom extends Random {
+
+        private final double mValue;
+
+        FixedRandom(double value) {
+            mValue = value;
+        }
+
+        @Override
+        public double nextDouble() {
+            return mValue;
+        }
+    }
+
+    private static FacebookRequestScheduler newScheduler(double random) {
+        return new FacebookRequestScheduler(new FixedRandom(random), 4);
+    }
+
+    @Test
+    public void backoff_doublesPerAttemptUpToTheCap() throws Exception {
+        FacebookRequestScheduler scheduler = newScheduler(0.999999);
+        assertEquals(1000, scheduler.backoffMillis(0));
+        assertEquals(2000, scheduler.backoffMillis(1));
+        assertEquals(16000, scheduler.backoffMillis(4));
+        assertEquals(60000, scheduler.backoffMillis(6));
+        assertEquals(60000, scheduler.backoffMillis(100));
+    }
+
+    @Test
+    public void backoff_isNeverZero() throws Exception {
+        FacebookRequestScheduler scheduler = newScheduler(0);
+        assertEquals(1, scheduler.backoffMillis(0));
+        assertEquals(1, scheduler.backoffMillis(100));
+    }
+
+    @Test
+    public void onError_retriesTransientErrorsOnly() throws Exception {
+        FacebookRequestScheduler scheduler = newScheduler(0.5);
+        assertEquals(-1, scheduler.onError(false, false, 1, NOW));
+        assertEquals(1001, scheduler.onError(false, true, 1, NOW));
+        assertEquals(1001, scheduler.onError(true, false, 1, NOW));
+    }
+
+    @Test
+    public void onError_stopsAtTheMaxAttempts() throws Exception {
+        FacebookRequestScheduler scheduler = newScheduler(0.5);
+        assertTrue(scheduler.onError(false, true, 4, NOW) > 0);
+        assertEquals(-1, scheduler.onError(false, true, 5, NOW));
+    }
+
+    @Test
+    public void onError_drawsOnTheSharedRetryBudget() throws Exception {
+        FacebookRequestScheduler scheduler = newScheduler(0.5);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(scheduler.onError(false, true, 1, NOW) > 0);
+        }
+        assertEquals(-1, scheduler.onError(false, true, 1, NOW));
+
+        // Ten successful responses give back one retry
+        for (int i = 0; i < 9; i++) {
+            scheduler.onSuccess();
+        }
+        assertEquals(-1, scheduler.onError(false, true, 1, NOW));
+        scheduler.onSuccess();
+        assertTrue(scheduler.onError(false, true, 1, NOW) > 0);
+        assertEquals(-1, scheduler.onError(false, true, 1, NOW));
+    }
+
+    @Test
+    public void onError_throttlingHoldsBackEveryRequest() throws Exception {
+        FacebookRequestScheduler scheduler = newScheduler(0.5);
+        long delay = scheduler.onError(true, false, 2, NOW);
+        assertEquals(2001, delay);
+        assertEquals(delay, scheduler.getDispatchDelayMillis(NOW));
+        assertEquals(0, scheduler.getDispatchDelayMillis(NOW + delay));
+
+        // A transient error only delays its own request
+        scheduler = newScheduler(0.5);
+        scheduler.onError(false, true, 2, NOW);
+        assertEquals(0, scheduler.getDispatchDelayMillis(NOW));
+    }
+
+    @Test
+    public void onAppUsage_sendsOneBatchAtATimeFrom75Percent() throws Exception {
+        FacebookRequestScheduler scheduler = newScheduler(0.5);
+        assertEquals(4, scheduler.getMaxParallelBatches());
+
+        scheduler.onAppUsage("{\"call_count\":74,\"total_time\":10,\"total_cputime\":10}", NOW);
+        assertEquals(4, scheduler.getMaxParallelBatches());
+
+        scheduler.onAppUsage("{\"call_count\":10,\"total_time\":75,\"total_cputime\":10}", NOW);
+        assertEquals(1, scheduler.getMaxParallelBatches());
+        assertEquals(0, scheduler.getDispatchDelayMillis(NOW));
+
+        scheduler.onAppUsage("{\"call_count\":10,\"total_time\":10,\"total_cputime\":10}", NOW);
+        assertEquals(4, scheduler.getMaxParallelBatches());
+    }
+
+    @Test
+    public void onAppUsage_pausesFrom95Percent() throws Exception {
+        FacebookRequestScheduler scheduler = newScheduler(0.5);
+        scheduler.onAppUsage("{\"call_count\":10,\"total_time\":10,\"total_cputime\":95}", NOW);
+        assertEquals(1, scheduler.getMaxParallelBatches());
+        assertEquals(60000, scheduler.getDispatchDelayMillis(NOW));
+        assertEquals(0, scheduler.getDispatchDelayMillis(NOW + 60000));
+    }
+
+    @Test
+    public void onAppUsage_ignoresMissingAndMalformedHeaders() throws Exception {
+        FacebookRequestScheduler scheduler = newScheduler(0.5);
+        scheduler.onAppUsage(null, NOW);
+        scheduler.onAppUsage("not json", NOW);
+        assertEquals(4, scheduler.getMaxParallelBatches());
+        assertEquals(0, scheduler.getDispatchDelayMillis(NOW));
+    }
+
+    @Test
+    public void isThrottlingErrorCode_matchesTheRateLimitCodes() throws Exception {
+        assertTrue(FacebookRequestScheduler.isThrottlingErrorCode(4));
+        assertTrue(FacebookRequestScheduler.isThrottlingErrorCode(17));
+        assertTrue(FacebookRequestScheduler.isThrottlingErrorCode(32));
+        assertTrue(FacebookRequestScheduler.isThrottlingErrorCode(613));
+        assertFalse(FacebookRequestScheduler.isThrottlingErrorCode(190));
+    }
+}